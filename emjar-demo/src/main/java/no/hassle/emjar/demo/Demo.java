@@ -21,7 +21,11 @@ public class Demo {
         System.setErr(System.out);
         final Logger log = Logger.getLogger(Demo.class.getName());
         final ResourceConfig app = new ResourceConfig();
-        if (System.getProperty("emjar.demo.classpath-scanning") != null) {
+        if (System.getProperty("emjar.demo.index-scanning") != null
+            && IndexScanning.isAvailable()) {
+            log.info("Running test (EmJar index scanning)");
+            IndexScanning.registerPackage(app, "no.hassle.emjar.demo.rs");
+        } else if (System.getProperty("emjar.demo.classpath-scanning") != null) {
             log.info("Running test (classpath scanning)");
             app.packages("no.hassle.emjar.demo.rs");
         } else {
@@ -46,8 +50,10 @@ public class Demo {
         final URI uri = server.getURI();
         final Client client = ClientBuilder.newClient();
         try {
-            log.info("Html: "
-                + client.target(uri).request(MediaType.TEXT_HTML_TYPE).get(String.class));
+            final String html
+                = client.target(uri).request(MediaType.TEXT_HTML_TYPE).get(String.class);
+            StartupMetrics.record(log);
+            log.info("Html: " + html);
             log.info("Json: "
                 + client.target(uri).request(MediaType.APPLICATION_JSON_TYPE).get(String.class));
             log.info("Xml: "
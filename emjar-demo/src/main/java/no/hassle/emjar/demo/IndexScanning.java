@@ -0,0 +1,41 @@
+package no.hassle.emjar.demo;
+
+import java.io.IOException;
+import javax.ws.rs.Path;
+import javax.ws.rs.ext.Provider;
+import no.hassle.emjar.ClassNameCollector;
+import no.hassle.emjar.EmJarClassLoader;
+import org.glassfish.jersey.server.ResourceConfig;
+
+/**
+ * Jersey package scanning served from the EmJar bundle index instead
+ * of crawling the classpath through URLs.  Only loaded when running
+ * under the EmJar class loader.
+ */
+final class IndexScanning {
+    private static final String LOADER_CLASS = "no.hassle.emjar.EmJarClassLoader";
+
+    private IndexScanning() {
+    }
+
+    static boolean isAvailable() {
+        return LOADER_CLASS.equals(
+            Thread.currentThread().getContextClassLoader().getClass().getName());
+    }
+
+    /**
+     * Register all resources and providers in {@code packageName} and
+     * its subpackages.
+     */
+    static void registerPackage(final ResourceConfig app, final String packageName)
+        throws IOException, ClassNotFoundException {
+        final EmJarClassLoader loader
+            = (EmJarClassLoader) Thread.currentThread().getContextClassLoader();
+        for (final String name : ClassNameCollector.findClassNames(loader, packageName, true)) {
+            final Class<?> cls = Class.forName(name, false, loader);
+            if (cls.isAnnotationPresent(Path.class) || cls.isAnnotationPresent(Provider.class)) {
+                app.register(cls);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package no.hassle.emjar.demo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Repeatable startup benchmark, running the demo in fresh JVMs across
+ * EmJar modes and against a plain flat classpath.  Each run reports
+ * (see {@link StartupMetrics}) the time from JVM start to the first
+ * successful response, the number of classes loaded, bytes inflated
+ * by EmJar and resident set size.
+ *
+ * <p>
+ * Results are written as JSON lines: one <code>"run"</code> record per
+ * run, followed by one <code>"median"</code> record per mode.  Modes
+ * are run round-robin after an unmeasured warm-up round, so that
+ * drift (e.g page cache state) is spread across all modes.
+ *
+ * <p>
+ * Usage: <code>StartupBenchmark &lt;emjar bundle&gt; &lt;flat
+ * classpath&gt; &lt;output file&gt; [runs]</code>
+ */
+public final class StartupBenchmark {
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":(-?\\d+)");
+    // By name, as the driver runs without the demo dependencies
+    private static final String MAIN_CLASS = "no.hassle.emjar.demo.Demo";
+
+    private StartupBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: StartupBenchmark <emjar bundle> <flat classpath>"
+                + " <output file> [runs]");
+            System.exit(2);
+        }
+        final File bundle = new File(args[0]).getAbsoluteFile();
+        final String flatClassPath = args[1];
+        final File output = new File(args[2]).getAbsoluteFile();
+        final int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final File compressed = new File(output.getParentFile(),
+            bundle.getName().replaceFirst("\\.jar$", "") + "-compressed.jar");
+        recompress(bundle, compressed);
+
+        final Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("flat", Arrays.asList("-cp", flatClassPath, MAIN_CLASS));
+        modes.put("emjar-stored-ondemand", Arrays.asList("-jar", bundle.getPath()));
+        modes.put("emjar-stored-ondemand-channel",
+            Arrays.asList("-Demjar.storage=channel", "-jar", bundle.getPath()));
+        modes.put("emjar-stored-preloaded",
+            Arrays.asList("-Demjar.preload=true", "-jar", bundle.getPath()));
+        modes.put("emjar-compressed-preloaded", Arrays.asList("-jar", compressed.getPath()));
+
+        final File log = new File(output.getParentFile(), "startup-benchmark.log");
+        Files.deleteIfExists(log.toPath());
+        for (final Map.Entry<String, List<String>> mode : modes.entrySet()) {
+            run(mode.getKey(), mode.getValue(), null, log);
+        }
+
+        final Map<String, List<Map<String, Long>>> results = new LinkedHashMap<>();
+        for (final String mode : modes.keySet()) {
+            results.put(mode, new ArrayList<Map<String, Long>>());
+        }
+        try (Writer out = new OutputStreamWriter(
+                 new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < runs; i++) {
+                for (final Map.Entry<String, List<String>> mode : modes.entrySet()) {
+                    final File metrics = File.createTempFile("startup-metrics", ".json");
+                    try {
+                        final long wall = run(mode.getKey(), mode.getValue(), metrics, log);
+                        final String line = new String(
+                            Files.readAllBytes(metrics.toPath()), StandardCharsets.UTF_8).trim();
+                        if (!line.endsWith("}")) {
+                            throw new IOException("No metrics recorded for " + mode.getKey()
+                                + ", see " + log);
+                        }
+                        final String record = "{\"type\":\"run\",\"run\":" + i + ","
+                            + line.substring(1, line.length() - 1)
+                            + ",\"wallMillis\":" + wall + "}";
+                        out.write(record + "\n");
+                        final Map<String, Long> values = parse(record);
+                        values.remove("run");
+                        results.get(mode.getKey()).add(values);
+                    } finally {
+                        metrics.delete();
+                    }
+                }
+            }
+            for (final Map.Entry<String, List<Map<String, Long>>> mode : results.entrySet()) {
+                final StringBuilder record = new StringBuilder();
+                record.append("{\"type\":\"median\",\"mode\":\"").append(mode.getKey())
+                    .append("\",\"runs\":").append(runs);
+                for (final String field : mode.getValue().get(0).keySet()) {
+                    record.append(",\"").append(field).append("\":")
+                        .append(median(mode.getValue(), field));
+                }
+                record.append('}');
+                out.write(record + "\n");
+                System.out.println(record);
+            }
+        }
+    }
+
+    /**
+     * Run the demo once in a fresh JVM, and return wall clock time
+     * until it exited.  Metrics are recorded to {@code metrics}, if
+     * given; output is appended to {@code log}.
+     */
+    private static long run(final String mode, final List<String> args, final File metrics,
+            final File log) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-D" + StartupMetrics.MODE_PROP + "=" + mode);
+        if (metrics != null) {
+            command.add("-D" + StartupMetrics.METRICS_PROP + "=" + metrics.getPath());
+        }
+        command.addAll(args);
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+            .start();
+        final int status = process.waitFor();
+        final long wall = (System.nanoTime() - start) / 1000000;
+        if (status != 0) {
+            throw new IOException("Mode " + mode + " exited with status " + status + ", see " + log);
+        }
+        return wall;
+    }
+
+    /**
+     * Copy {@code bundle} to {@code out}, compressing all entries
+     * (including nested jars, which EmJar must then preload).
+     */
+    private static void recompress(final File bundle, final File out) throws IOException {
+        final byte[] buf = new byte[64 * 1024];
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(bundle));
+             ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(out))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                final ZipEntry copy = new ZipEntry(entry.getName());
+                copy.setTime(entry.getTime());
+                copy.setMethod(ZipEntry.DEFLATED);
+                zip.putNextEntry(copy);
+                int read;
+                while ((read = in.read(buf)) >= 0) {
+                    zip.write(buf, 0, read);
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private static Map<String, Long> parse(final String record) {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        final Matcher m = FIELD.matcher(record);
+        while (m.find()) {
+            values.put(m.group(1), Long.parseLong(m.group(2)));
+        }
+        return values;
+    }
+
+    private static long median(final List<Map<String, Long>> values, final String field) {
+        final List<Long> sorted = new ArrayList<>();
+        for (final Map<String, Long> run : values) {
+            sorted.add(run.get(field));
+        }
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
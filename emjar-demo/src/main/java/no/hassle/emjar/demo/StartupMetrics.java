@@ -0,0 +1,79 @@
+package no.hassle.emjar.demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+import no.hassle.emjar.EmJarClassLoader;
+
+/**
+ * Startup measurements taken once the first request has been served,
+ * for {@link StartupBenchmark}.  Written as a single JSON line to the
+ * file named by the <code>emjar.demo.metrics</code> property, labelled
+ * with the <code>emjar.demo.mode</code> property.  Nothing is recorded
+ * unless the former is set.
+ */
+final class StartupMetrics {
+    static final String METRICS_PROP = "emjar.demo.metrics";
+    static final String MODE_PROP = "emjar.demo.mode";
+
+    private StartupMetrics() {
+    }
+
+    static void record(final Logger log) throws IOException {
+        final String file = System.getProperty(METRICS_PROP);
+        if (file == null) {
+            return;
+        }
+        final String line = "{\"mode\":\"" + System.getProperty(MODE_PROP, "unknown") + "\""
+            + ",\"firstResponseMillis\":" + ManagementFactory.getRuntimeMXBean().getUptime()
+            + ",\"loadedClasses\":"
+            + ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount()
+            + ",\"bytesInflated\":" + bytesInflated()
+            + ",\"rssKb\":" + rssKb()
+            + "}";
+        log.info("Startup metrics: " + line);
+        try (Writer out = new OutputStreamWriter(
+                 new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            out.write(line + "\n");
+        }
+    }
+
+    /**
+     * Return bytes inflated by EmJar, or -1 if not running under the
+     * EmJar class loader.
+     */
+    private static long bytesInflated() {
+        return IndexScanning.isAvailable() ? EmJarClassLoader.getBytesInflated() : -1;
+    }
+
+    /**
+     * Return resident set size in kB, or -1 if not available (Linux
+     * only).
+     */
+    private static long rssKb() {
+        final File status = new File("/proc/self/status");
+        if (!status.canRead()) {
+            return -1;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                 new FileInputStream(status), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // Fall through
+        }
+        return -1;
+    }
+}
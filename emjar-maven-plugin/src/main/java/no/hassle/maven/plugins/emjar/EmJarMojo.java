@@ -17,6 +17,7 @@
 package no.hassle.maven.plugins.emjar;
 
 import no.hassle.emjar.Boot;
+import no.hassle.emjar.EmJarClassLoader;
 import com.google.common.io.ByteStreams;
 
 import org.apache.maven.artifact.Artifact;
@@ -28,23 +29,29 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.repository.RepositorySystem;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -174,10 +181,66 @@ public class EmJarMojo
      */
     private Map<String, String> manifestEntries;
 
+    /**
+     * Split dependency artifacts into separate layer jars next to the
+     * main bundle, grouped by how often they are expected to change.
+     *
+     * @parameter
+     *     property="layered"
+     *     default-value="false"
+     */
+    private boolean layered;
+
+    /**
+     * Artifacts (groupId:artifactId) to place in the volatile layer
+     * in addition to snapshot artifacts.
+     *
+     * @parameter
+     *     property="volatileArtifacts"
+     */
+    private String[] volatileArtifacts;
+
+    /**
+     * Name prefix for generated layer jar files.
+     *
+     * @parameter
+     *     property="layerNamePrefix"
+     *     default-value="${project.artifactId}"
+     */
+    private String layerNamePrefix;
+
+    /**
+     * Aggregate all service provider configuration files
+     * (META-INF/services/*) of the embedded jars into a registry in
+     * the bundle, allowing the EmJar class loader to look up service
+     * providers without opening every embedded jar.
+     *
+     * @parameter
+     *     property="aggregateServices"
+     *     default-value="false"
+     */
+    private boolean aggregateServices;
+
+    /**
+     * Merge the contents of all (unsigned) dependency artifacts into a
+     * single flat, stored inner jar instead of embedding each one.
+     * Duplicate entries are resolved by artifact ordering, service
+     * provider configuration files are concatenated, and the
+     * originating artifact of every entry is recorded.
+     *
+     * @parameter
+     *     property="merged"
+     *     default-value="false"
+     */
+    private boolean merged;
+
 
     private static final String CREATED_BY = "Created-By";
     private static final int CHUNK_SIZE = 16 * 1024;
     private static final String NONE = "NONE";
+    private static final String LAYER_STABLE = "stable";
+    private static final String LAYER_VOLATILE = "volatile";
+    private static final String SERVICE_REGISTRY_DIR = "META-INF/emjar/services/";
 
     private final Map<Artifact, Map<Artifact, Set<String>>> conflicts = new HashMap<>();
     private final Map<String, Set<Artifact>> seen = new HashMap<>();
@@ -435,6 +498,266 @@ public class EmJarMojo
         return ordered;
     }
 
+    /**
+     * Return whether {@code artifact} is expected to change often
+     * enough to warrant placement in the volatile layer; i.e whether
+     * it is a snapshot or matches one of {@code volatileSpecs}.
+     */
+    protected boolean isVolatile(
+        final Artifact artifact,
+        final String[] volatileSpecs)
+    {
+        if (artifact.isSnapshot()) {
+            return true;
+        }
+        if (volatileSpecs != null) {
+            for (String spec : volatileSpecs) {
+                if (matches(spec, artifact)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Distribute {@code ordered} artifacts over named layers.  The
+     * relative order of artifacts is retained within each layer.
+     */
+    protected Map<String, List<Artifact>> assignLayers(
+        final List<Artifact> ordered,
+        final String[] volatileSpecs)
+    {
+        final Map<String, List<Artifact>> layers = new LinkedHashMap<>();
+        for (Artifact artifact : ordered) {
+            final String layer
+                = isVolatile(artifact, volatileSpecs) ? LAYER_VOLATILE : LAYER_STABLE;
+            List<Artifact> members = layers.get(layer);
+            if (members == null) {
+                members = new LinkedList<>();
+                layers.put(layer, members);
+            }
+            members.add(artifact);
+        }
+        return layers;
+    }
+
+    /**
+     * Write {@code layers} as separate jar files, and return the
+     * corresponding EmJar classpath listing all embedded artifacts in
+     * the order given by {@code ordered}.
+     */
+    private String writeLayers(
+        final Map<String, List<Artifact>> layers,
+        final List<Artifact> ordered)
+        throws IOException, MojoExecutionException
+    {
+        final Map<Artifact, String> located = new HashMap<>();
+        for (Map.Entry<String, List<Artifact>> layer : layers.entrySet()) {
+            final String layerName = layerNamePrefix + "-" + layer.getKey() + ".jar";
+            final File layerFile = new File(outputDirectory, layerName);
+            getLog().info("Building layer jar: " + layerFile.getPath());
+            final JarOutputStream jar = new JarOutputStream(new FileOutputStream(layerFile, false));
+            for (Artifact artifact : layer.getValue()) {
+                addJarToJarStream(jar, artifact.getFile(), "lib");
+                located.put(artifact, layerName + EmJarClassLoader.SEPARATOR
+                            + "lib/" + artifact.getFile().getName());
+            }
+            jar.close();
+        }
+        final StringBuilder classPath = new StringBuilder();
+        for (Artifact artifact : ordered) {
+            if (classPath.length() > 0) {
+                classPath.append(' ');
+            }
+            try {
+                classPath.append(new URI(null, null, located.get(artifact), null).getRawPath());
+            }
+            catch (URISyntaxException e) {
+                throw new MojoExecutionException(
+                    "Unable to represent " + desc(artifact) + " in layer classpath", e);
+            }
+        }
+        return classPath.toString();
+    }
+
+    /**
+     * Collect the service provider configuration files of
+     * {@code jars} into one aggregated file per service.  The
+     * contents are concatenated in the order the jars are given,
+     * which should be their classpath order, with each section
+     * annotated by the path of the jar it was taken from.
+     *
+     * @param jars   map of embedded path to jar file, in classpath order
+     */
+    protected Map<String, byte[]> aggregateServices(
+        final Map<String, File> jars)
+        throws IOException
+    {
+        final Map<String, ByteArrayOutputStream> aggregated = new TreeMap<>();
+        for (Map.Entry<String, File> jarEntry : jars.entrySet()) {
+            final JarFile jar = new JarFile(jarEntry.getValue());
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory()
+                    || !name.startsWith(EmJarClassLoader.SERVICES_PREFIX)
+                    || name.length() == EmJarClassLoader.SERVICES_PREFIX.length())
+                {
+                    continue;
+                }
+                final String service = name.substring(EmJarClassLoader.SERVICES_PREFIX.length());
+                ByteArrayOutputStream cont = aggregated.get(service);
+                if (cont == null) {
+                    cont = new ByteArrayOutputStream();
+                    aggregated.put(service, cont);
+                }
+                cont.write(("# " + jarEntry.getKey() + "\n").getBytes(StandardCharsets.UTF_8));
+                final InputStream is = jar.getInputStream(entry);
+                final byte[] bytes = ByteStreams.toByteArray(is);
+                is.close();
+                cont.write(bytes);
+                if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+                    cont.write('\n');
+                }
+            }
+            jar.close();
+        }
+        final Map<String, byte[]> result = new TreeMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : aggregated.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return result;
+    }
+
+    /**
+     * Return whether the jar {@code file} is signed.
+     */
+    protected static boolean isSigned(
+        final File file)
+        throws IOException
+    {
+        final JarFile jar = new JarFile(file);
+        try {
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                if (isSignatureEntry(entries.nextElement().getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    private static boolean isSignatureEntry(
+        final String name)
+    {
+        return name.startsWith("META-INF/")
+            && (name.endsWith(".SF") || name.endsWith(".DSA")
+                || name.endsWith(".RSA") || name.endsWith(".EC"));
+    }
+
+    /**
+     * Add {@code contents} to {@code jar} as a stored entry.
+     */
+    private static void addStoredEntry(
+        final JarOutputStream jar,
+        final String name,
+        final byte[] contents,
+        final long time)
+        throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(contents);
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(contents.length);
+        entry.setCompressedSize(contents.length);
+        entry.setCrc(crc.getValue());
+        if (time != -1) {
+            entry.setTime(time);
+        }
+        jar.putNextEntry(entry);
+        jar.write(contents);
+        jar.closeEntry();
+    }
+
+    /**
+     * Write the contents of all {@code sources} to a single jar
+     * {@code out}, all entries stored.  Where several sources contain
+     * the same entry, the first one (in classpath order) is used;
+     * service provider configuration files are concatenated.  The
+     * manifest of each source is kept below {@link
+     * EmJarClassLoader#MERGED_MANIFESTS_DIR}, and the source of each
+     * entry is listed in {@link EmJarClassLoader#MERGED_PROVENANCE}:
+     * a line <code>@&lt;source&gt;</code> for each source, followed by
+     * the names of the entries taken from it.
+     *
+     * @param sources  map of embedded path to jar file, in classpath order
+     */
+    protected void writeMergedJar(
+        final Map<String, File> sources,
+        final File out)
+        throws IOException
+    {
+        final Map<String, byte[]> services = aggregateServices(sources);
+        final Set<String> written = new HashSet<>();
+        final StringBuilder provenance = new StringBuilder();
+        final JarOutputStream jar = new JarOutputStream(new FileOutputStream(out, false));
+        try {
+            for (Map.Entry<String, File> source : sources.entrySet()) {
+                provenance.append('@').append(source.getKey()).append('\n');
+                final JarFile in = new JarFile(source.getValue());
+                try {
+                    final Manifest mf = in.getManifest();
+                    if (mf != null) {
+                        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        mf.write(bytes);
+                        addStoredEntry(jar,
+                                       EmJarClassLoader.MERGED_MANIFESTS_DIR + source.getKey() + ".MF",
+                                       bytes.toByteArray(), -1);
+                    }
+                    final Enumeration<JarEntry> entries = in.entries();
+                    while (entries.hasMoreElements()) {
+                        final JarEntry entry = entries.nextElement();
+                        final String name = entry.getName();
+                        if (JarFile.MANIFEST_NAME.equals(name)
+                            || isSignatureEntry(name)
+                            || name.startsWith(EmJarClassLoader.SERVICES_PREFIX)
+                            || name.startsWith("META-INF/emjar/")
+                            || !written.add(name))
+                        {
+                            continue;
+                        }
+                        final InputStream is = in.getInputStream(entry);
+                        final byte[] contents = ByteStreams.toByteArray(is);
+                        is.close();
+                        addStoredEntry(jar, name, contents, entry.getTime());
+                        if (!entry.isDirectory()) {
+                            provenance.append(name).append('\n');
+                        }
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+            for (Map.Entry<String, byte[]> service : services.entrySet()) {
+                addStoredEntry(jar, EmJarClassLoader.SERVICES_PREFIX + service.getKey(),
+                               service.getValue(), -1);
+            }
+            addStoredEntry(jar, EmJarClassLoader.MERGED_PROVENANCE,
+                           provenance.toString().getBytes(StandardCharsets.UTF_8), -1);
+        }
+        finally {
+            jar.close();
+        }
+    }
+
     /**
      * Scan an artifact (jar) file for entries; record all entries
      * that conflict with the contents of already scanned artifacts.
@@ -490,6 +813,10 @@ public class EmJarMojo
                 throw new MojoExecutionException(
                     "Invalid configuration; both ignoreConflicts and conflictsFatal set.");
             }
+            if (layered && merged) {
+                throw new MojoExecutionException(
+                    "Invalid configuration; both layered and merged set.");
+            }
             final JarFile main = new JarFile(mainJar);
             final Attributes mainAttrs = main.getManifest().getMainAttributes();
             final Manifest manifest = new Manifest();
@@ -508,6 +835,51 @@ public class EmJarMojo
                     bootAttrs.putValue(entry.getKey(), entry.getValue());
                 }
             }
+
+            seen.clear();
+            if (!ignoreConflicts) {
+                for (Artifact artifact : artifacts) {
+                    scanArtifact(artifact);
+                }
+            }
+            final List<Artifact> ordered = orderArtifacts(artifacts, explicitOrderings);
+            if (layered) {
+                final Map<String, List<Artifact>> layers
+                    = assignLayers(ordered, volatileArtifacts);
+                bootAttrs.putValue(EmJarClassLoader.EMJAR_CLASS_PATH_ATTR,
+                                   writeLayers(layers, ordered));
+            }
+            File mergedFile = null;
+            final List<Artifact> unmerged = new LinkedList<>();
+            if (merged) {
+                final Map<String, File> sources = new LinkedHashMap<>();
+                for (Artifact artifact : ordered) {
+                    if (isSigned(artifact.getFile())) {
+                        getLog().warn("Not merging signed artifact " + desc(artifact)
+                                      + ", embedding it after the merged jar");
+                        unmerged.add(artifact);
+                        continue;
+                    }
+                    sources.put("lib/" + artifact.getFile().getName(), artifact.getFile());
+                }
+                mergedFile = new File(outputDirectory, finalName + "-merged.jar");
+                getLog().info("Building merged jar: " + mergedFile.getPath());
+                writeMergedJar(sources, mergedFile);
+                bootAttrs.putValue(EmJarClassLoader.EMJAR_MERGED_JAR_ATTR,
+                                   "lib/" + mergedFile.getName());
+            }
+            Map<String, byte[]> services = null;
+            if (aggregateServices) {
+                final Map<String, File> embedded = new LinkedHashMap<>();
+                embedded.put("main/" + mainJar.getName(), mainJar);
+                for (Artifact artifact : ordered) {
+                    embedded.put("lib/" + artifact.getFile().getName(), artifact.getFile());
+                }
+                services = aggregateServices(embedded);
+                bootAttrs.putValue(EmJarClassLoader.EMJAR_SERVICE_REGISTRY_ATTR,
+                                   SERVICE_REGISTRY_DIR);
+            }
+
             final JarOutputStream jar
                 = new JarOutputStream(new FileOutputStream(outFile, false), manifest);
 
@@ -527,15 +899,26 @@ public class EmJarMojo
             loader.close();
 
             addJarToJarStream(jar, mainJar, "main");
-            seen.clear();
-            if (!ignoreConflicts) {
-                for (Artifact artifact : artifacts) {
-                    scanArtifact(artifact);
+            if (merged) {
+                addJarToJarStream(jar, mergedFile, "lib");
+                if (!mergedFile.delete()) {
+                    getLog().warn("Unable to delete " + mergedFile.getPath());
+                }
+                for (Artifact artifact : unmerged) {
+                    addJarToJarStream(jar, artifact.getFile(), "lib");
                 }
             }
-            final List<Artifact> ordered = orderArtifacts(artifacts, explicitOrderings);
-            for (Artifact artifact : ordered) {
-                addJarToJarStream(jar, artifact.getFile(), "lib");
+            else if (!layered) {
+                for (Artifact artifact : ordered) {
+                    addJarToJarStream(jar, artifact.getFile(), "lib");
+                }
+            }
+            if (services != null) {
+                for (Map.Entry<String, byte[]> service : services.entrySet()) {
+                    jar.putNextEntry(new ZipEntry(SERVICE_REGISTRY_DIR + service.getKey()));
+                    jar.write(service.getValue());
+                    jar.closeEntry();
+                }
             }
             jar.close();
         }
@@ -23,13 +23,26 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.google.common.io.ByteStreams;
+
 import static com.google.common.collect.Collections2.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
 
 @RunWith(JUnit4.class)
 public class EmJarMojoTest
@@ -187,4 +200,141 @@ public class EmJarMojoTest
             fail("Illegal ordering was not caught");
         }
     }
+
+    @Test
+    public void testLayerAssignment()
+        throws Exception
+    {
+        final Artifact snapshot = new DefaultArtifact(
+            "group", "idS", "0.1-SNAPSHOT", "compile", "jar", "", null);
+        final List<Artifact> ordered = new ArrayList<Artifact>() {{
+                add(ART_A);
+                add(snapshot);
+                add(ART_B);
+                add(ART_C);
+            }};
+        final EmJarMojo mojo = new EmJarMojo();
+        final Map<String, List<Artifact>> layers
+            = mojo.assignLayers(ordered, new String[]{toSpec(ART_B)});
+
+        final List<Artifact> knownStable = new ArrayList<Artifact>() {{
+                add(ART_A);
+                add(ART_C);
+            }};
+        final List<Artifact> knownVolatile = new ArrayList<Artifact>() {{
+                add(snapshot);
+                add(ART_B);
+            }};
+        assertEquals("Unexpected number of layers", 2, layers.size());
+        assertEquals("Stable layer not assigned as expected", knownStable, layers.get("stable"));
+        assertEquals("Volatile layer not assigned as expected", knownVolatile, layers.get("volatile"));
+    }
+
+    private static File serviceJar(String service, String providers)
+        throws Exception
+    {
+        final File file = File.createTempFile("emjar-mojo-test", ".jar");
+        file.deleteOnExit();
+        final JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+        jar.putNextEntry(new ZipEntry("META-INF/services/" + service));
+        jar.write(providers.getBytes("UTF-8"));
+        jar.closeEntry();
+        jar.close();
+        return file;
+    }
+
+    @Test
+    public void testServiceAggregation()
+        throws Exception
+    {
+        final Map<String, File> jars = new LinkedHashMap<>();
+        jars.put("main/main.jar", serviceJar("a.Service", "main.Impl"));
+        jars.put("lib/one.jar", serviceJar("a.Service", "one.Impl\n"));
+        jars.put("lib/two.jar", serviceJar("b.Service", "two.Impl\n"));
+
+        final Map<String, byte[]> services = new EmJarMojo().aggregateServices(jars);
+        assertEquals("Unexpected number of aggregated services", 2, services.size());
+        assertEquals("Service a.Service not aggregated in classpath order",
+                     "# main/main.jar\nmain.Impl\n# lib/one.jar\none.Impl\n",
+                     new String(services.get("a.Service"), "UTF-8"));
+        assertEquals("Service b.Service not aggregated as expected",
+                     "# lib/two.jar\ntwo.Impl\n",
+                     new String(services.get("b.Service"), "UTF-8"));
+    }
+
+    private static File contentJar(Manifest manifest, Map<String, String> entries)
+        throws Exception
+    {
+        final File file = File.createTempFile("emjar-mojo-test", ".jar");
+        file.deleteOnExit();
+        final JarOutputStream jar = manifest != null
+            ? new JarOutputStream(new FileOutputStream(file), manifest)
+            : new JarOutputStream(new FileOutputStream(file));
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            jar.putNextEntry(new ZipEntry(entry.getKey()));
+            jar.write(entry.getValue().getBytes("UTF-8"));
+            jar.closeEntry();
+        }
+        jar.close();
+        return file;
+    }
+
+    @Test
+    public void testMergedJar()
+        throws Exception
+    {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "one");
+        final Map<String, String> one = new LinkedHashMap<>();
+        one.put("a/A.class", "one A");
+        one.put("shared.txt", "one shared");
+        one.put("META-INF/services/a.Service", "one.Impl\n");
+        final Map<String, String> two = new LinkedHashMap<>();
+        two.put("b/B.class", "two B");
+        two.put("shared.txt", "two shared");
+        two.put("META-INF/services/a.Service", "two.Impl\n");
+
+        final Map<String, File> sources = new LinkedHashMap<>();
+        sources.put("lib/one.jar", contentJar(manifest, one));
+        sources.put("lib/two.jar", contentJar(null, two));
+        final File merged = File.createTempFile("emjar-mojo-test", ".jar");
+        merged.deleteOnExit();
+        new EmJarMojo().writeMergedJar(sources, merged);
+
+        final JarFile jar = new JarFile(merged);
+        try {
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                assertEquals("Entry " + entry.getName() + " not stored",
+                             ZipEntry.STORED, entry.getMethod());
+            }
+            assertEquals("First occurrence of duplicate entry not kept", "one shared",
+                         read(jar, "shared.txt"));
+            assertEquals("Entry of second source missing", "two B", read(jar, "b/B.class"));
+            assertEquals("Services not aggregated in classpath order",
+                         "# lib/one.jar\none.Impl\n# lib/two.jar\ntwo.Impl\n",
+                         read(jar, "META-INF/services/a.Service"));
+            assertEquals("Unexpected provenance",
+                         "@lib/one.jar\na/A.class\nshared.txt\n@lib/two.jar\nb/B.class\n",
+                         read(jar, "META-INF/emjar/provenance"));
+            assertTrue("Source manifest not recorded",
+                       read(jar, "META-INF/emjar/manifests/lib/one.jar.MF").contains(
+                           "Implementation-Title: one"));
+            assertNull("Manifest recorded for source without one",
+                       jar.getEntry("META-INF/emjar/manifests/lib/two.jar.MF"));
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    private static String read(JarFile jar, String name)
+        throws Exception
+    {
+        final ZipEntry entry = jar.getEntry(name);
+        assertNotNull("Entry " + name + " missing", entry);
+        return new String(ByteStreams.toByteArray(jar.getInputStream(entry)), "UTF-8");
+    }
 }
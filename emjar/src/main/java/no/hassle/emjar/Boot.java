@@ -16,16 +16,24 @@
 
 package no.hassle.emjar;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.jar.Attributes;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 /**
@@ -72,7 +80,22 @@ public class Boot
     public static Method findMain(Properties props)
         throws Exception
     {
-        final EmJarClassLoader loader = new EmJarClassLoader(ClassLoader.getSystemClassLoader());
+        // Construct the class loader (opening and inspecting the
+        // classpath) while the bundle manifest is read.
+        final FutureTask<EmJarClassLoader> loaderTask = new FutureTask<>(
+            new Callable<EmJarClassLoader>() {
+                @Override
+                public EmJarClassLoader call()
+                {
+                    return new EmJarClassLoader(ClassLoader.getSystemClassLoader());
+                }
+            });
+        final Thread loaderThread = new Thread(loaderTask, "emjar-init");
+        loaderThread.setDaemon(true);
+        loaderThread.start();
+
+        final Attributes attributes = getManifestAttributes();
+        final EmJarClassLoader loader = getLoader(loaderTask);
         Thread.currentThread().setContextClassLoader(loader);
 
         try {
@@ -94,17 +117,16 @@ public class Boot
 
         final String systemPropsName
             = props.getProperty(EMJAR_SYSTEM_PROPS_PROP,
-                                getManifestAttribute(EMJAR_SYSTEM_PROPS_ATTR));
+                                attributes.getValue(EMJAR_SYSTEM_PROPS_ATTR));
         if (systemPropsName != null) {
-            final InputStream is = loader.getResourceAsStream(systemPropsName);
-            if (is != null) {
-                props.load(new InputStreamReader(is));
-                is.close();
+            final ByteBuffer buf = loader.getResourceAsByteBuffer(systemPropsName);
+            if (buf != null) {
+                props.load(new InputStreamReader(new ByteBufferBackedInputStream(buf)));
             }
         }
         final String mainClassName
             = props.getProperty(EMJAR_MAIN_CLASS_PROP,
-                                getManifestAttribute(EMJAR_MAIN_CLASS_ATTR));
+                                attributes.getValue(EMJAR_MAIN_CLASS_ATTR));
         if (mainClassName == null) {
             throw new RuntimeException(
                 "No main class specified using "
@@ -116,20 +138,90 @@ public class Boot
         return mainClass.getDeclaredMethod("main", String[].class);
     }
 
-    private static String getManifestAttribute(String key)
+    private static EmJarClassLoader getLoader(FutureTask<EmJarClassLoader> loaderTask)
+        throws Exception
+    {
+        try {
+            return loaderTask.get();
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return the EmJar attributes of the bundle manifest.  When
+     * running from a bundle, its manifest is read directly from the
+     * (shared) bundle scan, which the class loader later attaches to.
+     * Otherwise, the first occurrence of each attribute among the
+     * manifests on the classpath is used.
+     */
+    private static Attributes getManifestAttributes()
         throws IOException
     {
+        final File bundle = getBundleFile();
+        if (bundle != null) {
+            try {
+                // The reference is held for the lifetime of the process.
+                final Manifest manifest
+                    = BundleRegistry.acquire(bundle.getAbsolutePath()).getManifest();
+                if (manifest != null) {
+                    return manifest.getMainAttributes();
+                }
+            }
+            catch (IOException e) {
+                if (EmJarClassLoader.DEBUG) {
+                    System.err.println("EmJar: unable to scan " + bundle + ": " + e.getMessage());
+                }
+            }
+        }
+
+        final Attributes found = new Attributes();
         final Enumeration<URL> manifests
-            = Boot.class.getClassLoader().getResources("META-INF/MANIFEST.MF");
+            = Boot.class.getClassLoader().getResources(JarFile.MANIFEST_NAME);
         while (manifests.hasMoreElements()) {
             final URL url = manifests.nextElement();
-            final Manifest manifest = new Manifest(url.openStream());
-            final Attributes attributes = manifest.getMainAttributes();
-            final String value = attributes.getValue(key);
-            if (value != null) {
-                return value;
+            final InputStream is = url.openStream();
+            final Attributes attributes;
+            try {
+                attributes = new Manifest(is).getMainAttributes();
+            }
+            finally {
+                is.close();
+            }
+            for (String key : new String[]{EMJAR_SYSTEM_PROPS_ATTR, EMJAR_MAIN_CLASS_ATTR}) {
+                if (found.getValue(key) == null && attributes.getValue(key) != null) {
+                    found.putValue(key, attributes.getValue(key));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return the jar file this class was loaded from, or null if not
+     * loaded from a local jar file.
+     */
+    private static File getBundleFile()
+    {
+        try {
+            final CodeSource source = Boot.class.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null
+                    || !"file".equals(source.getLocation().getProtocol())) {
+                return null;
             }
+            final File file = new File(source.getLocation().toURI());
+            return file.isFile() ? file : null;
+        }
+        catch (URISyntaxException | SecurityException | IllegalArgumentException e) {
+            return null;
         }
-        return null;
     }
 }
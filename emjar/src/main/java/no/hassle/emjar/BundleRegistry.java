@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Manifest;
+
+/**
+ * Process-wide registry of scanned bundles.  Class loaders over the
+ * same bundle share a single scan, and with it the storage, nested
+ * jar views and the softly cached inflated entry contents.  Bundles are reference
+ * counted: a loader acquires a bundle on first use and releases it
+ * when closed; the last release closes the underlying storage.
+ *
+ * <p>
+ * A bundle is reused only while its file is unchanged (same length
+ * and modification time); a replaced file is scanned afresh, leaving
+ * loaders attached to the previous scan undisturbed.
+ *
+ * <p>
+ * Bundles are registered by canonical path, so a bundle reached
+ * through a symbolic link or a relative path shares the scan of the
+ * file it points to.
+ *
+ */
+public class BundleRegistry
+{
+    private static final Map<String, Bundle> bundles = new HashMap<>();
+
+    private BundleRegistry()
+    {
+    }
+
+    /**
+     * A scanned bundle, shared by all loaders holding a reference.
+     */
+    public static class Bundle
+    {
+        private final String path;
+        private final String key;
+        private final long length;
+        private final long lastModified;
+        private final ZipScanner scanner;
+        private final Map<String, ZipScanner.NestedJar> nestedJars;
+        private int references = 0;
+
+        private Bundle(final String path, final String key, final File file)
+            throws IOException
+        {
+            this.path = path;
+            this.key = key;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.scanner = new ZipScanner(file);
+            try {
+                this.nestedJars = scanner.scan();
+            }
+            catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private boolean isCurrent(final File file)
+        {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public ZipScanner.NestedJar getNestedJar(final String name)
+        {
+            return nestedJars.get(name);
+        }
+
+        /**
+         * Return the manifest of the bundle itself, or null if it
+         * has none.
+         */
+        public Manifest getManifest()
+            throws IOException
+        {
+            return scanner.getManifest();
+        }
+
+        private void close()
+            throws IOException
+        {
+            final Storage storage = scanner.getStorage();
+            if (storage != null) {
+                storage.close();
+            }
+        }
+    }
+
+    /**
+     * Acquire a reference to the bundle at {@code path}, scanning it
+     * if no current scan is registered.
+     */
+    public static Bundle acquire(final String path)
+        throws IOException
+    {
+        final File file = new File(path);
+        final String key = getKey(file);
+        synchronized (bundles) {
+            Bundle bundle = bundles.get(key);
+            if (bundle == null || !bundle.isCurrent(file)) {
+                if (EmJarClassLoader.DEBUG) {
+                    System.err.println("EmJar: scanning bundle " + key);
+                }
+                bundle = new Bundle(path, key, file);
+                bundles.put(key, bundle);
+            }
+            bundle.references++;
+            return bundle;
+        }
+    }
+
+    /**
+     * Release a reference obtained through {@link #acquire}.  When the
+     * last reference is released the bundle is dropped from the
+     * registry and its storage closed.
+     */
+    public static void release(final Bundle bundle)
+        throws IOException
+    {
+        synchronized (bundles) {
+            if (bundle.references <= 0) {
+                throw new IllegalStateException("Bundle already released: " + bundle.path);
+            }
+            if (--bundle.references > 0) {
+                return;
+            }
+            if (bundles.get(bundle.key) == bundle) {
+                bundles.remove(bundle.key);
+            }
+        }
+        if (EmJarClassLoader.DEBUG) {
+            System.err.println("EmJar: releasing bundle " + bundle.key);
+        }
+        bundle.close();
+    }
+
+    /**
+     * Return number of references held to the registered scan of the
+     * bundle at {@code path}, or 0 if none is registered.
+     */
+    public static int getReferenceCount(final String path)
+    {
+        final String key = getKey(new File(path));
+        synchronized (bundles) {
+            final Bundle bundle = bundles.get(key);
+            return bundle != null ? bundle.references : 0;
+        }
+    }
+
+    /**
+     * Return the registry key of {@code file}: its canonical path, or
+     * its absolute path if that cannot be resolved.
+     */
+    private static String getKey(final File file)
+    {
+        try {
+            return file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
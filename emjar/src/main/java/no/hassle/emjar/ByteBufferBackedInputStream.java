@@ -18,11 +18,14 @@ package no.hassle.emjar;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
 public class ByteBufferBackedInputStream
     extends InputStream
 {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
     private final ByteBuffer buf;
 
     public ByteBufferBackedInputStream(ByteBuffer buf)
@@ -50,4 +53,54 @@ public class ByteBufferBackedInputStream
         buf.get(bytes, off, len);
         return len;
     }
+
+    @Override
+    public long skip(long n)
+    {
+        if (n <= 0) {
+            return 0;
+        }
+        final int skipped = (int) Math.min(n, buf.remaining());
+        buf.position(buf.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return buf.remaining();
+    }
+
+    /**
+     * Return all remaining bytes, copied in a single bulk operation.
+     */
+    public byte[] readAllBytes()
+    {
+        final byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write all remaining bytes to {@code out}, directly from the
+     * backing array where there is one, and returning the number of
+     * bytes written.
+     */
+    public long transferTo(OutputStream out)
+        throws IOException
+    {
+        final int length = buf.remaining();
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), length);
+            buf.position(buf.limit());
+            return length;
+        }
+        final byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+        while (buf.hasRemaining()) {
+            final int len = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+        return length;
+    }
 }
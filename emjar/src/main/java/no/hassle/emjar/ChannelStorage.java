@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage backend using positional reads on a file channel.  Reads
+ * that fall within a single block are served from a bounded, least
+ * recently used cache of heap blocks; larger reads go directly to the
+ * file.  No part of the file is mapped into memory.
+ *
+ * <p>
+ * Positional reads take no lock, so concurrent loaders over the
+ * bundle read in parallel.  Interrupting a thread blocked in a
+ * channel read closes the channel for every reader; the storage then
+ * reopens the file and retries the read, leaving the interrupt status
+ * of the interrupted thread set.
+ *
+ */
+public class ChannelStorage
+    extends Storage
+{
+    public final static int BLOCK_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long length;
+    private final Map<Long, ByteBuffer> blocks;
+    private volatile FileChannel chan;
+    private volatile boolean closed;
+
+    public ChannelStorage(final File file, final int maxBlocks)
+        throws IOException
+    {
+        this.file = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        // Unlike the channel's size(), this is not interruptible
+        length = raf.length();
+        chan = raf.getChannel();
+        blocks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+                    return size() > maxBlocks;
+                }
+            };
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, final int length)
+        throws IOException
+    {
+        checkBounds(offset, length);
+        final long block = offset / BLOCK_SIZE;
+        if (length == 0 || block != (offset + length - 1) / BLOCK_SIZE) {
+            final ByteBuffer buf = ByteBuffer.allocate(length);
+            readFully(buf, offset);
+            buf.flip();
+            return buf;
+        }
+        final ByteBuffer constrained = getBlock(block).duplicate();
+        final int start = (int) (offset - block * BLOCK_SIZE);
+        constrained.position(start);
+        constrained.limit(start + length);
+        return constrained.slice();
+    }
+
+    private ByteBuffer getBlock(final long block)
+        throws IOException
+    {
+        synchronized (blocks) {
+            final ByteBuffer cached = blocks.get(block);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final long start = block * BLOCK_SIZE;
+        final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, length - start));
+        readFully(buf, start);
+        buf.flip();
+        final ByteBuffer readOnly = buf.asReadOnlyBuffer();
+        synchronized (blocks) {
+            blocks.put(block, readOnly);
+        }
+        return readOnly;
+    }
+
+    private void readFully(final ByteBuffer buf, final long offset)
+        throws IOException
+    {
+        final int start = buf.position();
+        boolean interrupted = false;
+        try {
+            while (buf.hasRemaining()) {
+                final FileChannel current = chan;
+                final long pos = offset + buf.position() - start;
+                final int read;
+                try {
+                    read = current.read(buf, pos);
+                }
+                catch (ClosedChannelException e) {
+                    // Closed by an interrupt, in this thread or another
+                    interrupted |= Thread.interrupted();
+                    reopen(current);
+                    continue;
+                }
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of file at " + pos);
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void reopen(final FileChannel current)
+        throws IOException
+    {
+        if (closed) {
+            throw new IOException("Storage closed");
+        }
+        if (chan != current) {
+            return;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        if (raf.length() != length) {
+            raf.close();
+            throw new IOException("File changed while open: " + file);
+        }
+        chan = raf.getChannel();
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        closed = true;
+        synchronized (blocks) {
+            blocks.clear();
+        }
+        chan.close();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry visitor collecting the names of classes found, for use by
+ * package scanners that register classes by name (e.g. Jersey's
+ * <code>ResourceConfig.registerClasses</code> after filtering on
+ * annotations) instead of crawling the classpath through URLs.
+ * Package and module descriptors are skipped.
+ *
+ */
+public class ClassNameCollector
+    implements EntryVisitor
+{
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Set<String> classNames
+        = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final boolean recursive;
+    private final String prefix;
+
+    /**
+     * Collect classes of package {@code packageName}, including
+     * subpackages if {@code recursive}.
+     */
+    public ClassNameCollector(final String packageName, final boolean recursive)
+    {
+        this.prefix = getPrefix(packageName);
+        this.recursive = recursive;
+    }
+
+    /**
+     * Return the entry name prefix of the given package.
+     */
+    public static String getPrefix(final String packageName)
+    {
+        return packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/";
+    }
+
+    /**
+     * Return names of all classes in package {@code packageName} (and
+     * subpackages if {@code recursive}) on the classpath of {@code
+     * loader}, in sorted order.
+     */
+    public static Set<String> findClassNames(
+            final EmJarClassLoader loader,
+            final String packageName,
+            final boolean recursive)
+        throws IOException
+    {
+        final ClassNameCollector collector = new ClassNameCollector(packageName, recursive);
+        loader.visitEntries(collector.prefix, collector);
+        return collector.getClassNames();
+    }
+
+    @Override
+    public void visit(final Entry entry)
+    {
+        final String name = entry.getName();
+        if (!name.startsWith(prefix) || !name.endsWith(CLASS_SUFFIX)) {
+            return;
+        }
+        if (!recursive && name.indexOf('/', prefix.length()) >= 0) {
+            return;
+        }
+        final String className
+            = name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.');
+        if (className.endsWith("package-info") || className.endsWith("module-info")) {
+            return;
+        }
+        classNames.add(className);
+    }
+
+    /**
+     * Return names of classes collected so far, in sorted order.
+     */
+    public Set<String> getClassNames()
+    {
+        return new TreeSet<>(classNames);
+    }
+}
@@ -25,17 +25,39 @@ import java.net.URLClassLoader;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 /**
  * Class loader able to use embedded jars as part of the classpath.
@@ -66,7 +88,20 @@ import java.io.IOException;
  * EmJar-specific classpath contained in the
  * <strong><code>emjar.class.path</code></strong> property if this is
  * desired.
+ *
+ * <p/>
+ * A bundle may be split into several layers, e.g to allow container
+ * images to cache rarely changing dependencies separately from the
+ * application code.  The jars embedded in sibling layer bundles are
+ * listed in the <strong><code>EmJar-Class-Path</code></strong>
+ * manifest attribute of the main bundle, in classpath order, and are
+ * added after the jars embedded in the main bundle itself.
 
+ * <p/>
+ * Setting the <strong><code>emjar.preload</code></strong> property to
+ * <code>true</code> preloads all embedded jars, as if compressed, e.g
+ * to compare the two strategies.
+ *
  * <p/>
  * For a less manual approach that embeds all configuration in the
  * bundled jar, see {@link Boot}.
@@ -85,10 +120,20 @@ public class EmJarClassLoader
     public final static String EMJAR_LOG_QUIET_PROP = "emjar.log.quiet";
     public final static String EMJAR_LOG_DEBUG_PROP = "emjar.log.debug";
     public final static String EMJAR_CLASS_PATH_PROP = "emjar.class.path";
+    public final static String EMJAR_PRELOAD_PROP = "emjar.preload";
+    public final static String EMJAR_CLASS_PATH_ATTR = "EmJar-Class-Path";
+    public final static String EMJAR_SERVICE_REGISTRY_ATTR = "EmJar-Service-Registry";
+    public final static String EMJAR_MERGED_JAR_ATTR = "EmJar-Merged-Jar";
+    public final static String SERVICES_PREFIX = "META-INF/services/";
+    public final static String MERGED_PROVENANCE = "META-INF/emjar/provenance";
+    public final static String MERGED_MANIFESTS_DIR = "META-INF/emjar/manifests/";
     public final static String JAVA_CLASS_PATH_PROP = "java.class.path";
 
     protected static boolean DEBUG = false;
     protected static boolean QUIET = false;
+    protected static boolean PRELOAD = false;
+
+    private static final AtomicLong bytesInflated = new AtomicLong();
 
     public final static String SEPARATOR = "!/";
 
@@ -100,34 +145,57 @@ public class EmJarClassLoader
         }
     }
 
+    private final Handler handler;
+    private final List<ServiceRegistry> registries;
+    private final List<MergedJar> mergedJars;
+    private List<Object> serviceSources = null;
+
     private EmJarClassLoader(
-            final Handler handler, final Properties props, final ClassLoader parent) {
-        super(getClassPath(props, handler), parent, new HandlerFactory(handler));
+            final Handler handler,
+            final List<ServiceRegistry> registries,
+            final List<MergedJar> mergedJars,
+            final Properties props,
+            final ClassLoader parent) {
+        super(getClassPath(props, handler, registries, mergedJars),
+              parent, new HandlerFactory(handler));
+        this.handler = handler;
+        this.registries = registries;
+        this.mergedJars = mergedJars;
     }
 
     public EmJarClassLoader()
     {
-        this(new Handler(), System.getProperties(), null);
+        this(new Handler(), new ArrayList<ServiceRegistry>(), new ArrayList<MergedJar>(),
+             System.getProperties(), null);
     }
 
     public EmJarClassLoader(final ClassLoader parent)
     {
-        this(new Handler(), System.getProperties(), parent);
+        this(new Handler(), new ArrayList<ServiceRegistry>(), new ArrayList<MergedJar>(),
+             System.getProperties(), parent);
     }
 
     protected EmJarClassLoader(final Properties props)
     {
-        this(new Handler(), props, null);
+        this(new Handler(), new ArrayList<ServiceRegistry>(), new ArrayList<MergedJar>(),
+             props, null);
     }
 
-    private static URL[] getClassPath(final Properties props, final Handler handler)
+    private static URL[] getClassPath(
+            final Properties props,
+            final Handler handler,
+            final List<ServiceRegistry> registries,
+            final List<MergedJar> mergedJars)
     {
         QUIET = "true".equalsIgnoreCase(props.getProperty(EMJAR_LOG_QUIET_PROP, ""));
         DEBUG = "true".equalsIgnoreCase(props.getProperty(EMJAR_LOG_DEBUG_PROP, ""));
+        PRELOAD = "true".equalsIgnoreCase(props.getProperty(EMJAR_PRELOAD_PROP, ""));
 
         final ArrayList<URL> urls = new ArrayList<>();
-        addClassPathUrls(props.getProperty(JAVA_CLASS_PATH_PROP), urls, handler, false);
-        addClassPathUrls(props.getProperty(EMJAR_CLASS_PATH_PROP), urls, handler, true);
+        addClassPathUrls(props.getProperty(JAVA_CLASS_PATH_PROP),
+                         urls, handler, registries, mergedJars, false);
+        addClassPathUrls(props.getProperty(EMJAR_CLASS_PATH_PROP),
+                         urls, handler, registries, mergedJars, true);
         if (DEBUG) {
             System.err.println("EmJar: using classpath " + urls);
         }
@@ -138,6 +206,8 @@ public class EmJarClassLoader
             final String classPath,
             final List<URL> urls,
             final Handler handler,
+            final List<ServiceRegistry> registries,
+            final List<MergedJar> mergedJars,
             final boolean force) {
         if (classPath == null) {
             return;
@@ -159,18 +229,45 @@ public class EmJarClassLoader
                         continue;
                     }
                 }
+                final String registryDir = mf != null
+                    ? mf.getMainAttributes().getValue(EMJAR_SERVICE_REGISTRY_ATTR)
+                    : null;
+                final String mergedJar = mf != null
+                    ? mf.getMainAttributes().getValue(EMJAR_MERGED_JAR_ATTR)
+                    : null;
+                final Set<String> services = new HashSet<>();
+                final int first = urls.size();
                 final Enumeration<JarEntry> embedded = jar.entries();
                 while (embedded.hasMoreElements()) {
                     final JarEntry entry = embedded.nextElement();
-                    if (entry.getName().endsWith(".jar")) {
+                    final String name = entry.getName();
+                    if (name.endsWith(".jar")) {
                         final URI nested = new URI(
                             "jar:file",
-                            file.getAbsolutePath() + SEPARATOR + entry.getName(),
+                            file.getAbsolutePath() + SEPARATOR + name,
                             null);
                         urls.add(uriToUrl(nested, handler));
+                        if (name.equals(mergedJar)) {
+                            mergedJars.add(new MergedJar(file, name, handler));
+                        }
+                    }
+                    else if (registryDir != null
+                             && name.startsWith(registryDir)
+                             && !entry.isDirectory()) {
+                        services.add(name.substring(registryDir.length()));
                     }
                 }
                 jar.close();
+                if (mf != null) {
+                    final String layers = mf.getMainAttributes().getValue(EMJAR_CLASS_PATH_ATTR);
+                    if (layers != null) {
+                        addLayerUrls(file, layers, urls, handler);
+                    }
+                }
+                if (registryDir != null) {
+                    registries.add(new ServiceRegistry(
+                                       file, registryDir, services, urls.subList(first, urls.size())));
+                }
             }
             catch (IOException|URISyntaxException e) {
                 if (!QUIET) {
@@ -184,6 +281,566 @@ public class EmJarClassLoader
         }
     }
 
+    /**
+     * Add the jars embedded in sibling layer bundles, as listed by
+     * the {@value #EMJAR_CLASS_PATH_ATTR} manifest attribute of
+     * {@code bundle}.  Each element is a relative URL on the form
+     * <code>layer.jar!/lib/dependency.jar</code>, resolved against
+     * the directory containing {@code bundle}.  Elements are added in
+     * the order given, which reflects the precedence decided when the
+     * layers were built.
+     */
+    private static void addLayerUrls(
+            final File bundle,
+            final String layers,
+            final List<URL> urls,
+            final Handler handler)
+        throws IOException, URISyntaxException
+    {
+        final File dir = bundle.getAbsoluteFile().getParentFile();
+        for (String elem : layers.trim().split("\\s+")) {
+            final String path = new URI(elem).getPath();
+            final int i = path.indexOf(SEPARATOR);
+            if (i < 0) {
+                if (!QUIET) {
+                    System.err.println("EmJar: ignoring malformed layer entry " + elem);
+                }
+                continue;
+            }
+            final File layer = new File(dir, path.substring(0, i));
+            final URI nested = new URI(
+                "jar:file",
+                layer.getAbsolutePath() + path.substring(i),
+                null);
+            urls.add(uriToUrl(nested, handler));
+        }
+    }
+
+    /**
+     * Return the sources to consult for service provider
+     * configuration files, in classpath order.  Each source is either
+     * a {@link ServiceRegistry}, standing in for all nested jars it
+     * covers, or a class loader for a run of uncovered classpath
+     * elements.
+     */
+    private synchronized List<Object> getServiceSources()
+    {
+        if (serviceSources == null) {
+            final List<Object> sources = new ArrayList<>();
+            final List<URL> uncovered = new ArrayList<>();
+            for (URL url : getURLs()) {
+                ServiceRegistry covering = null;
+                for (ServiceRegistry registry : registries) {
+                    if (registry.covers(url)) {
+                        covering = registry;
+                        break;
+                    }
+                }
+                if (covering == null) {
+                    uncovered.add(url);
+                    continue;
+                }
+                if (!uncovered.isEmpty()) {
+                    sources.add(new URLClassLoader(uncovered.toArray(new URL[0]), null));
+                    uncovered.clear();
+                }
+                if (!sources.contains(covering)) {
+                    sources.add(covering);
+                }
+            }
+            if (!uncovered.isEmpty()) {
+                sources.add(new URLClassLoader(uncovered.toArray(new URL[0]), null));
+            }
+            serviceSources = sources;
+        }
+        return serviceSources;
+    }
+
+    /**
+     * Find resources with the given name.  Service provider
+     * configuration files (<code>META-INF/services/*</code>) are
+     * served from the aggregated registries of bundles built with
+     * one, without opening the nested jars the registry covers.
+     */
+    @Override
+    public Enumeration<URL> findResources(final String name)
+        throws IOException
+    {
+        if (registries.isEmpty() || !name.startsWith(SERVICES_PREFIX)) {
+            return super.findResources(name);
+        }
+        final String service = name.substring(SERVICES_PREFIX.length());
+        final List<URL> found = new ArrayList<>();
+        for (Object source : getServiceSources()) {
+            if (source instanceof ServiceRegistry) {
+                final URL url = ((ServiceRegistry) source).getUrl(service);
+                if (url != null) {
+                    found.add(url);
+                }
+            }
+            else {
+                found.addAll(Collections.list(((URLClassLoader) source).findResources(name)));
+            }
+        }
+        if (DEBUG) {
+            System.err.println("EmJar: service registry lookup for " + name + ": " + found);
+        }
+        return Collections.enumeration(found);
+    }
+
+    /**
+     * Return a read-only buffer holding the contents of the resource
+     * with the given name, or null if the resource could not be
+     * found.  Resources stored uncompressed in nested jars are
+     * returned as slices of the bundle without copying; compressed
+     * ones as views of the inflated contents.  Resources found
+     * elsewhere are read into a new buffer.
+     * <p>
+     * The buffer stays valid after this loader is closed.  A slice of
+     * a mapped bundle keeps the mapping in memory for as long as it is
+     * reachable, so it should not be retained longer than needed.
+     */
+    public ByteBuffer getResourceAsByteBuffer(final String name)
+        throws IOException
+    {
+        final URL url = getResource(name);
+        if (url == null) {
+            return null;
+        }
+        return readUrl(url);
+    }
+
+    /**
+     * Return a read-only buffer holding the contents of {@code url}.
+     */
+    private static ByteBuffer readUrl(final URL url)
+        throws IOException
+    {
+        final URLConnection conn = url.openConnection();
+        if (conn instanceof OndemandEmbeddedJar.Connection) {
+            return ((OndemandEmbeddedJar.Connection) conn).getByteBuffer();
+        }
+        if (conn instanceof PreloadedEmbeddedJar.Connection) {
+            return ((PreloadedEmbeddedJar.Connection) conn).getByteBuffer();
+        }
+        final int length = conn.getContentLength();
+        final ByteArrayOutputStream bytes
+            = new ByteArrayOutputStream(length > 0 ? length : 8192);
+        final InputStream is = conn.getInputStream();
+        try {
+            final byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) >= 0) {
+                bytes.write(buf, 0, read);
+            }
+        }
+        finally {
+            is.close();
+        }
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Return the total number of bytes inflated from compressed
+     * entries by EmJar in this JVM, for diagnostics.
+     */
+    public static long getBytesInflated()
+    {
+        return bytesInflated.get();
+    }
+
+    static void countInflated(final long bytes)
+    {
+        bytesInflated.addAndGet(bytes);
+    }
+
+    /**
+     * Find and define the class with the given name.  Classes found in
+     * merged jars are defined with the code source and package
+     * metadata of the artifact they were taken from.
+     */
+    @Override
+    protected Class<?> findClass(final String name)
+        throws ClassNotFoundException
+    {
+        if (!mergedJars.isEmpty()) {
+            final String path = name.replace('.', '/') + ".class";
+            final URL url = findResource(path);
+            if (url != null) {
+                for (MergedJar merged : mergedJars) {
+                    if (merged.contains(url)) {
+                        try {
+                            return defineMergedClass(merged, name, path, url);
+                        }
+                        catch (IOException|URISyntaxException e) {
+                            throw new ClassNotFoundException(name, e);
+                        }
+                    }
+                }
+            }
+        }
+        return super.findClass(name);
+    }
+
+    private Class<?> defineMergedClass(
+            final MergedJar merged,
+            final String name,
+            final String path,
+            final URL url)
+        throws IOException, URISyntaxException
+    {
+        final String source = merged.getSource(path);
+        final URL location = source != null ? merged.getSourceUrl(source) : merged.getUrl();
+        final Manifest manifest = source != null ? merged.getManifest(source) : null;
+        final int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            final String pkg = name.substring(0, dot);
+            if (getPackage(pkg) == null) {
+                try {
+                    if (manifest != null) {
+                        definePackage(pkg, manifest, location);
+                    }
+                    else {
+                        definePackage(pkg, null, null, null, null, null, null, null);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // Defined concurrently
+                }
+            }
+        }
+        return defineClass(name, readUrl(url), new CodeSource(location, (CodeSigner[]) null));
+    }
+
+    /**
+     * Visit all entries whose names start with {@code prefix}, in all
+     * classpath elements of this loader, using a shared pool of daemon
+     * threads sized by the number of available processors.  Visitors
+     * must not call this method themselves, as nested visits could
+     * exhaust the pool.
+     *
+     * @see #visitEntries(String, EntryVisitor, ExecutorService)
+     */
+    public void visitEntries(final String prefix, final EntryVisitor visitor)
+        throws IOException
+    {
+        visitEntries(prefix, visitor, VisitorPool.executor);
+    }
+
+    /**
+     * Visit all entries whose names start with {@code prefix}, in all
+     * classpath elements of this loader.  Classpath elements are
+     * traversed in parallel using {@code executor}; entries within one
+     * element are visited sequentially.  Entries of nested jars are
+     * served straight from the scanned bundle index, without going
+     * through URL connections.  Returns when all elements have been
+     * traversed.
+     */
+    public void visitEntries(
+            final String prefix,
+            final EntryVisitor visitor,
+            final ExecutorService executor)
+        throws IOException
+    {
+        final List<Future<Void>> tasks = new ArrayList<>();
+        for (final URL url : getURLs()) {
+            tasks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call()
+                        throws IOException
+                    {
+                        visitUrl(url, prefix, visitor);
+                        return null;
+                    }
+                }));
+        }
+        IOException failure = null;
+        for (Future<Void> task : tasks) {
+            try {
+                task.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while visiting entries");
+            }
+            catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    failure = (IOException) cause;
+                }
+                else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                else {
+                    throw new IOException(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void visitUrl(final URL url, final String prefix, final EntryVisitor visitor)
+        throws IOException
+    {
+        try {
+            final URI uri = url.toURI();
+            if ("file".equals(uri.getScheme())) {
+                final File file = new File(uri);
+                if (file.isDirectory()) {
+                    EntryWalker.visitDirectory(url, file, prefix, visitor);
+                }
+                else if (file.isFile()) {
+                    EntryWalker.visitJarFile(url, file, prefix, visitor);
+                }
+                return;
+            }
+            if (!"jar".equals(uri.getScheme())) {
+                if (DEBUG) {
+                    System.err.println("EmJar: not visiting classpath element " + url);
+                }
+                return;
+            }
+            final String path = new URI(uri.getRawSchemeSpecificPart()).getSchemeSpecificPart();
+            final int i = path.indexOf(SEPARATOR);
+            if (i < 0) {
+                throw new IOException("Unable to parse " + url);
+            }
+            final String root = path.substring(0, i);
+            final String nested = path.substring(i + SEPARATOR.length());
+            final ZipScanner.NestedJar nestedJar = handler.getNestedJar(root, nested);
+            final Map<String, OndemandEmbeddedJar.Descriptor> descriptors
+                = nestedJar != null ? nestedJar.getDescriptors() : null;
+            if (descriptors != null) {
+                EntryWalker.visitDescriptors(url, descriptors, prefix, visitor);
+                return;
+            }
+            final JarFile bundle = new JarFile(root);
+            try {
+                final JarEntry entry = bundle.getJarEntry(nested);
+                if (entry != null) {
+                    EntryWalker.visitJarStream(url, bundle.getInputStream(entry), prefix, visitor);
+                }
+            }
+            finally {
+                bundle.close();
+            }
+        }
+        catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Close this class loader.  All jar files opened by the loader are
+     * closed, and its references to shared bundle scans released; the
+     * storage of a bundle is closed as soon as no open loader refers
+     * to it.  Buffers previously returned by {@link
+     * #getResourceAsByteBuffer} remain readable; a mapping they refer
+     * to is released by the garbage collector once they are gone.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try {
+            super.close();
+        }
+        finally {
+            try {
+                closeServiceSources();
+            }
+            finally {
+                handler.release();
+            }
+        }
+    }
+
+    private synchronized void closeServiceSources()
+        throws IOException
+    {
+        if (serviceSources == null) {
+            return;
+        }
+        IOException failure = null;
+        for (Object source : serviceSources) {
+            if (source instanceof URLClassLoader) {
+                try {
+                    ((URLClassLoader) source).close();
+                }
+                catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        serviceSources = null;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Aggregated service provider configuration files stored in a
+     * bundle at build time.  The registry holds the combined contents
+     * of all <code>META-INF/services/*</code> files found in the jars
+     * nested in the bundle (and its layers), in classpath order.
+     */
+    private static class ServiceRegistry
+    {
+        private final File bundle;
+        private final String dir;
+        private final Set<String> services;
+        private final Set<String> covered;
+
+        public ServiceRegistry(
+                final File bundle,
+                final String dir,
+                final Set<String> services,
+                final List<URL> covered) {
+            this.bundle = bundle;
+            this.dir = dir;
+            this.services = services;
+            this.covered = new HashSet<>();
+            for (URL url : covered) {
+                this.covered.add(url.toString());
+            }
+        }
+
+        public boolean covers(final URL url)
+        {
+            return covered.contains(url.toString());
+        }
+
+        public URL getUrl(final String service)
+            throws IOException
+        {
+            if (!services.contains(service)) {
+                return null;
+            }
+            try {
+                return new URI(
+                    "jar:file",
+                    bundle.getAbsolutePath() + SEPARATOR + dir + service,
+                    null).toURL();
+            }
+            catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Flat jar merging the contents of several artifacts, as built by
+     * the EmJar Maven plugin in merged mode.  Records the artifact each
+     * entry was taken from (see {@link #MERGED_PROVENANCE}), so that
+     * classes can be defined with their original code source and
+     * package metadata.
+     */
+    private static class MergedJar
+    {
+        private final File bundle;
+        private final Handler handler;
+        private final URL url;
+        private final String prefix;
+        private final Map<String, Manifest> manifests = new HashMap<>();
+        private Map<String, String> sources = null;
+
+        public MergedJar(final File bundle, final String name, final Handler handler)
+            throws URISyntaxException, MalformedURLException
+        {
+            this.bundle = bundle;
+            this.handler = handler;
+            this.url = getSourceUrl(name);
+            this.prefix = "jar:" + url + SEPARATOR;
+        }
+
+        /**
+         * Return the classpath URL of the merged jar.
+         */
+        public URL getUrl()
+        {
+            return url;
+        }
+
+        /**
+         * Return whether {@code resource} was found in this jar.
+         */
+        public boolean contains(final URL resource)
+        {
+            return resource.toString().startsWith(prefix);
+        }
+
+        /**
+         * Return the URL an embedded (unmerged) artifact {@code source}
+         * would have had on the classpath.
+         */
+        public URL getSourceUrl(final String source)
+            throws URISyntaxException, MalformedURLException
+        {
+            return uriToUrl(
+                new URI("jar:file", bundle.getAbsolutePath() + SEPARATOR + source, null),
+                handler);
+        }
+
+        private ByteBuffer read(final String entry)
+            throws IOException, URISyntaxException
+        {
+            return readUrl(new URL(
+                "jar", "", -1,
+                url + SEPARATOR + new URI(null, null, entry, null).getRawPath(),
+                handler));
+        }
+
+        /**
+         * Return the artifact {@code entry} was taken from, or null if
+         * not recorded.
+         */
+        public synchronized String getSource(final String entry)
+            throws IOException, URISyntaxException
+        {
+            if (sources == null) {
+                sources = new HashMap<>();
+                final String list
+                    = StandardCharsets.UTF_8.decode(read(MERGED_PROVENANCE)).toString();
+                String source = null;
+                for (String line : list.split("\n")) {
+                    if (line.startsWith("@")) {
+                        source = line.substring(1);
+                    }
+                    else if (source != null && !line.isEmpty()) {
+                        sources.put(line, source);
+                    }
+                }
+            }
+            return sources.get(entry);
+        }
+
+        /**
+         * Return the manifest of artifact {@code source}, or null if
+         * it had none.
+         */
+        public synchronized Manifest getManifest(final String source)
+            throws IOException, URISyntaxException
+        {
+            if (!manifests.containsKey(source)) {
+                Manifest manifest = null;
+                try {
+                    manifest = new Manifest(new ByteBufferBackedInputStream(
+                                                read(MERGED_MANIFESTS_DIR + source + ".MF")));
+                }
+                catch (FileNotFoundException e) {
+                    // No manifest recorded
+                }
+                manifests.put(source, manifest);
+            }
+            return manifests.get(source);
+        }
+    }
+
     private static URL uriToUrl(URI uri, Handler handler)
         throws MalformedURLException
     {
@@ -196,6 +853,34 @@ public class EmJarClassLoader
             handler);
     }
 
+    /**
+     * Default executor for {@link #visitEntries}, created on first
+     * use.  Idle threads are let go, so the pool costs nothing between
+     * visits.
+     */
+    private static class VisitorPool
+    {
+        private static final ExecutorService executor;
+
+        static {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        final Thread thread = new Thread(r, "emjar-visit");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+    }
+
     private static class HandlerFactory
         implements URLStreamHandlerFactory
     {
@@ -217,7 +902,7 @@ public class EmJarClassLoader
     {
         private final Map<String, JarURLConnection> connections
             = new ConcurrentHashMap<>();
-        private final Map<String, Map<String, Map<String, OndemandEmbeddedJar.Descriptor>>> rootJars
+        private final Map<String, BundleRegistry.Bundle> rootJars
             = new ConcurrentHashMap<>();
 
         @Override
@@ -285,21 +970,9 @@ public class EmJarClassLoader
                             return urlDefaultHandler.openConnection();
                         }
 
-                        Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> rootJar
-                            = rootJars.get(root);
-                        if (rootJar == null) {
-                            synchronized (rootJars) {
-                                rootJar = rootJars.get(root);
-                                if (rootJar == null) {
-                                    final ZipScanner scanner
-                                        = new ZipScanner(new File(root));
-                                    rootJar = scanner.scan();
-                                    rootJars.put(root, rootJar);
-                                }
-                            }
-                        }
+                        final ZipScanner.NestedJar nestedJar = getNestedJar(root, nested);
                         final Map<String, OndemandEmbeddedJar.Descriptor> descriptors
-                            = rootJar.get(nested);
+                            = nestedJar != null && !PRELOAD ? nestedJar.getDescriptors() : null;
                         final URL rootUrl = new URL("jar:file:" + root + SEPARATOR);
                         if (descriptors != null) {
                             conn = new OndemandEmbeddedJar.Connection(
@@ -315,5 +988,64 @@ public class EmJarClassLoader
             }
             return conn;
         }
+
+        /**
+         * Return the scanned nested jar {@code nested} of the bundle
+         * at {@code root}, or null if not stored in a way allowing
+         * on-demand loading.  The bundle is acquired from the {@link
+         * BundleRegistry} on first use.
+         */
+        public ZipScanner.NestedJar getNestedJar(final String root, final String nested)
+            throws IOException
+        {
+            BundleRegistry.Bundle rootJar = rootJars.get(root);
+            if (rootJar == null) {
+                synchronized (rootJars) {
+                    rootJar = rootJars.get(root);
+                    if (rootJar == null) {
+                        rootJar = BundleRegistry.acquire(root);
+                        rootJars.put(root, rootJar);
+                    }
+                }
+            }
+            return rootJar.getNestedJar(nested);
+        }
+
+        /**
+         * Close all connections, and release the bundles acquired from
+         * the {@link BundleRegistry}.
+         */
+        public void release()
+            throws IOException
+        {
+            IOException failure = null;
+            synchronized (connections) {
+                for (JarURLConnection conn : connections.values()) {
+                    try {
+                        if (conn instanceof Closeable) {
+                            ((Closeable) conn).close();
+                        }
+                    }
+                    catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                connections.clear();
+            }
+            synchronized (rootJars) {
+                for (BundleRegistry.Bundle bundle : rootJars.values()) {
+                    try {
+                        BundleRegistry.release(bundle);
+                    }
+                    catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                rootJars.clear();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
     }
 }
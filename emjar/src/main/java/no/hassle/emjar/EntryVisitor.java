@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.jar.JarEntry;
+
+/**
+ * Visitor of classpath entries, see {@link
+ * EmJarClassLoader#visitEntries}.  Classpath elements are traversed
+ * in parallel, so implementations must be thread safe.
+ *
+ */
+public interface EntryVisitor
+{
+    /**
+     * Entry of a classpath element.  Contents are not read until
+     * requested, and may only be requested while the entry is being
+     * visited.
+     */
+    public interface Entry
+    {
+        /**
+         * Return name of the entry, relative to its classpath
+         * element, using '/' as separator.
+         */
+        String getName();
+
+        /**
+         * Return the classpath element holding the entry.
+         */
+        URL getSource();
+
+        /**
+         * Return entry metadata (sizes, CRC, method and time, where
+         * known).
+         */
+        JarEntry getJarEntry();
+
+        /**
+         * Return a read-only buffer holding the contents of the
+         * entry.  The buffer may be a slice of the bundle storage,
+         * see {@link EmJarClassLoader#getResourceAsByteBuffer}.
+         * <p>
+         * Only valid within {@link EntryVisitor#visit}: entries of jar
+         * files and jar streams are read from a source that is closed
+         * or moved on once the visitor returns, and later calls throw
+         * {@link IOException}.  The returned buffer itself stays
+         * valid.
+         */
+        ByteBuffer getByteBuffer()
+            throws IOException;
+    }
+
+    void visit(Entry entry)
+        throws IOException;
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+
+/**
+ * Traversal of the different kinds of classpath elements on behalf of
+ * {@link EmJarClassLoader#visitEntries}.
+ *
+ */
+class EntryWalker
+{
+    private static final int CHUNK_SIZE = 8192;
+
+    private EntryWalker()
+    {
+    }
+
+    /**
+     * Visit entries of an on-demand nested jar, straight from the
+     * scanned index.
+     */
+    static void visitDescriptors(
+        final URL source,
+        final Map<String, OndemandEmbeddedJar.Descriptor> descriptors,
+        final String prefix,
+        final EntryVisitor visitor)
+        throws IOException
+    {
+        for (final OndemandEmbeddedJar.Descriptor desc : descriptors.values()) {
+            if (!desc.getName().startsWith(prefix)) {
+                continue;
+            }
+            visitor.visit(new EntryVisitor.Entry() {
+                    @Override
+                    public String getName()
+                    {
+                        return desc.getName();
+                    }
+
+                    @Override
+                    public URL getSource()
+                    {
+                        return source;
+                    }
+
+                    @Override
+                    public JarEntry getJarEntry()
+                    {
+                        return desc.toJarEntry();
+                    }
+
+                    @Override
+                    public ByteBuffer getByteBuffer()
+                        throws IOException
+                    {
+                        return desc.getByteBuffer();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Visit entries of a plain jar file.
+     */
+    static void visitJarFile(
+        final URL source,
+        final File file,
+        final String prefix,
+        final EntryVisitor visitor)
+        throws IOException
+    {
+        final JarFile jar = new JarFile(file);
+        try {
+            final Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry entry = entries.nextElement();
+                if (!entry.getName().startsWith(prefix)) {
+                    continue;
+                }
+                visitor.visit(new EntryVisitor.Entry() {
+                        @Override
+                        public String getName()
+                        {
+                            return entry.getName();
+                        }
+
+                        @Override
+                        public URL getSource()
+                        {
+                            return source;
+                        }
+
+                        @Override
+                        public JarEntry getJarEntry()
+                        {
+                            return entry;
+                        }
+
+                        @Override
+                        public ByteBuffer getByteBuffer()
+                            throws IOException
+                        {
+                            final InputStream is;
+                            try {
+                                is = jar.getInputStream(entry);
+                            }
+                            catch (IllegalStateException e) {
+                                // The jar is closed once the walk is done
+                                throw new IOException(
+                                    "Entry " + entry.getName() + " read after visit returned", e);
+                            }
+                            try {
+                                return readFully(is, entry.getSize());
+                            }
+                            finally {
+                                is.close();
+                            }
+                        }
+                    });
+            }
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Visit entries of a jar read sequentially from {@code in}, used
+     * for nested jars that cannot be loaded on demand.  An entry is
+     * read from the stream only if its contents are requested, which
+     * must happen before the visitor returns.
+     */
+    static void visitJarStream(
+        final URL source,
+        final InputStream in,
+        final String prefix,
+        final EntryVisitor visitor)
+        throws IOException
+    {
+        final JarInputStream jar = new JarInputStream(in);
+        try {
+            JarEntry entry;
+            while ((entry = jar.getNextJarEntry()) != null) {
+                if (!entry.getName().startsWith(prefix)) {
+                    continue;
+                }
+                final StreamEntry current = new StreamEntry(source, entry, jar);
+                try {
+                    visitor.visit(current);
+                }
+                finally {
+                    current.expire();
+                }
+            }
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Entry of a jar stream, readable while the stream is positioned
+     * at it.
+     */
+    private static class StreamEntry
+        implements EntryVisitor.Entry
+    {
+        private final URL source;
+        private final JarEntry entry;
+        private JarInputStream jar;
+        private ByteBuffer contents;
+
+        StreamEntry(final URL source, final JarEntry entry, final JarInputStream jar)
+        {
+            this.source = source;
+            this.entry = entry;
+            this.jar = jar;
+        }
+
+        @Override
+        public String getName()
+        {
+            return entry.getName();
+        }
+
+        @Override
+        public URL getSource()
+        {
+            return source;
+        }
+
+        @Override
+        public JarEntry getJarEntry()
+        {
+            return entry;
+        }
+
+        @Override
+        public synchronized ByteBuffer getByteBuffer()
+            throws IOException
+        {
+            if (jar == null) {
+                throw new IOException(
+                    "Entry " + entry.getName() + " read after visit returned");
+            }
+            if (contents == null) {
+                contents = readFully(jar, entry.getSize());
+            }
+            return contents.duplicate();
+        }
+
+        synchronized void expire()
+        {
+            jar = null;
+            contents = null;
+        }
+    }
+
+    /**
+     * Visit files below a classpath directory, descending only into
+     * subdirectories that may hold matching entries.
+     */
+    static void visitDirectory(
+        final URL source,
+        final File root,
+        final String prefix,
+        final EntryVisitor visitor)
+        throws IOException
+    {
+        final int slash = prefix.lastIndexOf('/');
+        final String base = slash >= 0 ? prefix.substring(0, slash + 1) : "";
+        final File start = new File(root, base);
+        if (start.isDirectory()) {
+            visitFiles(source, start, base, prefix, visitor);
+        }
+    }
+
+    private static void visitFiles(
+        final URL source,
+        final File dir,
+        final String path,
+        final String prefix,
+        final EntryVisitor visitor)
+        throws IOException
+    {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = path + file.getName();
+            if (file.isDirectory()) {
+                if ((name + "/").startsWith(prefix) || prefix.startsWith(name + "/")) {
+                    visitFiles(source, file, name + "/", prefix, visitor);
+                }
+                continue;
+            }
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            visitor.visit(new EntryVisitor.Entry() {
+                    @Override
+                    public String getName()
+                    {
+                        return name;
+                    }
+
+                    @Override
+                    public URL getSource()
+                    {
+                        return source;
+                    }
+
+                    @Override
+                    public JarEntry getJarEntry()
+                    {
+                        final JarEntry entry = new JarEntry(name);
+                        entry.setSize(file.length());
+                        entry.setTime(file.lastModified());
+                        return entry;
+                    }
+
+                    @Override
+                    public ByteBuffer getByteBuffer()
+                        throws IOException
+                    {
+                        final InputStream is = new FileInputStream(file);
+                        try {
+                            return readFully(is, file.length());
+                        }
+                        finally {
+                            is.close();
+                        }
+                    }
+                });
+        }
+    }
+
+    /**
+     * Read {@code is} to its end, without closing it.
+     */
+    private static ByteBuffer readFully(final InputStream is, final long size)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+            size > 0 && size < Integer.MAX_VALUE ? (int) size : CHUNK_SIZE);
+        final byte[] buf = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = is.read(buf)) >= 0) {
+            bytes.write(buf, 0, read);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage backend mapping the complete file into memory.  Reads are
+ * served as slices of the mapping, without copying.
+ *
+ * <p>
+ * The mapping is never unmapped explicitly: slices handed out by
+ * {@link #read} may still be in use, and accessing unmapped memory
+ * crashes the JVM.  Closing the storage makes further reads fail,
+ * and drops its reference to the mapping; the mapping is released by
+ * the garbage collector once no slice of it remains reachable.
+ *
+ */
+public class MappedStorage
+    extends Storage
+{
+    private final long length;
+    private volatile MappedByteBuffer map;
+
+    public MappedStorage(final File file)
+        throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file);
+            }
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            length = map.capacity();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public long length()
+    {
+        return length;
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, final int length)
+        throws IOException
+    {
+        final MappedByteBuffer current = map;
+        if (current == null) {
+            throw new IOException("Storage closed");
+        }
+        checkBounds(offset, length);
+        final ByteBuffer constrained = current.duplicate();
+        constrained.position((int) offset);
+        constrained.limit((int) offset + length);
+        return constrained.slice();
+    }
+
+    @Override
+    public void close()
+    {
+        map = null;
+    }
+}
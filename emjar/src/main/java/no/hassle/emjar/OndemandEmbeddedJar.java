@@ -17,19 +17,26 @@
 package no.hassle.emjar;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -43,16 +50,32 @@ public class OndemandEmbeddedJar
 {
     public static class Descriptor
     {
-        private final ByteBuffer map;
+        // Room for a trailing (zip64) data descriptor
+        private static final int MAX_EXTHDR = 24;
+
+        private final Storage storage;
         private final String name;
-        private final int offset;
+        private final long offset;
+        private final int method;
+        private final int crc;
+        private final int dosTime;
+        private final long extTime;
+        private final int compressedSize;
         private final int size;
+        private SoftReference<byte[]> contents = null;
 
-        public Descriptor(String name, ByteBuffer map, int offset, int size)
+        public Descriptor(
+            String name, Storage storage, long offset,
+            int method, int crc, int dosTime, long extTime, int compressedSize, int size)
         {
             this.name = name;
-            this.map = map;
+            this.storage = storage;
             this.offset = offset;
+            this.method = method;
+            this.crc = crc;
+            this.dosTime = dosTime;
+            this.extTime = extTime;
+            this.compressedSize = compressedSize;
             this.size = size;
         }
 
@@ -61,11 +84,57 @@ public class OndemandEmbeddedJar
             return name;
         }
 
+        public int getMethod()
+        {
+            return method;
+        }
+
+        public long getCrc()
+        {
+            return crc & 0xffffffffL;
+        }
+
+        /**
+         * Return a new jar entry populated with the metadata recorded
+         * in the central directory.
+         */
+        public JarEntry toJarEntry()
+        {
+            final JarEntry entry = new JarEntry(name);
+            entry.setMethod(method);
+            entry.setCrc(getCrc());
+            entry.setTime(extTime != -1
+                          ? extTime * 1000
+                          : ZipScanner.dosToJavaTime(dosTime & 0xffffffffL));
+            if (size != -1) {
+                entry.setSize(size & 0xffffffffL);
+            }
+            if (compressedSize != -1) {
+                entry.setCompressedSize(compressedSize & 0xffffffffL);
+            }
+            return entry;
+        }
+
+        /**
+         * Return buffer holding the local header and data of this
+         * entry, suitable for reading with a ZipInputStream.
+         */
         public ByteBuffer getMap()
+            throws IOException
         {
-            final ByteBuffer constrained = map.duplicate();
-            constrained.position(offset);
-            return constrained.slice();
+            final ByteBuffer loc = storage.read(offset, ZipFile.LOCHDR);
+            loc.order(ByteOrder.LITTLE_ENDIAN);
+            final int nameLen = loc.getShort(ZipFile.LOCNAM) & 0xffff;
+            final int extraLen = loc.getShort(ZipFile.LOCEXT) & 0xffff;
+            final long available = storage.length() - offset;
+            long length = available;
+            if (compressedSize != -1) {
+                length = Math.min(
+                    available,
+                    ZipFile.LOCHDR + nameLen + extraLen
+                        + (compressedSize & 0xffffffffL) + MAX_EXTHDR);
+            }
+            return storage.read(offset, (int) Math.min(length, Integer.MAX_VALUE));
         }
 
         public int getSize()
@@ -73,17 +142,84 @@ public class OndemandEmbeddedJar
             return size;
         }
 
+        /**
+         * Return a read-only buffer holding the contents of this
+         * entry.  Stored entries are returned as a slice of the
+         * bundle storage without copying; other entries are returned
+         * as a view of the inflated contents.
+         * <p>
+         * The buffer stays valid after the bundle storage is closed.
+         * A slice of a mapped bundle keeps the mapping alive for as
+         * long as it is reachable, so it should not be retained
+         * longer than needed.
+         */
+        public ByteBuffer getByteBuffer()
+            throws IOException
+        {
+            if (method == ZipScanner.METHOD_STORED) {
+                final ByteBuffer loc = storage.read(offset, ZipFile.LOCHDR);
+                loc.order(ByteOrder.LITTLE_ENDIAN);
+                final int nameLen = loc.getShort(ZipFile.LOCNAM) & 0xffff;
+                final int extraLen = loc.getShort(ZipFile.LOCEXT) & 0xffff;
+                return storage.read(offset + ZipFile.LOCHDR + nameLen + extraLen, size)
+                    .asReadOnlyBuffer();
+            }
+            return ByteBuffer.wrap(getContents()).asReadOnlyBuffer();
+        }
+
+        /**
+         * Return inflated contents of this entry.  The contents are
+         * cached in the descriptor, and so shared by every loader
+         * attached to the same bundle scan.  The cache is softly
+         * referenced, leaving it to the garbage collector to bound
+         * its size.
+         */
+        public synchronized byte[] getContents()
+            throws IOException
+        {
+            byte[] cached = contents != null ? contents.get() : null;
+            if (cached == null) {
+                final InputStream raw = new ByteBufferBackedInputStream(getMap());
+                final ZipInputStream unzipped = new ZipInputStream(raw);
+                try {
+                    unzipped.getNextEntry();
+                    final byte[] cont = new byte[size];
+                    int read = 0;
+                    while (read < size) {
+                        final int n = unzipped.read(cont, read, size - read);
+                        if (n < 0) {
+                            throw new EOFException("Unexpected end of entry " + name);
+                        }
+                        read += n;
+                    }
+                    cached = cont;
+                    contents = new SoftReference<>(cont);
+                    if (method != ZipScanner.METHOD_STORED) {
+                        EmJarClassLoader.countInflated(size);
+                    }
+                }
+                finally {
+                    unzipped.close();
+                }
+            }
+            return cached;
+        }
+
         public String toString()
         {
             return "{name:" + name
-                + ", map:" + map
+                + ", storage:" + storage
                 + ", offset:" + offset
+                + ", method:" + method
+                + ", crc:" + getCrc()
+                + ", compressedSize:" + compressedSize
                 + ", size:" + size + "}";
         }
     }
 
     public static class Connection
         extends JarURLConnection
+        implements Closeable
     {
         private final String root;
         private final Map<String, Descriptor> descriptors;
@@ -125,33 +261,92 @@ public class OndemandEmbeddedJar
             final JarFile jarFile = getJarFile();
             return jarFile.getInputStream(new ZipEntry(entry));
         }
+
+        /**
+         * Return a read-only buffer holding the contents of the entry
+         * this connection refers to.
+         *
+         * @see Descriptor#getByteBuffer
+         */
+        public ByteBuffer getByteBuffer()
+            throws IOException
+        {
+            final Descriptor desc = descriptors.get(entry);
+            if (desc == null) {
+                throw new FileNotFoundException(
+                    "JAR entry " + entry + " not found in " + getJarFileURL());
+            }
+            return desc.getByteBuffer();
+        }
+
+        /**
+         * Close the jar file opened by this connection, if any.
+         */
+        @Override
+        public synchronized void close()
+            throws IOException
+        {
+            if (jarFile != null) {
+                jarFile.close();
+                jarFile = null;
+            }
+        }
     }
 
     private static class FileEntry
         extends JarFile
     {
         private Manifest manifest = null;
-        private final Map<String, JarEntry> entries;
         private final Map<String, Descriptor> descriptors;
-        private final Map<String, byte[]> contents;
+        private final Map<String, JarEntry> entries;
 
         public FileEntry(String root, Map<String, Descriptor> descriptors)
             throws IOException
         {
             super(root);
             this.descriptors = descriptors;
-            entries = new HashMap<>(descriptors.size());
-            contents = new HashMap<>(descriptors.size());
+            entries = new ConcurrentHashMap<>();
+        }
 
-            for (Map.Entry<String, Descriptor> entry : descriptors.entrySet()) {
-                entries.put(entry.getKey(), new JarEntry(entry.getValue().getName()));
+        /**
+         * Return the entry with the given name, creating it from its
+         * descriptor on first access.
+         */
+        private JarEntry lookup(String name)
+        {
+            JarEntry entry = entries.get(name);
+            if (entry == null) {
+                final Descriptor desc = descriptors.get(name);
+                if (desc == null) {
+                    return null;
+                }
+                // JarFile reads the manifest through the outer
+                // bundle (ZipFile.getInputStream) when checking for
+                // special attributes, bounded by the entry size.
+                // Leave the size of this one entry unknown.
+                entry = MANIFEST_NAME.equals(name) ? new JarEntry(name) : desc.toJarEntry();
+                entries.put(name, entry);
             }
+            return entry;
         }
 
         @Override
         public Enumeration<JarEntry> entries()
         {
-            return new IteratorBackedEnumeration<JarEntry>(entries.values().iterator());
+            final Iterator<String> names = descriptors.keySet().iterator();
+            return new Enumeration<JarEntry>() {
+                @Override
+                public boolean hasMoreElements()
+                {
+                    return names.hasNext();
+                }
+
+                @Override
+                public JarEntry nextElement()
+                {
+                    return lookup(names.next());
+                }
+            };
         }
 
         @Override
@@ -164,40 +359,18 @@ public class OndemandEmbeddedJar
         public InputStream getInputStream(ZipEntry ze)
             throws IOException
         {
-            final String name = ze.getName();
-            byte[] cont = contents.get(name);
-            if (cont == null) {
-                synchronized (contents) {
-                    cont = contents.get(name);
-                    if (cont == null) {
-                        final Descriptor desc = descriptors.get(name);
-                        if (desc == null) {
-                            throw new IOException("Entry does not exist");
-                        }
-                        final ByteBuffer map = desc.getMap();
-                        final InputStream raw = new ByteBufferBackedInputStream(map);
-                        final ZipInputStream unzipped = new ZipInputStream(raw);
-
-                        unzipped.getNextEntry();
-                        final int len = desc.getSize();
-                        int read = 0;
-                        cont = new byte[len];
-                        while (read < len) {
-                            read += unzipped.read(cont, read, len - read);
-                        }
-                        unzipped.close();
-                        contents.put(name, cont);
-                    }
-                }
+            final Descriptor desc = descriptors.get(ze.getName());
+            if (desc == null) {
+                throw new IOException("Entry does not exist");
             }
-            return new ByteArrayInputStream(cont);
+            return new ByteArrayInputStream(desc.getContents());
         }
 
         @Override
         public JarEntry	getJarEntry(String name)
         {
-            final JarEntry entry = entries.get(name);
-            return entry != null ? entry : entries.get(name + "/");
+            final JarEntry entry = lookup(name);
+            return entry != null ? entry : lookup(name + "/");
         }
 
         public Manifest getManifest() {
@@ -216,7 +389,7 @@ public class OndemandEmbeddedJar
 
         public int size()
         {
-            return entries.size();
+            return descriptors.size();
         }
     }
 }
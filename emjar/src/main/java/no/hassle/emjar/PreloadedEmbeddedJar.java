@@ -17,11 +17,14 @@
 package no.hassle.emjar;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -41,6 +44,7 @@ public class PreloadedEmbeddedJar
 {
     public static class Connection
         extends JarURLConnection
+        implements Closeable
     {
         private final String root;
         private final String nested;
@@ -82,6 +86,34 @@ public class PreloadedEmbeddedJar
             final JarFile jarFile = getJarFile();
             return jarFile.getInputStream(new ZipEntry(entry));
         }
+
+        /**
+         * Return a read-only buffer holding the (preloaded) contents
+         * of the entry this connection refers to.
+         */
+        public ByteBuffer getByteBuffer()
+            throws IOException
+        {
+            final byte[] cont = ((FileEntry) getJarFile()).getContents(entry);
+            if (cont == null) {
+                throw new FileNotFoundException(
+                    "JAR entry " + entry + " not found in " + getJarFileURL());
+            }
+            return ByteBuffer.wrap(cont).asReadOnlyBuffer();
+        }
+
+        /**
+         * Close the jar file opened by this connection, if any.
+         */
+        @Override
+        public synchronized void close()
+            throws IOException
+        {
+            if (jarFile != null) {
+                jarFile.close();
+                jarFile = null;
+            }
+        }
     }
 
     private static class FileEntry
@@ -106,6 +138,8 @@ public class PreloadedEmbeddedJar
             contents = new HashMap<>();
             manifest = jar.getManifest();
 
+            final boolean compressed = embedded.getMethod() != ZipEntry.STORED;
+            long inflated = 0;
             byte[] buf = null;
 
         process_entries:
@@ -129,6 +163,9 @@ public class PreloadedEmbeddedJar
                         read += jar.read(cont, read, len - read);
                     }
                     contents.put(name, cont);
+                    if (compressed || entry.getMethod() != ZipEntry.STORED) {
+                        inflated += len;
+                    }
                 }
                 else {
                     int size = 0;
@@ -150,11 +187,15 @@ public class PreloadedEmbeddedJar
                         }
                     }
                     contents.put(name, Arrays.copyOf(buf, size));
+                    if (compressed || entry.getMethod() != ZipEntry.STORED) {
+                        inflated += size;
+                    }
                 }
                 entries.put(name, entry);
                 jar.closeEntry();
             }
             jar.close();
+            EmJarClassLoader.countInflated(inflated);
         }
 
         @Override
@@ -168,6 +209,11 @@ public class PreloadedEmbeddedJar
             return getJarEntry(name);
         }
 
+        public byte[] getContents(String name)
+        {
+            return contents.get(name);
+        }
+
         @Override
         public InputStream getInputStream(ZipEntry ze)
             throws IOException
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the contents of a bundle file.  The backend used
+ * is selected by the <strong><code>emjar.storage</code></strong>
+ * system property:
+ *
+ * <ul>
+ * <li><strong><code>mmap</code></strong> (default) maps the bundle
+ * into memory, and serves all reads as slices of the mapping; see
+ * {@link MappedStorage}.</li>
+ *
+ * <li><strong><code>channel</code></strong> uses positional reads on
+ * a file channel, caching a bounded number of blocks on the heap; see
+ * {@link ChannelStorage}.  The number of cached blocks is given by
+ * the <strong><code>emjar.storage.cache.blocks</code></strong>
+ * property.  Useful where mapped pages are charged to a constrained
+ * memory budget.</li>
+ * </ul>
+ *
+ */
+public abstract class Storage
+    implements Closeable
+{
+    public final static String EMJAR_STORAGE_PROP = "emjar.storage";
+    public final static String EMJAR_STORAGE_CACHE_PROP = "emjar.storage.cache.blocks";
+
+    public final static String STORAGE_MMAP = "mmap";
+    public final static String STORAGE_CHANNEL = "channel";
+
+    public final static int DEFAULT_CACHE_BLOCKS = 256;
+
+    /**
+     * Open {@code file} using the backend selected by system
+     * properties.
+     */
+    public static Storage open(final File file)
+        throws IOException
+    {
+        final String backend = System.getProperty(EMJAR_STORAGE_PROP, STORAGE_MMAP);
+        if (STORAGE_CHANNEL.equals(backend)) {
+            return new ChannelStorage(
+                file, Integer.getInteger(EMJAR_STORAGE_CACHE_PROP, DEFAULT_CACHE_BLOCKS));
+        }
+        if (!STORAGE_MMAP.equals(backend) && !EmJarClassLoader.QUIET) {
+            System.err.println("EmJar: unknown storage backend " + backend + ", using "
+                               + STORAGE_MMAP);
+        }
+        return new MappedStorage(file);
+    }
+
+    /**
+     * Return whether {@code file} can be opened using the backend
+     * selected by system properties.  Mapped storage is limited to
+     * files of less than 2 GB.
+     */
+    public static boolean canOpen(final File file)
+    {
+        return STORAGE_CHANNEL.equals(System.getProperty(EMJAR_STORAGE_PROP, STORAGE_MMAP))
+            || file.length() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Return total length of the underlying file.
+     */
+    public abstract long length();
+
+    /**
+     * Return a buffer holding the {@code length} bytes starting at
+     * {@code offset}.  The returned buffer must be treated as
+     * read-only, and is independent of other buffers returned.  It
+     * remains readable after the storage is closed.
+     */
+    public abstract ByteBuffer read(long offset, int length)
+        throws IOException;
+
+    protected void checkBounds(final long offset, final int length)
+        throws IOException
+    {
+        if (offset < 0 || length < 0 || offset + length > length()) {
+            throw new IOException(
+                "Read of " + length + " bytes at " + offset + " outside storage bounds");
+        }
+    }
+}
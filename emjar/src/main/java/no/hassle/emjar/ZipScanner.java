@@ -16,16 +16,17 @@
 
 package no.hassle.emjar;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.zip.ZipFile;
 
 public class ZipScanner
@@ -34,6 +35,9 @@ public class ZipScanner
 
     static final int ENDCUR = 4;
     static final int ENDSTA = 6;
+    static final int MAX_COMMENT = 0xffff;        // Comment length is an unsigned short
+
+    static final long ZIP64_MAGICVAL = 0xffffffffL;  // Value moved to Zip64 extra field
 
     static final long ZIP64_ENDSIG = 0x06064b50L;  // "PK\006\006"
     static final long ZIP64_LOCSIG = 0x07064b50L;  // "PK\006\007"
@@ -41,6 +45,8 @@ public class ZipScanner
     static final int  ZIP64_LOCHDR = 20;           // ZIP64 end loc header size
     static final int  ZIP64_EXTHDR = 24;           // EXT header size
     static final int  ZIP64_EXTID  = 0x0001;       // Extra field Zip64 header ID
+    static final int  EXTT_ID      = 0x5455;       // Extended timestamp header ID
+    static final int  EXTT_FLAG_MTIME = 0x1;       // Modification time present
 
     static final int  ZIP64_ENDLEN = 4;       // size of zip64 end of central dir
     static final int  ZIP64_ENDVEM = 12;      // version made by
@@ -59,48 +65,152 @@ public class ZipScanner
 
 
     private final File file;
-    private final Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> nestedDescriptors;
+    private Storage storage;
+    private final Map<String, NestedJar> nestedJars;
+    private OndemandEmbeddedJar.Descriptor manifest = null;
+
+    /**
+     * Jar stored (uncompressed) inside a scanned bundle.  Only the
+     * location of the nested jar is recorded when the bundle is
+     * scanned; its central directory is parsed the first time its
+     * descriptors are requested.
+     */
+    public class NestedJar
+    {
+        private final String name;
+        private final long offset;
+        private final long compressedSize;
+        private Map<String, OndemandEmbeddedJar.Descriptor> descriptors = null;
+        private boolean scanned = false;
+
+        NestedJar(String name, long offset, long compressedSize)
+        {
+            this.name = name;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Return descriptors for all entries of the nested jar, or
+         * null if the nested jar cannot be loaded on-demand (e.g
+         * because it is signed).
+         */
+        public synchronized Map<String, OndemandEmbeddedJar.Descriptor> getDescriptors()
+            throws IOException
+        {
+            if (!scanned) {
+                final Map<String, OndemandEmbeddedJar.Descriptor> context
+                    = new HashMap<>(16);
+                if (parseFile(offset, context, compressedSize)) {
+                    descriptors = context;
+                }
+                scanned = true;
+            }
+            return descriptors;
+        }
+
+        public synchronized boolean isScanned()
+        {
+            return scanned;
+        }
+    }
 
     public ZipScanner(File file)
     {
         this.file = file;
-        nestedDescriptors = new HashMap<>();
+        nestedJars = new HashMap<>();
     }
 
-    public Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> scan()
+    public ZipScanner(Storage storage)
+    {
+        this.file = null;
+        this.storage = storage;
+        nestedJars = new HashMap<>();
+    }
+
+    /**
+     * Scan the central directory of the bundle, and return all jars
+     * stored inside it.  The nested jars are not inspected until
+     * used.
+     */
+    public Map<String, NestedJar> scan()
+        throws IOException
+    {
+        if (storage == null) {
+            if (!Storage.canOpen(file)) {
+                return nestedJars;
+            }
+            storage = Storage.open(file);
+        }
+        recurse(0, storage.length(), null);
+        return nestedJars;
+    }
+
+    /**
+     * Return the manifest of the scanned bundle, or null if it has
+     * none.  The manifest entry is located when the bundle is
+     * scanned, and parsed on each call.
+     */
+    public Manifest getManifest()
         throws IOException
     {
-        final RandomAccessFile raf = new RandomAccessFile(file, "r");
-        final FileChannel chan = raf.getChannel();
-        if (raf.length() <= Integer.MAX_VALUE) {
-            final MappedByteBuffer map
-                = chan.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
-            recurse(map, null);
-        }
-        raf.close();
-        return nestedDescriptors;
+        if (manifest == null) {
+            return null;
+        }
+        return new Manifest(new ByteArrayInputStream(manifest.getContents()));
     }
 
+    /**
+     * Return the storage backing the scanned bundle.
+     */
+    public Storage getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Parse the zip structure occupying {@code length} bytes at
+     * {@code base} in the bundle.  If {@code context} is null, this
+     * is the bundle itself, and stored jars are recorded for later
+     * scanning; otherwise descriptors for all entries are added to
+     * {@code context}.  Return whether the contents are suitable for
+     * on-demand loading.
+     */
     public boolean recurse(
-        final ByteBuffer map,
+        final long base,
+        final long length,
         final Map<String, OndemandEmbeddedJar.Descriptor> context)
         throws IOException
     {
-        final ByteBuffer loc64 = findEocd(map, ZIP64_LOCSIG, ZIP64_LOCHDR);
-        if (loc64 != null) {
-            loc64.order(ByteOrder.LITTLE_ENDIAN);
-            final int pos = loc64.position();
-            final int locDsk = loc64.getInt(pos + ZIP64_LOCDSK);
-            final long locOff = loc64.getLong(pos + ZIP64_LOCOFF);
-            final int locTot = loc64.getInt(pos + ZIP64_LOCTOT);
+        final int tailLen = (int) Math.min(length, MAX_COMMENT + ZipFile.ENDHDR);
+        final long tailBase = base + length - tailLen;
+        final ByteBuffer tail = storage.read(tailBase, tailLen);
+        tail.order(ByteOrder.LITTLE_ENDIAN);
+
+        final int eocd = findEocd(tail, ZipFile.ENDSIG, ZipFile.ENDHDR);
+        if (eocd < 0) {
+            throw new IOException("EOCD signature not found");
+        }
+        // The Zip64 locator, if any, immediately precedes the EOCD
+        // record.  Searching the tail for it could instead find the
+        // locator of a nested jar stored last in a bundle.
+        final int loc64 = eocd - ZIP64_LOCHDR;
+        if (loc64 >= 0 && (tail.getInt(loc64) & 0xffffffffL) == ZIP64_LOCSIG) {
+            final int locDsk = tail.getInt(loc64 + ZIP64_LOCDSK);
+            final long locOff = tail.getLong(loc64 + ZIP64_LOCOFF);
+            final int locTot = tail.getInt(loc64 + ZIP64_LOCTOT);
             if (locDsk != 0 || locTot != 1) {
                 throw new IOException("Split archives not supported");
             }
-            if (locOff > Integer.MAX_VALUE) {
-                throw new IOException("Unexpected oversize offset value");
+            if (locOff < 0 || locOff > length - ZIP64_ENDHDR) {
+                throw new IOException("Zip64 EOCD offset out of range: " + locOff);
             }
-            map.position((int) locOff);
-            final ByteBuffer eocd64 = map.slice();
+            final ByteBuffer eocd64 = storage.read(base + locOff, ZIP64_ENDHDR);
             eocd64.order(ByteOrder.LITTLE_ENDIAN);
             final int eocdSig = eocd64.getInt(0);
             if (eocdSig != ZIP64_ENDSIG) {
@@ -115,41 +225,38 @@ public class ZipScanner
             if (endNmd != 0 || endDsk != 0 || endTod != endTot) {
                 throw new IOException("Split archives not supported");
             }
-            if (endOff > Integer.MAX_VALUE) {
-                throw new IOException("Unexpected oversize offset value");
-            }
-            return parseDirectory(map, (int) endOff, (int) endSiz, context);
-        }
-        final ByteBuffer eocd = findEocd(map, ZipFile.ENDSIG, ZipFile.ENDHDR);
-        if (eocd != null) {
-            eocd.order(ByteOrder.LITTLE_ENDIAN);
-            final int pos = eocd.position();
-            final int curDiskNum = eocd.getShort(pos + ENDCUR);
-            final int cdStartDisk = eocd.getShort(pos + ENDSTA);
-            final int cdRecsHere = eocd.getShort(pos + ZipFile.ENDSUB);
-            final int cdRecsTotal = eocd.getShort(pos + ZipFile.ENDTOT);
-            final int cdSize = eocd.getInt(pos + ZipFile.ENDSIZ);
-            final int cdOffs = eocd.getInt(pos + ZipFile.ENDOFF);
-            if (curDiskNum != 0 || cdStartDisk != 0 || cdRecsHere != cdRecsTotal) {
-                throw new IOException("Split archives not supported");
-            }
-            return parseDirectory(map, cdOffs, cdSize, context);
+            return parseDirectory(base, length, endOff, endSiz, context);
+        }
+        final int curDiskNum = tail.getShort(eocd + ENDCUR) & 0xffff;
+        final int cdStartDisk = tail.getShort(eocd + ENDSTA) & 0xffff;
+        final int cdRecsHere = tail.getShort(eocd + ZipFile.ENDSUB) & 0xffff;
+        final int cdRecsTotal = tail.getShort(eocd + ZipFile.ENDTOT) & 0xffff;
+        final long cdSize = tail.getInt(eocd + ZipFile.ENDSIZ) & 0xffffffffL;
+        final long cdOffs = tail.getInt(eocd + ZipFile.ENDOFF) & 0xffffffffL;
+        if (curDiskNum != 0 || cdStartDisk != 0 || cdRecsHere != cdRecsTotal) {
+            throw new IOException("Split archives not supported");
         }
-        throw new IOException("EOCD signature not found");
+        return parseDirectory(base, length, cdOffs, cdSize, context);
     }
 
     private boolean parseDirectory(
-        final ByteBuffer map,
-        final int offset,
-        final int size,
+        final long base,
+        final long length,
+        final long offset,
+        final long dirSize,
         final Map<String, OndemandEmbeddedJar.Descriptor> context)
         throws IOException
     {
         boolean ondemandPossible = true;
 
-        map.position(offset);
-        final ByteBuffer dir = map.slice();
-        dir.limit(size);
+        if (offset < 0 || dirSize < 0 || offset + dirSize > length) {
+            throw new IOException("Central directory out of range: " + dirSize + " bytes at " + offset);
+        }
+        if (dirSize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory too large: " + dirSize + " bytes");
+        }
+        final int size = (int) dirSize;
+        final ByteBuffer dir = storage.read(base + offset, size);
         dir.order(ByteOrder.LITTLE_ENDIAN);
         int pos = 0;
         byte[] buf = new byte[256];
@@ -158,14 +265,16 @@ public class ZipScanner
             if (sig != ZipFile.CENSIG) {
                 break;
             }
-            final int method = dir.getShort(pos + ZipFile.CENHOW);
-            final int compressedSize = dir.getInt(pos + ZipFile.CENSIZ);
-            final int originalSize = dir.getInt(pos + ZipFile.CENLEN);
-            final int nameLen = dir.getShort(pos + ZipFile.CENNAM);
-            final int extraLen = dir.getShort(pos + ZipFile.CENEXT);
-            final int commentLen = dir.getShort(pos + ZipFile.CENCOM);
-            final int startDiskNum = dir.getShort(pos + ZipFile.CENDSK);
-            final int headerOffs = dir.getInt(pos + ZipFile.CENOFF);
+            final int method = dir.getShort(pos + ZipFile.CENHOW) & 0xffff;
+            final int dosTime = dir.getInt(pos + ZipFile.CENTIM);
+            final int crc = dir.getInt(pos + ZipFile.CENCRC);
+            long compressedSize = dir.getInt(pos + ZipFile.CENSIZ) & 0xffffffffL;
+            long originalSize = dir.getInt(pos + ZipFile.CENLEN) & 0xffffffffL;
+            final int nameLen = dir.getShort(pos + ZipFile.CENNAM) & 0xffff;
+            final int extraLen = dir.getShort(pos + ZipFile.CENEXT) & 0xffff;
+            final int commentLen = dir.getShort(pos + ZipFile.CENCOM) & 0xffff;
+            final int startDiskNum = dir.getShort(pos + ZipFile.CENDSK) & 0xffff;
+            long headerOffs = dir.getInt(pos + ZipFile.CENOFF) & 0xffffffffL;
             if (nameLen > buf.length) {
                 buf = new byte[nameLen];
             }
@@ -177,65 +286,154 @@ public class ZipScanner
             if (startDiskNum != 0) {
                 continue;
             }
-            map.position(headerOffs);
-            if (method == METHOD_STORED && name.endsWith(".jar")) {
-                final Map<String, OndemandEmbeddedJar.Descriptor> descriptors
-                    = new HashMap<>(16);
-                if (parseFile(map.slice(), descriptors, compressedSize)) {
-                    nestedDescriptors.put(name, descriptors);
+            final int extraPos = pos - extraLen - commentLen;
+            if (originalSize == ZIP64_MAGICVAL
+                    || compressedSize == ZIP64_MAGICVAL
+                    || headerOffs == ZIP64_MAGICVAL) {
+                // Values too large for the header are stored, in this
+                // order, in the Zip64 extra field
+                int zip64 = findExtra(dir, extraPos, extraLen, ZIP64_EXTID);
+                if (zip64 < 0) {
+                    throw new IOException("Zip64 extra field missing for " + name);
+                }
+                final int zip64End = zip64 + 4 + (dir.getShort(zip64 + 2) & 0xffff);
+                zip64 += 4;
+                if (originalSize == ZIP64_MAGICVAL && zip64 + 8 <= zip64End) {
+                    originalSize = dir.getLong(zip64);
+                    zip64 += 8;
                 }
+                if (compressedSize == ZIP64_MAGICVAL && zip64 + 8 <= zip64End) {
+                    compressedSize = dir.getLong(zip64);
+                    zip64 += 8;
+                }
+                if (headerOffs == ZIP64_MAGICVAL && zip64 + 8 <= zip64End) {
+                    headerOffs = dir.getLong(zip64);
+                }
+            }
+            if (headerOffs < 0 || headerOffs >= length
+                    || compressedSize < 0 || originalSize < 0) {
+                throw new IOException("Entry " + name + " out of range");
+            }
+            final long extTime = findExtendedTime(dir, extraPos, extraLen);
+            if (context == null && method == METHOD_STORED && name.endsWith(".jar")) {
+                nestedJars.put(name, new NestedJar(name, base + headerOffs, compressedSize));
+            }
+            if (context == null && JarFile.MANIFEST_NAME.equals(name)
+                    && compressedSize <= Integer.MAX_VALUE && originalSize <= Integer.MAX_VALUE) {
+                manifest = new OndemandEmbeddedJar.Descriptor(
+                    name, storage, base + headerOffs,
+                    method, crc, dosTime, extTime, (int) compressedSize, (int) originalSize);
             }
             if (name.startsWith("META-INF/")
                     && (name.endsWith(".SF") || name.endsWith(".DSA") || name.endsWith(".RSA"))) {
                 ondemandPossible = false;
             }
             if (context != null) {
-                context.put(name, new OndemandEmbeddedJar.Descriptor(name, map, headerOffs, originalSize));
+                if (compressedSize > Integer.MAX_VALUE || originalSize > Integer.MAX_VALUE) {
+                    // Entries must fit in a buffer
+                    ondemandPossible = false;
+                    continue;
+                }
+                context.put(name, new OndemandEmbeddedJar.Descriptor(
+                                name, storage, base + headerOffs,
+                                method, crc, dosTime, extTime,
+                                (int) compressedSize, (int) originalSize));
             }
         }
         return ondemandPossible;
     }
 
     private boolean parseFile(
-        final ByteBuffer map,
+        final long offset,
         final Map<String, OndemandEmbeddedJar.Descriptor> context,
-        final int compressedSize)
+        final long compressedSize)
         throws IOException
     {
-        map.order(ByteOrder.LITTLE_ENDIAN);
-        final int pos = map.position();
-        final int sig = map.getInt(pos);
+        final ByteBuffer loc = storage.read(offset, ZipFile.LOCHDR);
+        loc.order(ByteOrder.LITTLE_ENDIAN);
+        final int sig = loc.getInt(0);
         if (sig != ZipFile.LOCSIG) {
             return false;
         }
-        final int nameLen = map.getShort(pos + ZipFile.LOCNAM);
-        final int extraLen = map.getShort(pos + ZipFile.LOCEXT);
-        map.position(pos + ZipFile.LOCHDR + nameLen + extraLen);
-        final ByteBuffer nested = map.slice();
-        nested.limit(compressedSize);
-        return recurse(nested, context);
+        final int nameLen = loc.getShort(ZipFile.LOCNAM) & 0xffff;
+        final int extraLen = loc.getShort(ZipFile.LOCEXT) & 0xffff;
+        return recurse(offset + ZipFile.LOCHDR + nameLen + extraLen, compressedSize, context);
     }
 
-    private ByteBuffer findEocd(
-        final ByteBuffer map,
+    /**
+     * Return position of the extra field with header ID {@code id}
+     * among the {@code length} bytes of extra fields at {@code
+     * start}, or -1 if there is none.
+     */
+    private static int findExtra(
+        final ByteBuffer dir,
+        final int start,
+        final int length,
+        final int id)
+    {
+        int pos = start;
+        while (pos + 4 <= start + length) {
+            final int size = dir.getShort(pos + 2) & 0xffff;
+            if ((dir.getShort(pos) & 0xffff) == id) {
+                return pos + 4 + size <= start + length ? pos : -1;
+            }
+            pos += 4 + size;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the modification time (in seconds since the epoch) of an
+     * extended timestamp extra field among the {@code length} bytes
+     * of extra fields at {@code start}, or -1 if there is none.
+     */
+    private static long findExtendedTime(
+        final ByteBuffer dir,
+        final int start,
+        final int length)
+    {
+        final int pos = findExtra(dir, start, length, EXTT_ID);
+        if (pos >= 0 && (dir.getShort(pos + 2) & 0xffff) >= 5
+                && (dir.get(pos + 4) & EXTT_FLAG_MTIME) != 0) {
+            return dir.getInt(pos + 5) & 0xffffffffL;
+        }
+        return -1;
+    }
+
+    /**
+     * Convert MS-DOS date and time (as stored in zip headers) to Java
+     * time, interpreting it in the default time zone as ZipEntry does.
+     */
+    static long dosToJavaTime(final long dtime)
+    {
+        final Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set((int) (((dtime >> 25) & 0x7f) + 1980),
+                (int) (((dtime >> 21) & 0x0f) - 1),
+                (int) ((dtime >> 16) & 0x1f),
+                (int) ((dtime >> 11) & 0x1f),
+                (int) ((dtime >> 5) & 0x3f),
+                (int) ((dtime << 1) & 0x3e));
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Return position of the last record with signature
+     * {@code eocdSig} in {@code tail}, or -1 if none was found.
+     */
+    private int findEocd(
+        final ByteBuffer tail,
         final long eocdSig,
         final int eocdLen)
-        throws IOException
     {
-        map.order(ByteOrder.LITTLE_ENDIAN);
-        final int length = map.limit();
-        int eocdPos = length - eocdLen;
-        while (eocdPos > 0) {
-            final long sig = map.getInt(eocdPos);
+        final int length = tail.limit();
+        final int first = Math.max(0, length - eocdLen - MAX_COMMENT);
+        for (int eocdPos = length - eocdLen; eocdPos >= first; eocdPos--) {
+            final long sig = tail.getInt(eocdPos);
             if (sig == eocdSig) {
-                map.position(eocdPos);
-                return map.slice();
-            }
-            eocdPos--;
-            if (length - eocdPos + eocdLen > Short.MAX_VALUE) {
-                break;
+                return eocdPos;
             }
         }
-        return null;
+        return -1;
     }
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.ByteStreams;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BundleRegistryTest extends EmJarTest
+{
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File writeTestBundle()
+        throws Exception
+    {
+        final File bundle = new File(temp.newFolder(), "app.jar");
+        final Map<String, String> libEntries = new HashMap<>();
+        libEntries.put("shared.txt", "shared contents");
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/lib.jar", buildJar(null, libEntries));
+        writeBundle(bundle, null, nested);
+        return bundle;
+    }
+
+    private static String readResource(final ClassLoader loader, final String name)
+        throws Exception
+    {
+        final InputStream is = loader.getResourceAsStream(name);
+        assertNotNull("Resource " + name + " not found", is);
+        try {
+            return new String(ByteStreams.toByteArray(is), "UTF-8");
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testSharedScan()
+        throws Exception
+    {
+        final File bundle = writeTestBundle();
+        final String path = bundle.getAbsolutePath();
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", path);
+
+        final EmJarClassLoader first = new EmJarClassLoader(props);
+        final EmJarClassLoader second = new EmJarClassLoader(props);
+        assertEquals("Bundle acquired before use", 0, BundleRegistry.getReferenceCount(path));
+
+        assertEquals("Unexpected contents", "shared contents", readResource(first, "shared.txt"));
+        assertEquals("Unexpected reference count", 1, BundleRegistry.getReferenceCount(path));
+        assertEquals("Unexpected contents", "shared contents", readResource(second, "shared.txt"));
+        assertEquals("Second loader did not attach to scan",
+                     2, BundleRegistry.getReferenceCount(path));
+
+        final BundleRegistry.Bundle a = BundleRegistry.acquire(path);
+        final BundleRegistry.Bundle b = BundleRegistry.acquire(path);
+        assertSame("Scan not shared", a, b);
+        assertSame("Nested jar views not shared",
+                   a.getNestedJar("lib/lib.jar"), b.getNestedJar("lib/lib.jar"));
+        BundleRegistry.release(a);
+        BundleRegistry.release(b);
+
+        first.close();
+        assertEquals("Close did not release reference", 1, BundleRegistry.getReferenceCount(path));
+        assertEquals("Remaining loader affected by close",
+                     "shared contents", readResource(second, "shared.txt"));
+        second.close();
+        assertEquals("Bundle still registered after last close",
+                     0, BundleRegistry.getReferenceCount(path));
+    }
+
+    @Test
+    public void testReplacedBundle()
+        throws Exception
+    {
+        final File bundle = writeTestBundle();
+        final String path = bundle.getAbsolutePath();
+        final BundleRegistry.Bundle before = BundleRegistry.acquire(path);
+
+        assertTrue("Unable to change modification time",
+                   bundle.setLastModified(bundle.lastModified() - 10000));
+        final BundleRegistry.Bundle after = BundleRegistry.acquire(path);
+        assertNotSame("Stale scan reused for modified bundle", before, after);
+        assertEquals("Unexpected reference count", 1, BundleRegistry.getReferenceCount(path));
+
+        BundleRegistry.release(before);
+        assertEquals("Releasing stale scan affected current",
+                     1, BundleRegistry.getReferenceCount(path));
+        BundleRegistry.release(after);
+        assertEquals("Bundle still registered", 0, BundleRegistry.getReferenceCount(path));
+    }
+
+    @Test
+    public void testSymlinkedBundle()
+        throws Exception
+    {
+        final File bundle = writeTestBundle();
+        final File link = new File(temp.newFolder(), "link.jar");
+        try {
+            Files.createSymbolicLink(link.toPath(), bundle.toPath());
+        }
+        catch (UnsupportedOperationException | IOException e) {
+            Assume.assumeNoException(e);
+        }
+
+        final BundleRegistry.Bundle direct = BundleRegistry.acquire(bundle.getAbsolutePath());
+        final BundleRegistry.Bundle linked = BundleRegistry.acquire(link.getAbsolutePath());
+        assertSame("Bundle scanned again through symbolic link", direct, linked);
+        assertEquals("Unexpected reference count through link",
+                     2, BundleRegistry.getReferenceCount(link.getAbsolutePath()));
+
+        BundleRegistry.release(linked);
+        assertEquals("Unexpected reference count after release",
+                     1, BundleRegistry.getReferenceCount(bundle.getAbsolutePath()));
+        BundleRegistry.release(direct);
+        assertEquals("Bundle still registered",
+                     0, BundleRegistry.getReferenceCount(bundle.getAbsolutePath()));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ByteBufferBackedInputStreamTest
+{
+    private static byte[] testBytes(int length)
+    {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testSkipAndAvailable()
+    {
+        final ByteBufferBackedInputStream is
+            = new ByteBufferBackedInputStream(ByteBuffer.wrap(testBytes(100)));
+        assertEquals("Unexpected available count", 100, is.available());
+        assertEquals("Unexpected skip count", 10, is.skip(10));
+        assertEquals("Unexpected available count after skip", 90, is.available());
+        assertEquals("Negative skip not ignored", 0, is.skip(-5));
+        assertEquals("Skip not bounded by remaining bytes", 90, is.skip(1000));
+        assertEquals("Bytes remaining after skipping past end", 0, is.available());
+    }
+
+    @Test
+    public void testReadAllBytes()
+    {
+        final byte[] bytes = testBytes(1000);
+        final ByteBufferBackedInputStream is
+            = new ByteBufferBackedInputStream(ByteBuffer.wrap(bytes));
+        is.skip(100);
+        assertArrayEquals("Unexpected contents",
+                          Arrays.copyOfRange(bytes, 100, 1000), is.readAllBytes());
+        assertEquals("Bytes remaining after readAllBytes", 0, is.available());
+    }
+
+    @Test
+    public void testTransferTo()
+        throws Exception
+    {
+        final byte[] bytes = testBytes(100000);
+        for (ByteBuffer buf : new ByteBuffer[]{
+                ByteBuffer.wrap(bytes),
+                ByteBuffer.wrap(bytes).asReadOnlyBuffer(),
+                (ByteBuffer) ByteBuffer.allocateDirect(bytes.length).put(bytes).flip()}) {
+            final ByteBufferBackedInputStream is = new ByteBufferBackedInputStream(buf);
+            is.skip(1);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals("Unexpected transfer count", bytes.length - 1, is.transferTo(out));
+            assertArrayEquals("Unexpected contents transferred",
+                              Arrays.copyOfRange(bytes, 1, bytes.length), out.toByteArray());
+            assertEquals("Bytes remaining after transfer", 0, is.available());
+        }
+    }
+}
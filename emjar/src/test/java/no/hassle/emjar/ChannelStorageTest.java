@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ChannelStorageTest
+    extends JarTest
+{
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Override
+    public JarURLConnection getJarUrlConnection(File root, String jarName, String entryName)
+        throws Exception
+    {
+        // Keep the block cache minimal to exercise eviction.
+        final ZipScanner scanner = new ZipScanner(new ChannelStorage(root, 1));
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
+        assertNotNull("Descriptor returned from ZipScanner was null", desc);
+        return new OndemandEmbeddedJar.Connection(
+            new URI("jar:file", root.getPath() + "!/" + jarName + "!/", null).toURL(),
+            root.getPath(),
+            desc.get(jarName).getDescriptors(),
+            entryName);
+    }
+
+    @Test
+    public void testLargeBundle()
+        throws Exception
+    {
+        for (String s : new String[]{"s", "S"}) {
+            final JarFile jar = testJarBundle(s + "-large");
+            final InputStream is = jar.getInputStream(new JarEntry("oversize"));
+            assertNotNull("oversize entry was unexpectedly filtered out from " + s + " results", is);
+        }
+    }
+
+    @Test
+    public void testReadAcrossBlocks()
+        throws Exception
+    {
+        final File bundle = getResourceFile("bundle-s-large.jar");
+        final ChannelStorage channel = new ChannelStorage(bundle, 2);
+        final MappedStorage mapped = new MappedStorage(bundle);
+        assertEquals("Storage lengths differ", mapped.length(), channel.length());
+        final long[] offsets = {
+            0, ChannelStorage.BLOCK_SIZE - 10, ChannelStorage.BLOCK_SIZE, channel.length() - 100
+        };
+        for (long offset : offsets) {
+            final ByteBuffer expected = mapped.read(offset, 100);
+            final ByteBuffer actual = channel.read(offset, 100);
+            assertEquals("Contents differ at offset " + offset, expected, actual);
+        }
+        channel.close();
+        mapped.close();
+    }
+
+    /**
+     * An interrupted reader must not close the storage shared by all
+     * loaders over the bundle.
+     */
+    @Test
+    public void testInterruptedRead()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final Random random = new Random(17);
+        final Map<String, byte[]> entries = new HashMap<>();
+        for (String name : new String[] { "first.bin", "second.bin" }) {
+            // Larger than a block, so read directly from the file
+            final byte[] cont = new byte[3 * ChannelStorage.BLOCK_SIZE];
+            random.nextBytes(cont);
+            entries.put(name, cont);
+        }
+        final File lib = new File(dir, "lib.jar");
+        writeBundle(lib, null, entries);
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/lib.jar", Files.toByteArray(lib));
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, null, nested);
+
+        final String backend = System.getProperty(Storage.EMJAR_STORAGE_PROP);
+        System.setProperty(Storage.EMJAR_STORAGE_PROP, Storage.STORAGE_CHANNEL);
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            Thread.currentThread().interrupt();
+            try {
+                assertEquals("Unexpected contents read while interrupted",
+                             ByteBuffer.wrap(entries.get("first.bin")),
+                             loader.getResourceAsByteBuffer("first.bin"));
+            }
+            finally {
+                assertTrue("Interrupt status lost", Thread.interrupted());
+            }
+            assertEquals("Unexpected contents read after interrupt",
+                         ByteBuffer.wrap(entries.get("second.bin")),
+                         loader.getResourceAsByteBuffer("second.bin"));
+        }
+        finally {
+            loader.close();
+            if (backend != null) {
+                System.setProperty(Storage.EMJAR_STORAGE_PROP, backend);
+            }
+            else {
+                System.clearProperty(Storage.EMJAR_STORAGE_PROP);
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package no.hassle.emjar;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
@@ -27,18 +28,34 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 import static org.junit.Assert.*;
 import static org.junit.Assume.*;
@@ -46,6 +63,9 @@ import static org.junit.Assume.*;
 @RunWith(JUnit4.class)
 public class EmJarClassLoaderTest extends JarTest
 {
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
     private EmJarClassLoader testLoader()
         throws URISyntaxException
     {
@@ -166,4 +186,444 @@ public class EmJarClassLoaderTest extends JarTest
         assertEquals("Supplied certificate was of unexpected type",
                 "X.509", certs[0].getType());
     }
+
+    @Test
+    public void testLayeredBundle()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final File bundle = new File(dir, "app.jar");
+        final File stable = new File(dir, "app-stable.jar");
+        final File volatil = new File(dir, "app-volatile.jar");
+
+        final Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(
+            EmJarClassLoader.EMJAR_CLASS_PATH_ATTR,
+            "app-volatile.jar!/lib/first.jar app-stable.jar!/lib/second.jar"
+                + " app-volatile.jar!/lib/third.jar");
+        writeBundle(bundle, mf, Collections.singletonMap(
+                        "main/main.jar",
+                        buildJar(null, Collections.singletonMap("main.txt", "main"))));
+
+        final Map<String, byte[]> stableLibs = new LinkedHashMap<>();
+        stableLibs.put("lib/second.jar", buildJar(null, Collections.singletonMap("shared.txt", "second")));
+        writeBundle(stable, null, stableLibs);
+
+        final Map<String, byte[]> volatileLibs = new LinkedHashMap<>();
+        volatileLibs.put("lib/third.jar", buildJar(null, Collections.singletonMap("shared.txt", "third")));
+        volatileLibs.put("lib/first.jar", buildJar(null, Collections.singletonMap("first.txt", "first")));
+        writeBundle(volatil, null, volatileLibs);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            for (String name : new String[]{"main", "first"}) {
+                final URL url = loader.findResource(name + ".txt");
+                assertNotNull("Entry " + name + ".txt not found in layered bundle", url);
+                final BufferedReader entry
+                    = new BufferedReader(new InputStreamReader(url.openStream()));
+                assertEquals("Contents mismatch for " + name, name, entry.readLine());
+                entry.close();
+            }
+
+            final Enumeration<URL> shared = loader.findResources("shared.txt");
+            final BufferedReader first
+                = new BufferedReader(new InputStreamReader(shared.nextElement().openStream()));
+            assertEquals("Layer classpath order not respected", "second", first.readLine());
+            first.close();
+            final BufferedReader second
+                = new BufferedReader(new InputStreamReader(shared.nextElement().openStream()));
+            assertEquals("Layer classpath order not respected", "third", second.readLine());
+            second.close();
+            assertFalse("Unexpected extra shared entries", shared.hasMoreElements());
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testServiceRegistry()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final File bundle = new File(dir, "app.jar");
+        final String service = "no.hassle.emjar.TestService";
+        final String registryDir = "META-INF/emjar/services/";
+
+        final Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(
+            EmJarClassLoader.EMJAR_SERVICE_REGISTRY_ATTR, registryDir);
+
+        final Map<String, String> libEntries = new HashMap<>();
+        libEntries.put(EmJarClassLoader.SERVICES_PREFIX + service, "from.nested.Jar\n");
+        libEntries.put("plain.txt", "plain");
+        final Map<String, byte[]> nested = new LinkedHashMap<>();
+        nested.put("lib/lib.jar", buildJar(null, libEntries));
+        nested.put(registryDir + service, "# lib/lib.jar\nfrom.registry.Provider\n".getBytes("UTF-8"));
+        writeBundle(bundle, mf, nested);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            final Enumeration<URL> found
+                = loader.findResources(EmJarClassLoader.SERVICES_PREFIX + service);
+            assertTrue("Service configuration not found", found.hasMoreElements());
+            final BufferedReader reader
+                = new BufferedReader(new InputStreamReader(found.nextElement().openStream()));
+            assertEquals("Service configuration not served from registry",
+                         "# lib/lib.jar", reader.readLine());
+            assertEquals("Service configuration not served from registry",
+                         "from.registry.Provider", reader.readLine());
+            reader.close();
+            assertFalse("Nested service configuration was not replaced by registry",
+                        found.hasMoreElements());
+
+            assertFalse("Unknown service unexpectedly found",
+                        loader.findResources(EmJarClassLoader.SERVICES_PREFIX + "unknown").hasMoreElements());
+            assertNotNull("Regular resource lookup failed with service registry present",
+                          loader.findResource("plain.txt"));
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    private static int countLines(final File file, final String match)
+        throws IOException
+    {
+        int count = 0;
+        for (String line : Files.readLines(file, StandardCharsets.UTF_8)) {
+            if (line.contains(match)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Repeatedly load from and close loaders over the same bundle,
+     * verifying that neither mappings nor file descriptors accumulate.
+     * Relies on procfs to inspect process resources.
+     */
+    @Test
+    public void testLoadCloseCycles()
+        throws Exception
+    {
+        final File maps = new File("/proc/self/maps");
+        final File fds = new File("/proc/self/fd");
+        assumeTrue(maps.canRead() && fds.isDirectory());
+
+        final File bundle = new File(temp.newFolder(), "cycles.jar");
+        final Map<String, String> libEntries = new HashMap<>();
+        libEntries.put("cycle.txt", "cycle");
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/lib.jar", buildJar(null, libEntries));
+        writeBundle(bundle, null, nested);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.getAbsolutePath());
+        final int baseFds = fds.list().length;
+
+        for (int i = 0; i < 1000; i++) {
+            final EmJarClassLoader loader = new EmJarClassLoader(props);
+            final InputStream is = loader.getResourceAsStream("cycle.txt");
+            assertNotNull("Resource not found in cycle " + i, is);
+            is.close();
+            loader.close();
+            assertEquals("Bundle still referenced after close in cycle " + i,
+                         0, BundleRegistry.getReferenceCount(bundle.getAbsolutePath()));
+        }
+
+        // Mappings are left to the garbage collector.
+        for (int i = 0; i < 50 && countLines(maps, bundle.getAbsolutePath()) > 0; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals("Bundle mappings leaked", 0, countLines(maps, bundle.getAbsolutePath()));
+        assertTrue("File descriptors leaked", fds.list().length < baseFds + 10);
+    }
+
+    @Test
+    public void testResourceAsByteBuffer()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final Map<String, byte[]> storedEntries = new HashMap<>();
+        storedEntries.put("stored.txt", "stored contents".getBytes(StandardCharsets.UTF_8));
+        final File storedJar = new File(dir, "stored.jar");
+        writeBundle(storedJar, null, storedEntries);
+
+        final Map<String, String> deflatedEntries = new HashMap<>();
+        deflatedEntries.put("deflated.txt", "deflated contents");
+        final Map<String, byte[]> nested = new LinkedHashMap<>();
+        nested.put("lib/stored.jar", Files.toByteArray(storedJar));
+        nested.put("lib/deflated.jar", buildJar(null, deflatedEntries));
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, null, nested);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            final ByteBuffer stored = loader.getResourceAsByteBuffer("stored.txt");
+            assertNotNull("Stored resource not found", stored);
+            assertTrue("Buffer not read-only", stored.isReadOnly());
+            assertEquals("Unexpected stored contents", "stored contents",
+                         StandardCharsets.UTF_8.decode(stored).toString());
+
+            final ByteBuffer deflated = loader.getResourceAsByteBuffer("deflated.txt");
+            assertNotNull("Deflated resource not found", deflated);
+            assertTrue("Buffer not read-only", deflated.isReadOnly());
+            assertEquals("Unexpected deflated contents", "deflated contents",
+                         StandardCharsets.UTF_8.decode(deflated).toString());
+
+            assertNull("Missing resource unexpectedly found",
+                       loader.getResourceAsByteBuffer("missing.txt"));
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * Buffers slicing the bundle storage must stay readable once the
+     * loader is closed, while new reads through the closed storage
+     * fail with an exception.
+     */
+    @Test
+    public void testResourceAsByteBufferAfterClose()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final Map<String, byte[]> storedEntries = new HashMap<>();
+        storedEntries.put("stored.txt", "stored contents".getBytes(StandardCharsets.UTF_8));
+        final File storedJar = new File(dir, "stored.jar");
+        writeBundle(storedJar, null, storedEntries);
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/stored.jar", Files.toByteArray(storedJar));
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, null, nested);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        final ByteBuffer stored = loader.getResourceAsByteBuffer("stored.txt");
+        assertNotNull("Stored resource not found", stored);
+        final URLConnection conn = loader.getResource("stored.txt").openConnection();
+        assertTrue("Unexpected connection " + conn, conn instanceof OndemandEmbeddedJar.Connection);
+        loader.close();
+        assertEquals("Bundle still referenced after close",
+                     0, BundleRegistry.getReferenceCount(bundle.getAbsolutePath()));
+
+        System.gc();
+        assertEquals("Buffer unreadable after close", "stored contents",
+                     StandardCharsets.UTF_8.decode(stored).toString());
+        try {
+            ((OndemandEmbeddedJar.Connection) conn).getByteBuffer();
+            fail("Read from closed bundle storage");
+        }
+        catch (IOException e) {
+            assertEquals("Unexpected error", "Storage closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testVisitEntries()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final Map<String, String> libEntries = new HashMap<>();
+        libEntries.put("pkg/A.class", "A");
+        libEntries.put("pkg/package-info.class", "info");
+        libEntries.put("pkg/sub/B.class", "B");
+        libEntries.put("other/C.class", "C");
+        final Map<String, byte[]> nested = new LinkedHashMap<>();
+        nested.put("lib/lib.jar", buildJar(null, libEntries));
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, null, nested);
+
+        final File classes = new File(dir, "classes");
+        new File(classes, "pkg").mkdirs();
+        Files.write("D", new File(classes, "pkg/D.class"), StandardCharsets.UTF_8);
+        Files.write("E", new File(classes, "E.class"), StandardCharsets.UTF_8);
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle + File.pathSeparator + classes);
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            final Map<String, String> visited = new ConcurrentHashMap<>();
+            loader.visitEntries("pkg/", new EntryVisitor() {
+                    @Override
+                    public void visit(Entry entry)
+                        throws IOException
+                    {
+                        final ByteBuffer buf = entry.getByteBuffer();
+                        assertEquals("Metadata size mismatch for " + entry.getName(),
+                                     buf.remaining(), entry.getJarEntry().getSize());
+                        visited.put(entry.getName(),
+                                    StandardCharsets.UTF_8.decode(buf).toString());
+                    }
+                });
+            final Map<String, String> expected = new HashMap<>();
+            expected.put("pkg/A.class", "A");
+            expected.put("pkg/package-info.class", "info");
+            expected.put("pkg/sub/B.class", "B");
+            expected.put("pkg/D.class", "D");
+            assertEquals("Unexpected entries visited", expected, visited);
+
+            assertEquals("Unexpected class names (recursive)",
+                         new TreeSet<>(Arrays.asList("pkg.A", "pkg.D", "pkg.sub.B")),
+                         ClassNameCollector.findClassNames(loader, "pkg", true));
+            assertEquals("Unexpected class names (non-recursive)",
+                         new TreeSet<>(Arrays.asList("pkg.A", "pkg.D")),
+                         ClassNameCollector.findClassNames(loader, "pkg", false));
+
+            for (int i = 0; i < 20; i++) {
+                ClassNameCollector.findClassNames(loader, "pkg", true);
+            }
+            int threads = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if ("emjar-visit".equals(thread.getName())) {
+                    threads++;
+                }
+            }
+            assertTrue("Visitor threads not shared: " + threads,
+                       threads <= Runtime.getRuntime().availableProcessors());
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testVisitEntriesReadOutsideVisit()
+        throws Exception
+    {
+        final Map<String, String> libEntries = new LinkedHashMap<>();
+        libEntries.put("pkg/A.class", "A");
+        libEntries.put("pkg/B.class", "B");
+        final byte[] lib = buildJar(null, libEntries);
+        final File file = new File(temp.newFolder(), "lib.jar");
+        Files.write(lib, file);
+        final URL source = file.toURI().toURL();
+
+        final List<EntryVisitor.Entry> entries = new ArrayList<>();
+        final Map<String, String> read = new HashMap<>();
+        final EntryVisitor visitor = new EntryVisitor() {
+                @Override
+                public void visit(Entry entry)
+                    throws IOException
+                {
+                    entries.add(entry);
+                    // Leave A unread, to check that skipping does not disturb B
+                    if (entry.getName().equals("pkg/B.class")) {
+                        read.put(entry.getName(),
+                                 StandardCharsets.UTF_8.decode(entry.getByteBuffer()).toString());
+                    }
+                }
+            };
+        EntryWalker.visitJarFile(source, file, "pkg/", visitor);
+        EntryWalker.visitJarStream(source, new ByteArrayInputStream(lib), "pkg/", visitor);
+        assertEquals("Unexpected entries visited", 4, entries.size());
+        assertEquals("Unexpected contents read", Collections.singletonMap("pkg/B.class", "B"), read);
+
+        for (EntryVisitor.Entry entry : entries) {
+            try {
+                entry.getByteBuffer();
+                fail("Entry " + entry.getName() + " readable after visit returned");
+            }
+            catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testMergedBundle()
+        throws Exception
+    {
+        final String className = IteratorBackedEnumeration.class.getName();
+        final String entry = className.replace('.', '/') + ".class";
+        final InputStream is = getClass().getClassLoader().getResourceAsStream(entry);
+        final byte[] classBytes;
+        try {
+            classBytes = ByteStreams.toByteArray(is);
+        }
+        finally {
+            is.close();
+        }
+
+        final File dir = temp.newFolder();
+        final Map<String, byte[]> mergedEntries = new LinkedHashMap<>();
+        mergedEntries.put(entry, classBytes);
+        mergedEntries.put("other.txt", "other".getBytes(StandardCharsets.UTF_8));
+        mergedEntries.put(EmJarClassLoader.MERGED_PROVENANCE,
+                          ("@lib/source.jar\n" + entry + "\n@lib/other.jar\nother.txt\n")
+                          .getBytes(StandardCharsets.UTF_8));
+        mergedEntries.put(EmJarClassLoader.MERGED_MANIFESTS_DIR + "lib/source.jar.MF",
+                          ("Manifest-Version: 1.0\nImplementation-Title: source\n\n")
+                          .getBytes(StandardCharsets.UTF_8));
+        final File merged = new File(dir, "merged.jar");
+        writeBundle(merged, null, mergedEntries);
+
+        final Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(EmJarClassLoader.EMJAR_MERGED_JAR_ATTR, "lib/merged.jar");
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, mf, Collections.singletonMap("lib/merged.jar", Files.toByteArray(merged)));
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            final Class<?> cls = loader.loadClass(className);
+            assertSame("Class not defined by merged bundle loader", loader, cls.getClassLoader());
+            final URL location = cls.getProtectionDomain().getCodeSource().getLocation();
+            assertTrue("Code source not that of the original artifact: " + location,
+                       location.toString().endsWith("!/lib/source.jar"));
+            assertEquals("Package metadata not taken from the original manifest",
+                         "source", cls.getPackage().getImplementationTitle());
+
+            final URL other = loader.findResource("other.txt");
+            assertNotNull("Resource of merged jar not found", other);
+            assertEquals("Unexpected resource contents", "other",
+                         new BufferedReader(new InputStreamReader(other.openStream())).readLine());
+        }
+        finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testPreload()
+        throws Exception
+    {
+        final File dir = temp.newFolder();
+        final Map<String, String> entries = new HashMap<>();
+        entries.put("preloaded.txt", "preloaded contents");
+        final File bundle = new File(dir, "app.jar");
+        writeBundle(bundle, null, Collections.singletonMap("lib/lib.jar", buildJar(null, entries)));
+
+        final Properties props = new Properties();
+        props.setProperty("java.class.path", bundle.toString());
+        props.setProperty(EmJarClassLoader.EMJAR_PRELOAD_PROP, "true");
+        final long before = EmJarClassLoader.getBytesInflated();
+        final EmJarClassLoader loader = new EmJarClassLoader(props);
+        try {
+            final URLConnection conn = loader.findResource("preloaded.txt").openConnection();
+            assertTrue("Stored nested jar not preloaded", conn instanceof PreloadedEmbeddedJar.Connection);
+            assertEquals("Unexpected contents", "preloaded contents",
+                         new BufferedReader(new InputStreamReader(conn.getInputStream())).readLine());
+            assertTrue("Inflated bytes not counted",
+                       EmJarClassLoader.getBytesInflated() - before >= "preloaded contents".length());
+        }
+        finally {
+            loader.close();
+        }
+    }
 }
@@ -16,9 +16,19 @@
 
 package no.hassle.emjar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import org.apache.http.client.utils.URIBuilder;
 
 public abstract class EmJarTest
@@ -39,4 +49,56 @@ public abstract class EmJarTest
         }
         return new File(uri.getSchemeSpecificPart());
     }
+
+    /**
+     * Return contents of a jar holding the given text {@code entries},
+     * stored using the default (deflated) method.
+     */
+    protected static byte[] buildJar(
+        final Manifest manifest,
+        final Map<String, String> entries)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final JarOutputStream jar = manifest != null
+            ? new JarOutputStream(bytes, manifest)
+            : new JarOutputStream(bytes);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            jar.putNextEntry(new ZipEntry(entry.getKey()));
+            jar.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            jar.closeEntry();
+        }
+        jar.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a bundle jar to {@code file}, embedding the {@code nested}
+     * jars using the stored method.
+     */
+    protected static void writeBundle(
+        final File file,
+        final Manifest manifest,
+        final Map<String, byte[]> nested)
+        throws IOException
+    {
+        final OutputStream os = new FileOutputStream(file);
+        final JarOutputStream jar = manifest != null
+            ? new JarOutputStream(os, manifest)
+            : new JarOutputStream(os);
+        for (Map.Entry<String, byte[]> entry : nested.entrySet()) {
+            final byte[] cont = entry.getValue();
+            final CRC32 crc = new CRC32();
+            crc.update(cont);
+            final ZipEntry ze = new ZipEntry(entry.getKey());
+            ze.setMethod(ZipEntry.STORED);
+            ze.setSize(cont.length);
+            ze.setCompressedSize(cont.length);
+            ze.setCrc(crc.getValue());
+            jar.putNextEntry(ze);
+            jar.write(cont);
+            jar.closeEntry();
+        }
+        jar.close();
+    }
 }
@@ -39,13 +39,12 @@ public class OndemandEmbeddedJarTest
         throws Exception
     {
         final ZipScanner scanner = new ZipScanner(root);
-        final Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> desc
-            = scanner.scan();
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
         assertNotNull("Descriptor returned from ZipScanner was null", desc);
         return new OndemandEmbeddedJar.Connection(
             new URI("jar:file", root.getPath() + "!/" + jarName + "!/", null).toURL(),
             root.getPath(),
-            desc.get(jarName),
+            desc.get(jarName).getDescriptors(),
             entryName);
     }
 
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import static org.junit.Assume.*;
+
+/**
+ * Rough comparison of the mmap and channel storage backends, scanning
+ * a generated bundle and reading all entries of all nested jars.
+ * Enable by running with <code>-Demjar.benchmark=true</code>.
+ */
+@RunWith(JUnit4.class)
+public class StorageBenchmarkTest
+    extends EmJarTest
+{
+    private static final int JARS = 200;
+    private static final int ENTRIES = 200;
+    private static final int ROUNDS = 10;
+
+    private static File generateBundle()
+        throws Exception
+    {
+        final File bundle = new File(Files.createTempDir(), "bench.jar");
+        final Map<String, byte[]> nested = new LinkedHashMap<>();
+        final StringBuilder cont = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            cont.append("Some reasonably compressible line of content ").append(i).append('\n');
+        }
+        for (int i = 0; i < JARS; i++) {
+            final Map<String, String> entries = new HashMap<>();
+            for (int j = 0; j < ENTRIES; j++) {
+                entries.put("pkg" + i + "/Entry" + j + ".class", cont.toString());
+            }
+            nested.put("lib/lib" + i + ".jar", buildJar(null, entries));
+        }
+        writeBundle(bundle, null, nested);
+        return bundle;
+    }
+
+    private static long run(final Storage storage)
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        final Map<String, ZipScanner.NestedJar> jars = new ZipScanner(storage).scan();
+        for (ZipScanner.NestedJar jar : jars.values()) {
+            for (OndemandEmbeddedJar.Descriptor desc : jar.getDescriptors().values()) {
+                final ZipInputStream is
+                    = new ZipInputStream(new ByteBufferBackedInputStream(desc.getMap()));
+                is.getNextEntry();
+                bytes += ByteStreams.toByteArray(is).length;
+            }
+        }
+        storage.close();
+        final long elapsed = System.nanoTime() - start;
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing read");
+        }
+        return elapsed;
+    }
+
+    @Test
+    public void testCompareBackends()
+        throws Exception
+    {
+        assumeTrue(Boolean.getBoolean("emjar.benchmark"));
+        final File bundle = generateBundle();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long mapped = run(new MappedStorage(bundle));
+            final long channel = run(new ChannelStorage(bundle, Storage.DEFAULT_CACHE_BLOCKS));
+            System.err.println(
+                "StorageBenchmark round " + round
+                    + ": mmap " + mapped / 1000000 + " ms"
+                    + ", channel " + channel / 1000000 + " ms"
+                    + " (" + JARS + " jars x " + ENTRIES + " entries)");
+        }
+    }
+}
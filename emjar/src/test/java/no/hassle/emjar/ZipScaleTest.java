@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.emjar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Scanning of generated bundles at the limits of the zip format: a
+ * nested jar of a million entries (Zip64 entry count), and a nested
+ * jar of more than 4 GB (Zip64 sizes and offsets).  Checks that the
+ * scanned descriptors match what was written, and reports scan times.
+ * Needs about 10 GB of temporary disk space; enable by running with
+ * <code>-Demjar.scale=true</code>.  Scans taking longer than
+ * <code>emjar.scale.maxScanMillis</code> (default 30000) fail.
+ */
+@RunWith(JUnit4.class)
+public class ZipScaleTest
+{
+    private static final int MANY_ENTRIES = 1000000;
+    private static final int LARGE_ENTRIES = 3;
+    private static final long LARGE_SIZE = 1536L << 20;
+    private static final int SMALL_ENTRIES = 10;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    @Before
+    public void checkEnabled()
+    {
+        assumeTrue(Boolean.getBoolean("emjar.scale"));
+    }
+
+    private static void checkScanTime(final String what, final long start)
+    {
+        final long millis = (System.nanoTime() - start) / 1000000;
+        final long max = Long.getLong("emjar.scale.maxScanMillis", 30000);
+        System.err.println("ZipScale " + what + ": scan " + millis + " ms");
+        assertTrue("Scan of " + what + " took " + millis + " ms, more than " + max,
+                   millis <= max);
+    }
+
+    private static String contents(final int i)
+    {
+        return "entry " + i;
+    }
+
+    private static void writeDeflated(final ZipOutputStream zip, final String name, final String contents)
+        throws Exception
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(contents.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private static void writeZeros(final ZipOutputStream zip, final String name, final long size)
+        throws Exception
+    {
+        final byte[] zeros = new byte[CHUNK_SIZE];
+        final CRC32 crc = new CRC32();
+        for (long left = size; left > 0; left -= CHUNK_SIZE) {
+            crc.update(zeros, 0, (int) Math.min(left, CHUNK_SIZE));
+        }
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        for (long left = size; left > 0; left -= CHUNK_SIZE) {
+            zip.write(zeros, 0, (int) Math.min(left, CHUNK_SIZE));
+        }
+        zip.closeEntry();
+    }
+
+    /**
+     * Write a bundle holding {@code lib} stored as {@code name}.
+     */
+    private static void writeBundle(final File bundle, final String name, final File lib)
+        throws Exception
+    {
+        final byte[] buf = new byte[CHUNK_SIZE];
+        final CRC32 crc = new CRC32();
+        final InputStream in = new FileInputStream(lib);
+        try {
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                crc.update(buf, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        final ZipOutputStream zip
+            = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(bundle)));
+        try {
+            final ZipEntry entry = new ZipEntry(name);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(lib.length());
+            entry.setCompressedSize(lib.length());
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            Files.copy(lib, zip);
+            zip.closeEntry();
+        }
+        finally {
+            zip.close();
+        }
+    }
+
+    private static void checkContents(
+        final Map<String, OndemandEmbeddedJar.Descriptor> descs,
+        final String name,
+        final String expected)
+        throws Exception
+    {
+        final OndemandEmbeddedJar.Descriptor desc = descs.get(name);
+        assertNotNull("Entry " + name + " missing", desc);
+        assertEquals("Contents mismatch for " + name, expected,
+                     StandardCharsets.UTF_8.decode(desc.getByteBuffer()).toString());
+    }
+
+    @Test
+    public void testManyEntries()
+        throws Exception
+    {
+        final File dir = Files.createTempDir();
+        final File lib = new File(dir, "lib.jar");
+        final File bundle = new File(dir, "bundle.jar");
+        try {
+            final ZipOutputStream zip
+                = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(lib)));
+            try {
+                for (int i = 0; i < MANY_ENTRIES; i++) {
+                    writeDeflated(zip, "pkg" + i % 1000 + "/Entry" + i + ".class", contents(i));
+                }
+            }
+            finally {
+                zip.close();
+            }
+            writeBundle(bundle, "lib/lib.jar", lib);
+            lib.delete();
+
+            final long start = System.nanoTime();
+            final ZipScanner scanner = new ZipScanner(bundle);
+            try {
+                final ZipScanner.NestedJar nested = scanner.scan().get("lib/lib.jar");
+                assertNotNull("Nested jar not found", nested);
+                final Map<String, OndemandEmbeddedJar.Descriptor> descs = nested.getDescriptors();
+                checkScanTime(MANY_ENTRIES + " entries", start);
+                assertNotNull("Nested jar not loadable on demand", descs);
+                assertEquals("Entry count mismatch", MANY_ENTRIES, descs.size());
+                for (int i = 0; i < MANY_ENTRIES; i += 9973) {
+                    checkContents(descs, "pkg" + i % 1000 + "/Entry" + i + ".class", contents(i));
+                }
+                final int last = MANY_ENTRIES - 1;
+                checkContents(descs, "pkg" + last % 1000 + "/Entry" + last + ".class", contents(last));
+            }
+            finally {
+                scanner.getStorage().close();
+            }
+        }
+        finally {
+            lib.delete();
+            bundle.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLargeNestedJar()
+        throws Exception
+    {
+        final File dir = Files.createTempDir();
+        final File lib = new File(dir, "lib.jar");
+        final File bundle = new File(dir, "bundle.jar");
+        try {
+            final ZipOutputStream zip
+                = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(lib)));
+            try {
+                for (int i = 0; i < LARGE_ENTRIES; i++) {
+                    writeZeros(zip, "large/" + i + ".bin", LARGE_SIZE);
+                }
+                for (int i = 0; i < SMALL_ENTRIES; i++) {
+                    writeDeflated(zip, "small/" + i + ".txt", contents(i));
+                }
+            }
+            finally {
+                zip.close();
+            }
+            writeBundle(bundle, "lib/lib.jar", lib);
+            lib.delete();
+            assertTrue("Generated bundle not larger than 4 GB", bundle.length() > 0xffffffffL);
+
+            // Mapped storage is limited to 2 GB
+            final long start = System.nanoTime();
+            final ZipScanner scanner
+                = new ZipScanner(new ChannelStorage(bundle, Storage.DEFAULT_CACHE_BLOCKS));
+            try {
+                final ZipScanner.NestedJar nested = scanner.scan().get("lib/lib.jar");
+                assertNotNull("Nested jar not found", nested);
+                final Map<String, OndemandEmbeddedJar.Descriptor> descs = nested.getDescriptors();
+                checkScanTime(bundle.length() + " byte bundle", start);
+                assertNotNull("Nested jar not loadable on demand", descs);
+                assertEquals("Entry count mismatch", LARGE_ENTRIES + SMALL_ENTRIES, descs.size());
+                for (int i = 0; i < LARGE_ENTRIES; i++) {
+                    final JarEntry entry = descs.get("large/" + i + ".bin").toJarEntry();
+                    assertEquals("Size mismatch for large entry " + i, LARGE_SIZE, entry.getSize());
+                }
+                for (int i = 0; i < SMALL_ENTRIES; i++) {
+                    checkContents(descs, "small/" + i + ".txt", contents(i));
+                }
+            }
+            finally {
+                scanner.getStorage().close();
+            }
+        }
+        finally {
+            lib.delete();
+            bundle.delete();
+            dir.delete();
+        }
+    }
+}
@@ -16,16 +16,26 @@
 
 package no.hassle.emjar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.JarURLConnection;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.google.common.io.Files;
+
 import static org.junit.Assert.*;
 
 @RunWith(JUnit4.class)
@@ -37,10 +47,9 @@ public class ZipScannerTest
         throws Exception
     {
         final ZipScanner scanner = new ZipScanner(root);
-        final Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> desc
-            = scanner.scan();
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
         final Map<String, OndemandEmbeddedJar.Descriptor> embedded
-            = desc.get(jarName);
+            = desc.get(jarName).getDescriptors();
         assertNotNull("Descriptor entry for " + jarName + " was null", embedded);
         final URL rootUrl = new URL("jar:file:" + root.toString() + "!/");
         return new OndemandEmbeddedJar.Connection(rootUrl, root.toString(), embedded, entryName);
@@ -52,8 +61,7 @@ public class ZipScannerTest
     {
         final File large = getResourceFile("bundle-Z-large.jar");
         final ZipScanner scanner = new ZipScanner(large);
-        final Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> desc
-            = scanner.scan();
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
         assertEquals("ZipScanner did not return empty set for compressed bundle",
                      0, desc.entrySet().size());
     }
@@ -63,10 +71,9 @@ public class ZipScannerTest
     {
         final File plain = getResourceFile("bundle-" + name + ".jar");
         final ZipScanner scanner = new ZipScanner(plain);
-        final Map<String, Map<String, OndemandEmbeddedJar.Descriptor>> desc
-            = scanner.scan();
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
         final Map<String, OndemandEmbeddedJar.Descriptor> embedded
-            = desc.get("lib-" + name + ".jar");
+            = desc.get("lib-" + name + ".jar").getDescriptors();
         assertNotNull("Descriptor entry for lib-" + name + ".jar was null", embedded);
         assertNotNull("File entry for entry-" + name + ".txt", embedded.get("entry-" + name + ".txt"));
     }
@@ -78,4 +85,162 @@ public class ZipScannerTest
         testBundle("s-large");
         testBundle("S-large");
     }
+
+    @Test
+    public void testLazyScan()
+        throws Exception
+    {
+        final File plain = getResourceFile("bundle-mslc.jar");
+        final ZipScanner scanner = new ZipScanner(plain);
+        final Map<String, ZipScanner.NestedJar> desc = scanner.scan();
+        final ZipScanner.NestedJar nested = desc.get("lib-mslc.jar");
+        assertNotNull("Nested jar lib-mslc.jar not found", nested);
+        assertFalse("Nested jar was scanned before use", nested.isScanned());
+        assertNotNull("Descriptors for lib-mslc.jar were null", nested.getDescriptors());
+        assertTrue("Nested jar was not marked as scanned after use", nested.isScanned());
+    }
+
+    /**
+     * Append a comment of {@code length} bytes to the zip archive
+     * {@code zip}, which must not have one.
+     */
+    private static byte[] withComment(final byte[] zip, final int length)
+    {
+        final byte[] result = new byte[zip.length + length];
+        System.arraycopy(zip, 0, result, 0, zip.length);
+        Arrays.fill(result, zip.length, result.length, (byte) 'x');
+        result[zip.length - 2] = (byte) length;
+        result[zip.length - 1] = (byte) (length >>> 8);
+        return result;
+    }
+
+    @Test
+    public void testArchiveComments()
+        throws Exception
+    {
+        final Map<String, String> entries = new HashMap<>();
+        entries.put("entry.txt", "contents");
+        final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new ZipOutputStream(empty).close();
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/commented.jar", withComment(buildJar(null, entries), 40000));
+        nested.put("lib/maximal.jar", withComment(buildJar(null, entries), 0xffff));
+        // End of central directory record at offset 0
+        nested.put("lib/empty.jar", empty.toByteArray());
+
+        final File bundle = File.createTempFile("comments", ".jar");
+        bundle.deleteOnExit();
+        writeBundle(bundle, null, nested);
+        Files.write(withComment(Files.toByteArray(bundle), 40000), bundle);
+
+        final Map<String, ZipScanner.NestedJar> desc = new ZipScanner(bundle).scan();
+        for (String name : new String[] { "lib/commented.jar", "lib/maximal.jar" }) {
+            final Map<String, OndemandEmbeddedJar.Descriptor> descriptors
+                = desc.get(name).getDescriptors();
+            assertNotNull("No descriptors for " + name, descriptors);
+            assertEquals("Unexpected contents in " + name,
+                         "contents",
+                         new String(descriptors.get("entry.txt").getContents(), "UTF-8"));
+        }
+        assertEquals("Unexpected entries in empty jar",
+                     0, desc.get("lib/empty.jar").getDescriptors().size());
+    }
+
+    @Test
+    public void testSignedBundle()
+        throws Exception
+    {
+        final File signed = getResourceFile("bundle-signed.jar");
+        final ZipScanner scanner = new ZipScanner(signed);
+        final ZipScanner.NestedJar nested = scanner.scan().get("lib-signed.jar");
+        assertNotNull("Nested jar lib-signed.jar not found", nested);
+        assertNull("Signed nested jar was considered for on-demand loading",
+                   nested.getDescriptors());
+    }
+
+    @Test
+    public void testBundleManifest()
+        throws Exception
+    {
+        final File bundle = File.createTempFile("manifest", ".jar");
+        bundle.deleteOnExit();
+        final Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(Boot.EMJAR_MAIN_CLASS_ATTR, "no.hassle.Main");
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/lib.jar", buildJar(null, new HashMap<String, String>()));
+        writeBundle(bundle, mf, nested);
+
+        final ZipScanner scanner = new ZipScanner(bundle);
+        scanner.scan();
+        final Manifest scanned = scanner.getManifest();
+        assertNotNull("Bundle manifest not found by scan", scanned);
+        assertEquals("Unexpected manifest attribute", "no.hassle.Main",
+                     scanned.getMainAttributes().getValue(Boot.EMJAR_MAIN_CLASS_ATTR));
+    }
+
+    @Test
+    public void testEntryMetadata()
+        throws Exception
+    {
+        for (String name : new String[]{"mslc", "MSlC", "mSlc", "Mslc"}) {
+            final File bundle = getResourceFile("bundle-" + name + ".jar");
+            final File lib = File.createTempFile("lib-" + name, ".jar");
+            lib.deleteOnExit();
+            final JarFile outer = new JarFile(bundle);
+            Files.asByteSink(lib).writeFrom(outer.getInputStream(outer.getEntry("lib-" + name + ".jar")));
+            outer.close();
+
+            final JarFile expected = new JarFile(lib);
+            final JarFile actual = getJarUrlConnection(
+                bundle, "lib-" + name + ".jar", "entry-" + name + ".txt").getJarFile();
+            assertEquals("Entry count mismatch for " + name, expected.size(), actual.size());
+            final Enumeration<JarEntry> entries = expected.entries();
+            while (entries.hasMoreElements()) {
+                final JarEntry want = entries.nextElement();
+                if (JarFile.MANIFEST_NAME.equals(want.getName())) {
+                    // Size deliberately left unknown, see FileEntry
+                    continue;
+                }
+                final JarEntry got = actual.getJarEntry(want.getName());
+                final String what = name + ": " + want.getName();
+                assertNotNull("Entry missing: " + what, got);
+                assertEquals("Size mismatch: " + what, want.getSize(), got.getSize());
+                assertEquals("Compressed size mismatch: " + what,
+                             want.getCompressedSize(), got.getCompressedSize());
+                assertEquals("CRC mismatch: " + what, want.getCrc(), got.getCrc());
+                assertEquals("Method mismatch: " + what, want.getMethod(), got.getMethod());
+                assertEquals("Time mismatch: " + what, want.getTime(), got.getTime());
+            }
+            expected.close();
+            actual.close();
+        }
+    }
+
+    @Test
+    public void testZip64NestedJar()
+        throws Exception
+    {
+        // More entries than fit the EOCD record, forcing Zip64 end
+        // records in the nested jar, which is stored last in the bundle
+        final int count = 0x10000 + 1;
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("entry-" + i + ".txt", Integer.toString(i));
+        }
+        final File bundle = File.createTempFile("zip64", ".jar");
+        bundle.deleteOnExit();
+        final Map<String, byte[]> nested = new HashMap<>();
+        nested.put("lib/zip64.jar", buildJar(null, entries));
+        writeBundle(bundle, null, nested);
+
+        final ZipScanner scanner = new ZipScanner(bundle);
+        final Map<String, OndemandEmbeddedJar.Descriptor> descs
+            = scanner.scan().get("lib/zip64.jar").getDescriptors();
+        assertNotNull("Zip64 nested jar not loadable on demand", descs);
+        assertEquals("Entry count mismatch", count, descs.size());
+        assertEquals("Contents mismatch", Integer.toString(count - 1), new String(
+                         descs.get("entry-" + (count - 1) + ".txt").getContents(), "UTF-8"));
+        scanner.getStorage().close();
+    }
 }
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link OutputStream} writing to a {@link WritableByteChannel}.  The
+ * generator hands over its own (recycled) output buffer in chunks,
+ * which are wrapped and written to the channel without copying.  The
+ * channel must be in blocking mode.  Closing the stream does not close
+ * the channel.
+ *
+ */
+final class ChannelOutput
+    extends OutputStream
+{
+    private final WritableByteChannel channel;
+
+    ChannelOutput(WritableByteChannel channel)
+    {
+        if (channel instanceof SelectableChannel
+            && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        final ByteBuffer chunk = ByteBuffer.wrap(b, off, len);
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Descriptors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Selection of fields to serialize, given as comma-separated paths of
+ * dot-separated field names, e.g {@code "id,child.name"}.  A path
+ * ending in a message field selects the whole message; fields within
+ * repeated message fields are selected per element.  The empty mask
+ * selects nothing.
+ * <p>
+ * Masks are immutable.  Each mask is compiled against a message type
+ * the first time it is used with it, and the compiled projection is
+ * cached, so serializing with a mask only visits selected fields, and
+ * parsing with a mask skips unselected fields.
+ * Masks parsed from the same specification are shared; see {@link
+ * #parse}.
+ *
+ */
+public final class FieldMask
+{
+    private static final int FIELD_MASK_CACHE_SIZE = 100;
+    /* Maps from mask specifications to parsed masks. */
+    private static final LoadingCache<String, FieldMask> masks =
+        CacheBuilder.newBuilder()
+        .maximumSize(FIELD_MASK_CACHE_SIZE)
+        .build(new CacheLoader<String, FieldMask>() {
+                public FieldMask load(String spec) {
+                    return new FieldMask(spec);
+                }
+            });
+
+    /* Selected field names, with sub-selections; null selects a whole field. */
+    private final SortedMap<String, Node> root;
+    /* Projections refer to their descriptor, so they are held softly. */
+    private final LoadingCache<Descriptors.Descriptor, Projection> projections =
+        CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Descriptors.Descriptor, Projection>() {
+                public Projection load(Descriptors.Descriptor descriptor) {
+                    return compile(descriptor, root, "");
+                }
+            });
+
+    private static final class Node
+    {
+        final SortedMap<String, Node> children = new TreeMap<String, Node>();
+        boolean all = false;
+    }
+
+    private FieldMask(String spec)
+    {
+        final Node top = new Node();
+        for (String path : spec.split(",", -1)) {
+            final String trimmed = path.trim();
+            if (trimmed.isEmpty()) {
+                if (spec.trim().isEmpty()) {
+                    break;
+                }
+                throw new IllegalArgumentException("Empty path in field mask \"" + spec + "\"");
+            }
+            Node node = top;
+            for (String name : trimmed.split("\\.", -1)) {
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException(
+                        "Empty field name in field mask path \"" + trimmed + "\"");
+                }
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(name, child);
+                }
+                node = child;
+            }
+            node.all = true;
+        }
+        root = freeze(top);
+    }
+
+    private static SortedMap<String, Node> freeze(Node node)
+    {
+        if (node.all) {
+            return null;
+        }
+        final SortedMap<String, Node> result = new TreeMap<String, Node>();
+        for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+            final Node child = entry.getValue();
+            if (!child.all) {
+                final Node frozen = new Node();
+                frozen.children.putAll(freeze(child));
+                result.put(entry.getKey(), frozen);
+            }
+            else {
+                result.put(entry.getKey(), null);
+            }
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    /**
+     * Parse a field mask specification, such as the value of a {@code
+     * fields} request parameter.  Recently parsed masks are reused,
+     * along with their compiled projections.
+     *
+     * @param spec comma-separated field paths.
+     * @return field mask
+     * @throws IllegalArgumentException if a path or field name is
+     * empty.
+     */
+    public static FieldMask parse(String spec)
+    {
+        try {
+            return masks.getUnchecked(spec);
+        }
+        catch (UncheckedExecutionException e) {
+            throw (IllegalArgumentException) e.getCause();
+        }
+    }
+
+    /**
+     * Check that every path in this mask names fields of the given
+     * message type, compiling the mask for the type.
+     *
+     * @param descriptor message type
+     * @throws IllegalArgumentException if a path does not match the
+     * message type.
+     */
+    public void validate(Descriptors.Descriptor descriptor)
+    {
+        projection(descriptor);
+    }
+
+    Projection projection(Descriptors.Descriptor descriptor)
+    {
+        try {
+            return projections.getUnchecked(descriptor);
+        }
+        catch (UncheckedExecutionException e) {
+            throw (IllegalArgumentException) e.getCause();
+        }
+    }
+
+    private static Projection compile(
+        Descriptors.Descriptor descriptor,
+        SortedMap<String, Node> selection,
+        String prefix)
+    {
+        final Descriptors.FieldDescriptor[] fields
+            = new Descriptors.FieldDescriptor[selection.size()];
+        int count = 0;
+        for (String name : selection.keySet()) {
+            final Descriptors.FieldDescriptor field = descriptor.findFieldByName(name);
+            if (field == null) {
+                throw new IllegalArgumentException(
+                    "Unknown field " + prefix + name + " in field mask for "
+                    + descriptor.getFullName());
+            }
+            fields[count++] = field;
+        }
+        // Output fields in declaration order, like unmasked output.
+        Arrays.sort(fields, new Comparator<Descriptors.FieldDescriptor>() {
+                public int compare(Descriptors.FieldDescriptor a, Descriptors.FieldDescriptor b) {
+                    return a.getIndex() - b.getIndex();
+                }
+            });
+        final Projection[] children = new Projection[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            final Node node = selection.get(fields[i].getName());
+            if (node == null) {
+                continue;
+            }
+            if (fields[i].getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                throw new IllegalArgumentException(
+                    "Field " + prefix + fields[i].getName()
+                    + " in field mask is not a message");
+            }
+            children[i] = compile(fields[i].getMessageType(), node.children,
+                                  prefix + fields[i].getName() + ".");
+        }
+        return new Projection(descriptor, fields, children);
+    }
+
+    /**
+     * Selected fields of one message type, in declaration order.  A
+     * null child projection selects the whole field value.
+     */
+    static final class Projection
+    {
+        final Descriptors.FieldDescriptor[] fields;
+        final Projection[] children;
+        /* Position in fields by field index, or -1 if not selected */
+        private final int[] positions;
+
+        Projection(
+            Descriptors.Descriptor descriptor,
+            Descriptors.FieldDescriptor[] fields,
+            Projection[] children)
+        {
+            this.fields = fields;
+            this.children = children;
+            positions = new int[descriptor.getFields().size()];
+            Arrays.fill(positions, -1);
+            for (int i = 0; i < fields.length; i++) {
+                positions[fields[i].getIndex()] = i;
+            }
+        }
+
+        int indexOf(Descriptors.FieldDescriptor field)
+        {
+            return positions[field.getIndex()];
+        }
+    }
+
+    private static void paths(String prefix, SortedMap<String, Node> selection, List<String> result)
+    {
+        for (Map.Entry<String, Node> entry : selection.entrySet()) {
+            if (entry.getValue() == null) {
+                result.add(prefix + entry.getKey());
+            }
+            else {
+                paths(prefix + entry.getKey() + ".", entry.getValue().children, result);
+            }
+        }
+    }
+
+    /**
+     * @return selected paths, in canonical form: sorted, with paths
+     * within whole selected messages removed.
+     */
+    public List<String> getPaths()
+    {
+        final List<String> result = new ArrayList<String>();
+        paths("", root, result);
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof FieldMask && getPaths().equals(((FieldMask) other).getPaths());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getPaths().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder();
+        for (String path : getPaths()) {
+            result.append(result.length() > 0 ? "," : "").append(path);
+        }
+        return result.toString();
+    }
+}
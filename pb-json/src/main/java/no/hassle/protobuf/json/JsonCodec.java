@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonReader.InputException;
+import no.hassle.protobuf.json.PbJsonReader.ReaderException;
+import no.hassle.protobuf.json.PbJsonReader.TypeMismatchException;
+import no.hassle.protobuf.json.PbJsonWriter.WriterException;
+
+import com.google.common.base.Optional;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Base class for JSON codecs generated at build time for a single
+ * message type, by {@code protoc-bundled-plugin} with {@code
+ * generateJsonCodecs} enabled.  Generated codecs use the typed
+ * message accessors and builder setters rather than protobuf
+ * reflection, and produce and accept the same JSON as {@link
+ * PbJsonWriter} and {@link PbJsonReader} do without them.
+ * <p>
+ * The codec for message class {@code a.b.Outer$Msg} is named {@code
+ * a.b.Outer_MsgJsonCodec}, and is picked up automatically by readers
+ * and writers if present on the message class' class loader.
+ *
+ * @param <M> message type
+ * @param <B> builder type for the message type
+ */
+public abstract class JsonCodec<M extends Message, B extends Message.Builder>
+{
+    static final String CODEC_SUFFIX = "JsonCodec";
+
+    /*
+     * Stored with the message class; absent for types without codecs.
+     * A codec shares the class loader of its message class, so a cache
+     * keyed on the class would keep the loader alive.
+     */
+    private static final ClassValue<Optional<JsonCodec<?, ?>>> codecs =
+        new ClassValue<Optional<JsonCodec<?, ?>>>() {
+            @Override
+            protected Optional<JsonCodec<?, ?>> computeValue(Class<?> type) {
+                return Optional.<JsonCodec<?, ?>>fromNullable(loadCodec(type));
+            }
+        };
+
+    /**
+     * Write all fields of {@code message} to {@code generator},
+     * without enclosing braces.  See {@link
+     * PbJsonWriter#generateUnwrappedObject}.
+     */
+    public abstract void writeFields(M message, JsonGenerator generator, PbJsonWriter writer)
+        throws WriterException, IOException;
+
+    /**
+     * Read fields from {@code parser}, positioned after the opening
+     * brace, into {@code builder}, up to and including the closing
+     * brace.
+     */
+    public abstract void readFields(B builder, JsonParser parser, PbJsonReader reader)
+        throws ReaderException, IOException;
+
+    /**
+     * Fetch the generated codec for the given message class.  The
+     * codec must only be used with messages and builders of that
+     * class.
+     *
+     * @return codec, or {@code null} if none was generated.
+     */
+    @SuppressWarnings("unchecked")
+    static JsonCodec<Message, Message.Builder> forType(Class<?> type)
+    {
+        return (JsonCodec<Message, Message.Builder>) codecs.get(type).orNull();
+    }
+
+    private static JsonCodec<?, ?> loadCodec(Class<?> type)
+    {
+        final String name = type.getName().replace('$', '_') + CODEC_SUFFIX;
+        try {
+            final Class<?> codec = Class.forName(name, true, type.getClassLoader());
+            if (!JsonCodec.class.isAssignableFrom(codec)) {
+                return null;
+            }
+            return (JsonCodec<?, ?>) codec.newInstance();
+        }
+        catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+        catch (InstantiationException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /* Helpers for generated writers. */
+
+    /**
+     * @return whether to write a repeated field with {@code count}
+     * values.
+     */
+    protected static boolean writeRepeated(PbJsonWriter writer, int count)
+    {
+        return count > 0 || !writer.suppressEmptyRepeated;
+    }
+
+    protected static void writeMessage(PbJsonWriter writer, Message message, JsonGenerator generator)
+        throws WriterException, IOException
+    {
+        writer.generateObject(message, generator);
+    }
+
+    /* Helpers for generated readers, also used by ParsePlan. */
+
+    /**
+     * Advance to the next field of an object.
+     *
+     * @return field name, with the parser positioned at its value, or
+     * {@code null} at the end of the object.
+     */
+    protected static String nextField(JsonParser parser)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new InputException("EOF during parsing");
+        }
+        switch (token) {
+        case END_OBJECT:
+            return null;
+        case FIELD_NAME:
+            // Field names are canonicalized by the parser, so this
+            // does not allocate per field.
+            final String name = parser.getCurrentName();
+            if (parser.nextToken() == null) {
+                throw new InputException("EOF during parsing");
+            }
+            return name;
+        default:
+            throw new InputException(
+                "Saw token " + token.name()
+                    + " when expecting either END_OBJECT or FIELD_NAME");
+        }
+    }
+
+    /**
+     * Check the current value against the field's cardinality.
+     *
+     * @return {@code false} if the value is {@code null}, and the
+     * field should be left absent.
+     */
+    protected static boolean present(JsonParser parser, String field, boolean repeated)
+        throws ReaderException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            // Null values in the JSON document must be represented
+            // as absent values in the protobuf representation.
+            return false;
+        }
+        if ((token == JsonToken.START_ARRAY) != repeated) {
+            throw new TypeMismatchException(
+                field,
+                token == JsonToken.START_ARRAY ? "ARRAY" : "SINGULAR",
+                repeated ? "REPEATED" : "SINGULAR");
+        }
+        return true;
+    }
+
+    /**
+     * Advance to the next element of an array.
+     *
+     * @return element token, or {@code null} at the end of the array.
+     */
+    protected static JsonToken nextElement(JsonParser parser)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.nextToken();
+        if (token == null) {
+            throw new InputException("EOF during parsing");
+        }
+        return token == JsonToken.END_ARRAY ? null : token;
+    }
+
+    protected static void unknownField(PbJsonReader reader, JsonParser parser, String name)
+        throws ReaderException, IOException
+    {
+        if (!reader.allowUnknownFields) {
+            throw new TypeMismatchException("Unknown field " + name + " encountered in input");
+        }
+        parser.skipChildren();
+    }
+
+    protected static boolean readBool(JsonParser parser, String field)
+        throws ReaderException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        switch (token) {
+        case VALUE_FALSE:
+            return false;
+        case VALUE_TRUE:
+            return true;
+        default:
+            throw mismatch(field, "BOOL", token);
+        }
+    }
+
+    protected static int readInt(JsonParser parser, String field, String type)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.VALUE_NUMBER_INT) {
+            throw mismatch(field, type, token);
+        }
+        return parser.getIntValue();
+    }
+
+    protected static long readLong(JsonParser parser, String field, String type)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.VALUE_NUMBER_INT) {
+            throw mismatch(field, type, token);
+        }
+        return parser.getLongValue();
+    }
+
+    protected static double readDouble(JsonParser parser, String field)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        switch (token) {
+        case VALUE_NUMBER_FLOAT:
+            return parser.getDoubleValue();
+        case VALUE_NUMBER_INT:
+            return parser.getLongValue();
+        default:
+            throw mismatch(field, "DOUBLE", token);
+        }
+    }
+
+    protected static float readFloat(JsonParser parser, String field)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        switch (token) {
+        case VALUE_NUMBER_FLOAT:
+            return parser.getFloatValue();
+        case VALUE_NUMBER_INT:
+            return parser.getLongValue();
+        default:
+            throw mismatch(field, "FLOAT", token);
+        }
+    }
+
+    protected static String readString(JsonParser parser, String field)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.VALUE_STRING) {
+            throw mismatch(field, "STRING", token);
+        }
+        return parser.getText();
+    }
+
+    protected static byte[] readBytes(JsonParser parser, String field)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.VALUE_STRING) {
+            throw mismatch(field, "BYTES", token);
+        }
+        return parser.getBinaryValue();
+    }
+
+    protected static Descriptors.EnumValueDescriptor readEnum(
+        JsonParser parser,
+        String field,
+        Descriptors.EnumDescriptor type)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        switch (token) {
+        case VALUE_NUMBER_INT:
+            final Descriptors.EnumValueDescriptor byNumber
+                = type.findValueByNumber(parser.getIntValue());
+            if (byNumber == null) {
+                throw new TypeMismatchException(
+                    "Schema/input mismatch, enum " + field
+                        + " has no member numbered " + parser.getIntValue());
+            }
+            return byNumber;
+        case VALUE_STRING:
+            final Descriptors.EnumValueDescriptor byName
+                = type.findValueByName(parser.getText());
+            if (byName == null) {
+                throw new TypeMismatchException(
+                    "Schema/input mismatch, enum " + field
+                        + " has no member " + parser.getText());
+            }
+            return byName;
+        default:
+            throw mismatch(field, "ENUM", token);
+        }
+    }
+
+    protected static <T extends Message.Builder> T readMessage(
+        PbJsonReader reader,
+        JsonParser parser,
+        String field,
+        T builder)
+        throws ReaderException, IOException
+    {
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.START_OBJECT) {
+            throw mismatch(field, "MESSAGE", token);
+        }
+        return reader.parseObject(builder, parser);
+    }
+
+    static TypeMismatchException mismatch(String field, String type, JsonToken token)
+    {
+        switch (token) {
+        case START_OBJECT:
+            return new TypeMismatchException(field, "OBJECT", type);
+        case VALUE_FALSE:
+        case VALUE_TRUE:
+            return new TypeMismatchException(field, "BOOLEAN", type);
+        case VALUE_NUMBER_FLOAT:
+            return new TypeMismatchException(field, "FRACTIONAL", type);
+        case VALUE_NUMBER_INT:
+            return new TypeMismatchException(field, "NUMBER", type);
+        case VALUE_STRING:
+            return new TypeMismatchException(field, "STRING", type);
+        default:
+            return new TypeMismatchException(
+                "Schema/input mismatch, don't know how to parse " + token.name());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonReader.ReaderException;
+import no.hassle.protobuf.json.PbJsonReader.TypeMismatchException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.WireFormat;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transcoder from JSON documents to protobuf wire format, driven by
+ * the message {@link Descriptors.Descriptor}, as used by {@link
+ * PbJsonReader#transcode}.  Values are read with the same coercion
+ * rules as {@link PbJsonReader#parse} and written straight to a {@link
+ * CodedOutputStream}, without building messages.
+ * <p>
+ * Fields are written in document order.  Nested messages and packed
+ * repeated fields are length-delimited, so their content is encoded
+ * into a buffer per nesting depth first, and copied to the enclosing
+ * output once complete.  The buffers are pooled per thread.
+ *
+ */
+final class JsonToWireTranscoder
+{
+    private static final int LEVEL_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<List<Level>> pool = new ThreadLocal<List<Level>>();
+
+    /**
+     * Output buffer for the content of one length-delimited value at
+     * a given nesting depth.
+     */
+    private static final class Level
+    {
+        final OutputBuffer buffer = new OutputBuffer();
+        final CodedOutputStream coded
+            = CodedOutputStream.newInstance(buffer, LEVEL_BUFFER_SIZE);
+
+        /**
+         * Write the buffered content, prefixed by its length, and
+         * reset the buffer.
+         */
+        void writeTo(CodedOutputStream output)
+            throws IOException
+        {
+            coded.flush();
+            output.writeRawVarint32(buffer.size());
+            buffer.copyTo(output);
+            buffer.reset();
+        }
+    }
+
+    private final PbJsonReader reader;
+    private final JsonParser parser;
+    private final List<Level> levels;
+
+    private JsonToWireTranscoder(PbJsonReader reader, JsonParser parser, List<Level> levels)
+    {
+        this.reader = reader;
+        this.parser = parser;
+        this.levels = levels;
+    }
+
+    /**
+     * Transcode the JSON object at the parser's current {@code
+     * START_OBJECT} token to {@code output}.  Does not flush the
+     * output.
+     */
+    static void transcode(
+        PbJsonReader reader,
+        Descriptors.Descriptor type,
+        JsonParser parser,
+        CodedOutputStream output)
+        throws ReaderException, IOException
+    {
+        // Taken out of the pool while in use.
+        List<Level> levels = pool.get();
+        pool.set(null);
+        if (levels == null) {
+            levels = new ArrayList<Level>();
+        }
+        boolean clean = false;
+        try {
+            new JsonToWireTranscoder(reader, parser, levels).message(type, output, 0);
+            clean = true;
+        }
+        finally {
+            if (clean) {
+                pool.set(levels);
+            }
+        }
+    }
+
+    private Level level(int depth)
+    {
+        while (levels.size() <= depth) {
+            levels.add(new Level());
+        }
+        return levels.get(depth);
+    }
+
+    private void message(Descriptors.Descriptor type, CodedOutputStream output, int depth)
+        throws ReaderException, IOException
+    {
+        final ParsePlan plan = ParsePlan.forDescriptor(type);
+        final List<Descriptors.FieldDescriptor> required = plan.getRequired();
+        final boolean[] seen = required.isEmpty() ? null : new boolean[type.getFields().size()];
+        String name;
+        while ((name = JsonCodec.nextField(parser)) != null) {
+            final ParsePlan.Field field = plan.getField(name);
+            if (field == null) {
+                JsonCodec.unknownField(reader, parser, name);
+                continue;
+            }
+            if (!JsonCodec.present(parser, name, field.repeated)) {
+                continue;
+            }
+            final Descriptors.FieldDescriptor descriptor = field.descriptor;
+            if (!field.repeated) {
+                value(descriptor, output, depth, false);
+                if (seen != null) {
+                    seen[descriptor.getIndex()] = true;
+                }
+            }
+            else if (descriptor.isPacked()) {
+                final Level level = level(depth);
+                boolean empty = true;
+                while (JsonCodec.nextElement(parser) != null) {
+                    value(descriptor, level.coded, depth, true);
+                    empty = false;
+                }
+                if (!empty) {
+                    output.writeTag(descriptor.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    level.writeTo(output);
+                }
+            }
+            else {
+                while (JsonCodec.nextElement(parser) != null) {
+                    value(descriptor, output, depth, false);
+                }
+            }
+        }
+        if (seen != null) {
+            checkRequired(required, seen);
+        }
+    }
+
+    private static void checkRequired(List<Descriptors.FieldDescriptor> required, boolean[] seen)
+        throws TypeMismatchException
+    {
+        StringBuilder missing = null;
+        for (Descriptors.FieldDescriptor field : required) {
+            if (!seen[field.getIndex()]) {
+                missing = missing == null ? new StringBuilder() : missing.append(", ");
+                missing.append(field.getName());
+            }
+        }
+        if (missing != null) {
+            throw new TypeMismatchException("Message missing required fields: " + missing);
+        }
+    }
+
+    /**
+     * Transcode a single value of {@code field}, at the current token.
+     * Packed values are written without tags.
+     */
+    private void value(
+        final Descriptors.FieldDescriptor field,
+        final CodedOutputStream output,
+        final int depth,
+        final boolean packed)
+        throws ReaderException, IOException
+    {
+        final String name = field.getName();
+        final int number = field.getNumber();
+        if (!packed) {
+            output.writeTag(number, field.getLiteType().getWireType());
+        }
+        switch (field.getType()) {
+        case MESSAGE:
+            final JsonToken token = parser.getCurrentToken();
+            if (token != JsonToken.START_OBJECT) {
+                throw JsonCodec.mismatch(name, "MESSAGE", token);
+            }
+            final Level level = level(depth);
+            message(field.getMessageType(), level.coded, depth + 1);
+            level.writeTo(output);
+            break;
+        case BOOL:
+            output.writeBoolNoTag(JsonCodec.readBool(parser, name));
+            break;
+        case DOUBLE:
+            output.writeDoubleNoTag(JsonCodec.readDouble(parser, name));
+            break;
+        case FLOAT:
+            output.writeFloatNoTag(JsonCodec.readFloat(parser, name));
+            break;
+        case INT32:
+            output.writeInt32NoTag(JsonCodec.readInt(parser, name, "INT32"));
+            break;
+        case SINT32:
+            output.writeSInt32NoTag(JsonCodec.readInt(parser, name, "SINT32"));
+            break;
+        case UINT32:
+            output.writeUInt32NoTag(JsonCodec.readInt(parser, name, "UINT32"));
+            break;
+        case FIXED32:
+            output.writeFixed32NoTag(JsonCodec.readInt(parser, name, "FIXED32"));
+            break;
+        case SFIXED32:
+            output.writeSFixed32NoTag(JsonCodec.readInt(parser, name, "SFIXED32"));
+            break;
+        case INT64:
+            output.writeInt64NoTag(JsonCodec.readLong(parser, name, "INT64"));
+            break;
+        case SINT64:
+            output.writeSInt64NoTag(JsonCodec.readLong(parser, name, "SINT64"));
+            break;
+        case UINT64:
+            output.writeUInt64NoTag(JsonCodec.readLong(parser, name, "UINT64"));
+            break;
+        case FIXED64:
+            output.writeFixed64NoTag(JsonCodec.readLong(parser, name, "FIXED64"));
+            break;
+        case SFIXED64:
+            output.writeSFixed64NoTag(JsonCodec.readLong(parser, name, "SFIXED64"));
+            break;
+        case STRING:
+            output.writeStringNoTag(JsonCodec.readString(parser, name));
+            break;
+        case BYTES:
+            final byte[] bytes = JsonCodec.readBytes(parser, name);
+            output.writeRawVarint32(bytes.length);
+            output.writeRawBytes(bytes);
+            break;
+        case ENUM:
+            output.writeEnumNoTag(JsonCodec.readEnum(parser, name, field.getEnumType()).getNumber());
+            break;
+        default:
+            throw JsonCodec.mismatch(name, field.getType().name(), parser.getCurrentToken());
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonReader.InputException;
+import no.hassle.protobuf.json.PbJsonReader.ReaderException;
+import no.hassle.protobuf.json.PbJsonReader.TypeMismatchException;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.UninitializedMessageException;
+
+import org.codehaus.jackson.JsonLocation;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonStreamContext;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy iterator over a sequence of JSON documents, as returned by
+ * {@link PbJsonReader#iterate}.  The input is either a single JSON
+ * array of objects, or a sequence of top-level objects separated by
+ * whitespace, such as newline-delimited JSON.  Records are parsed one
+ * at a time as the iterator advances, so only the current message is
+ * held in memory.
+ * <p>
+ * Records that can't be parsed are reported by {@link #next} throwing
+ * a {@link RecordException}, carrying the record index and input
+ * location.  If the record was well-formed JSON that did not match
+ * the schema, the iterator skips past it, and iteration may continue
+ * with the next record.  Malformed JSON ends the iteration.
+ * <p>
+ * The iterator closes the underlying parser, and with it the input,
+ * once exhausted or when {@link #close closed}.
+ *
+ * @param <T> message type
+ */
+public final class MessageIterator<T extends Message>
+    implements Iterator<T>, Closeable
+{
+    private final PbJsonReader reader;
+    private final T typeInstance;
+    private final JsonParser parser;
+    private boolean started = false;
+    private boolean array = false;
+    private boolean pending = false;
+    private boolean done = false;
+    private int record = 0;
+
+    MessageIterator(PbJsonReader reader, T typeInstance, JsonParser parser)
+    {
+        this.reader = reader;
+        this.typeInstance = typeInstance;
+        this.parser = parser;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (pending) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        final JsonLocation location = parser.getCurrentLocation();
+        try {
+            JsonToken token = parser.nextToken();
+            if (!started) {
+                started = true;
+                if (token == JsonToken.START_ARRAY) {
+                    array = true;
+                    token = parser.nextToken();
+                }
+            }
+            if (token == null) {
+                finish();
+                if (array) {
+                    throw new RecordException(
+                        record, location, new InputException("EOF during parsing"));
+                }
+                return false;
+            }
+            if (array && token == JsonToken.END_ARRAY) {
+                finish();
+                return false;
+            }
+            pending = true;
+            return true;
+        }
+        catch (IOException e) {
+            finish();
+            throw new RecordException(record, parser.getCurrentLocation(), new InputException(e));
+        }
+    }
+
+    @Override
+    public T next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        pending = false;
+        final int index = record++;
+        try {
+            final JsonToken token = parser.getCurrentToken();
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                throw new RecordException(
+                    index, parser.getTokenLocation(),
+                    new TypeMismatchException("Expected JSON object, saw " + token.name()));
+            }
+            final JsonStreamContext outer = parser.getParsingContext().getParent();
+            try {
+                @SuppressWarnings("unchecked")
+                final T result = (T) reader.parseObject(typeInstance.newBuilderForType(), parser).build();
+                return result;
+            }
+            catch (TypeMismatchException e) {
+                final JsonLocation location = parser.getCurrentLocation();
+                skipRecord(outer);
+                throw new RecordException(index, location, e);
+            }
+            catch (UninitializedMessageException e) {
+                throw new RecordException(
+                    index, parser.getCurrentLocation(), new TypeMismatchException(e.getMessage(), e));
+            }
+        }
+        catch (ReaderException e) {
+            finish();
+            throw new RecordException(index, parser.getCurrentLocation(), e);
+        }
+        catch (IOException e) {
+            finish();
+            throw new RecordException(index, parser.getCurrentLocation(), new InputException(e));
+        }
+    }
+
+    /**
+     * Skip to the end of the current record, which is an object
+     * within the {@code outer} context.
+     */
+    private void skipRecord(JsonStreamContext outer)
+        throws IOException
+    {
+        JsonToken token = parser.getCurrentToken();
+        while (!(token == JsonToken.END_OBJECT && parser.getParsingContext() == outer)) {
+            token = parser.nextToken();
+            if (token == null) {
+                finish();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        done = true;
+        pending = false;
+        parser.close();
+    }
+
+    private void finish()
+    {
+        try {
+            close();
+        }
+        catch (IOException e) {
+            // Nothing more to read either way
+        }
+    }
+
+    /**
+     * A single record in the sequence could not be parsed.  The cause
+     * is the {@link ReaderException} raised while parsing it.
+     */
+    public static class RecordException extends RuntimeException
+    {
+        private final int record;
+        private final transient JsonLocation location;
+
+        public RecordException(int record, JsonLocation location, ReaderException cause)
+        {
+            super("Record " + record + " at line " + location.getLineNr()
+                  + ", column " + location.getColumnNr() + ": " + cause.getMessage(), cause);
+            this.record = record;
+            this.location = location;
+        }
+
+        /**
+         * @return zero-based index of the failed record in the sequence.
+         */
+        public int getRecord()
+        {
+            return record;
+        }
+
+        /**
+         * @return input location where parsing of the record failed.
+         */
+        public JsonLocation getLocation()
+        {
+            return location;
+        }
+
+        @Override
+        public ReaderException getCause()
+        {
+            return (ReaderException) super.getCause();
+        }
+    }
+}
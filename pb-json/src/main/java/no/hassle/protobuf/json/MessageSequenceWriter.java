@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonWriter.WriterException;
+
+import com.google.protobuf.Message;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Writer for a sequence of messages, as returned by {@link
+ * PbJsonWriter#newSequenceWriter}.  Messages are written one at a time
+ * through a single {@link JsonGenerator}, either as the elements of a
+ * JSON array or as newline-delimited JSON, so memory use does not
+ * depend on the number of messages written.
+ * <p>
+ * Output is flushed to the target every {@link #setBatchSize batch
+ * size} messages, and on {@link #close}, which also ends the array.
+ * The target itself is not closed.
+ */
+public final class MessageSequenceWriter
+    implements Closeable, Flushable
+{
+    /**
+     * Output format for message sequences.
+     */
+    public enum Format
+    {
+        /** A single JSON array of objects. */
+        ARRAY,
+        /**
+         * One object per line (NDJSON).  Pretty printing does not
+         * apply to this format.
+         */
+        NEWLINE_DELIMITED
+    }
+
+    private final PbJsonWriter writer;
+    private final JsonGenerator generator;
+    private final Format format;
+    private int batchSize = 0;
+    private int pending = 0;
+    private boolean closed = false;
+
+    MessageSequenceWriter(PbJsonWriter writer, JsonGenerator generator, Format format)
+        throws IOException
+    {
+        this.writer = writer;
+        this.generator = generator;
+        this.format = format;
+        if (format == Format.ARRAY) {
+            generator.writeStartArray();
+        }
+        else {
+            generator.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        }
+    }
+
+    /**
+     * Set the number of messages to write between each flush of the
+     * output.
+     *
+     * @param value messages per flush, or 0 to only flush output
+     * when the generator's buffer fills up, and when closing.
+     * Defaults to 0.
+     */
+    public void setBatchSize(int value)
+    {
+        batchSize = value;
+    }
+
+    /**
+     * Write a single message to the sequence.
+     */
+    public void write(Message message)
+        throws WriterException, IOException
+    {
+        if (closed) {
+            throw new IOException("Sequence writer closed");
+        }
+        writer.generateObject(message, generator);
+        if (format == Format.NEWLINE_DELIMITED) {
+            generator.writeRaw('\n');
+        }
+        if (batchSize > 0 && ++pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all messages from {@code messages} to the sequence.
+     */
+    public void writeAll(Iterator<? extends Message> messages)
+        throws WriterException, IOException
+    {
+        while (messages.hasNext()) {
+            write(messages.next());
+        }
+    }
+
+    /**
+     * Write all messages from {@code messages} to the sequence.
+     */
+    public void writeAll(Iterable<? extends Message> messages)
+        throws WriterException, IOException
+    {
+        writeAll(messages.iterator());
+    }
+
+    /**
+     * Flush buffered output to, and flush, the target.
+     */
+    @Override
+    public void flush()
+        throws IOException
+    {
+        pending = 0;
+        generator.flush();
+    }
+
+    /**
+     * End the sequence and flush output.  Does not close the target.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (format == Format.ARRAY) {
+                generator.writeEndArray();
+            }
+        }
+        finally {
+            generator.close();
+        }
+    }
+}
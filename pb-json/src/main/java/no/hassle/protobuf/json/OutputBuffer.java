@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Growable byte buffer for serialized messages, pooled per thread.
+ * Before use, the buffer is sized from an estimate of the output size
+ * for the message type, tracking recent output sizes: it follows
+ * larger sizes immediately, and decays slowly towards smaller ones.
+ * Buffers grown well beyond the estimate for a rare large message are
+ * not kept for reuse.
+ * <p>
+ * Instances created directly serve as plain growable buffers.
+ *
+ */
+final class OutputBuffer
+    extends OutputStream
+{
+    static final int MIN_SIZE = 256;
+    /* Pooled buffers above this size must be justified by the estimate */
+    private static final int RETAIN_SIZE = 64 * 1024;
+    /* Decay of estimate towards smaller sizes, as a shift */
+    private static final int DECAY_SHIFT = 4;
+
+    private static final ThreadLocal<SoftReference<OutputBuffer>> pool
+        = new ThreadLocal<SoftReference<OutputBuffer>>();
+
+    /* Keyed on descriptor identity; estimates go away with their schema. */
+    private static final LoadingCache<Descriptors.Descriptor, AtomicInteger> estimates =
+        CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<Descriptors.Descriptor, AtomicInteger>() {
+                public AtomicInteger load(Descriptors.Descriptor descriptor) {
+                    return new AtomicInteger(MIN_SIZE);
+                }
+            });
+
+    private byte[] buf = new byte[MIN_SIZE];
+    private int count = 0;
+    private boolean inUse = false;
+
+    OutputBuffer()
+    {
+    }
+
+    /**
+     * Fetch this thread's buffer, empty and sized for messages of the
+     * given type.  Must be {@link #release released} after use.
+     */
+    static OutputBuffer acquire(Descriptors.Descriptor type)
+    {
+        final SoftReference<OutputBuffer> ref = pool.get();
+        OutputBuffer buffer = ref == null ? null : ref.get();
+        if (buffer == null || buffer.inUse) {
+            // Nested use gets a buffer of its own.
+            final OutputBuffer fresh = new OutputBuffer();
+            if (buffer == null) {
+                pool.set(new SoftReference<OutputBuffer>(fresh));
+            }
+            buffer = fresh;
+        }
+        buffer.inUse = true;
+        buffer.count = 0;
+        buffer.ensureCapacity(capacityFor(estimate(type)));
+        return buffer;
+    }
+
+    /**
+     * Return the buffer to the pool, recording its size as output size
+     * for the given message type.
+     */
+    void release(Descriptors.Descriptor type)
+    {
+        final int estimate = record(type, count);
+        if (buf.length > RETAIN_SIZE && buf.length > 2 * capacityFor(estimate)) {
+            buf = new byte[capacityFor(estimate)];
+        }
+        count = 0;
+        inUse = false;
+    }
+
+    static int estimate(Descriptors.Descriptor type)
+    {
+        return estimates.getUnchecked(type).get();
+    }
+
+    private static int record(Descriptors.Descriptor type, int size)
+    {
+        final AtomicInteger estimate = estimates.getUnchecked(type);
+        while (true) {
+            final int current = estimate.get();
+            final int next = size >= current
+                ? size
+                : Math.max(MIN_SIZE, current - ((current - size) >> DECAY_SHIFT));
+            if (next == current || estimate.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private static int capacityFor(int estimate)
+    {
+        return estimate + (estimate >> 3);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+        }
+    }
+
+    @Override
+    public void write(int b)
+    {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    void reset()
+    {
+        count = 0;
+    }
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buf, count);
+    }
+
+    void copyTo(byte[] target, int offset)
+    {
+        System.arraycopy(buf, 0, target, offset, count);
+    }
+
+    void copyTo(ByteBuffer target)
+    {
+        target.put(buf, 0, count);
+    }
+
+    void copyTo(CodedOutputStream target)
+        throws IOException
+    {
+        target.writeRawBytes(buf, 0, count);
+    }
+}
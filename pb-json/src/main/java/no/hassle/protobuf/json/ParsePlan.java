@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonReader.ReaderException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+
+import org.codehaus.jackson.JsonParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parse plan for a single message type, compiled once per {@link
+ * Descriptors.Descriptor} and cached.  Maps field names to fields
+ * with a value parser resolved from the field type up front, so that
+ * parsing a field is a single hash lookup on the (canonicalized, see
+ * {@link org.codehaus.jackson.JsonParser#getCurrentName}) field name
+ * followed by a direct call to the value parser.
+ *
+ */
+final class ParsePlan
+{
+    /*
+     * Keyed on descriptor identity.  Plans refer to their descriptor,
+     * so they are held softly, or they would keep the schema alive;
+     * unlike weak values, soft ones survive minor collections, and
+     * are only cleared under memory pressure.
+     */
+    private static final LoadingCache<Descriptors.Descriptor, ParsePlan> plans =
+        CacheBuilder.newBuilder()
+        .weakKeys()
+        .softValues()
+        .build(new CacheLoader<Descriptors.Descriptor, ParsePlan>() {
+                public ParsePlan load(Descriptors.Descriptor descriptor) {
+                    return new ParsePlan(descriptor);
+                }
+            });
+
+    private final Map<String, Field> fields;
+    private final List<Descriptors.FieldDescriptor> required;
+
+    private ParsePlan(Descriptors.Descriptor descriptor)
+    {
+        fields = new HashMap<String, Field>();
+        final List<Descriptors.FieldDescriptor> requiredFields
+            = new ArrayList<Descriptors.FieldDescriptor>();
+        for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+            fields.put(field.getName(), new Field(field));
+            if (field.isRequired()) {
+                requiredFields.add(field);
+            }
+        }
+        required = Collections.unmodifiableList(requiredFields);
+    }
+
+    /**
+     * Fetch the parse plan for the given message type, compiling it
+     * on first use.
+     */
+    static ParsePlan forDescriptor(Descriptors.Descriptor descriptor)
+    {
+        return plans.getUnchecked(descriptor);
+    }
+
+    /**
+     * @return the field named {@code name}, or {@code null} if the
+     * message type has no such field.
+     */
+    Field getField(String name)
+    {
+        return fields.get(name);
+    }
+
+    /**
+     * @return required fields of the message type, in declaration
+     * order.
+     */
+    List<Descriptors.FieldDescriptor> getRequired()
+    {
+        return required;
+    }
+
+    static final class Field
+    {
+        final Descriptors.FieldDescriptor descriptor;
+        final boolean repeated;
+        final ValueParser parser;
+
+        private Field(Descriptors.FieldDescriptor descriptor)
+        {
+            this.descriptor = descriptor;
+            this.repeated = descriptor.isRepeated();
+            this.parser = valueParser(descriptor);
+        }
+    }
+
+    /**
+     * Parser for a single value of a given field, positioned at the
+     * value token.  Returns the value in the representation expected
+     * by {@link Message.Builder#setField}.
+     */
+    abstract static class ValueParser
+    {
+        final Descriptors.FieldDescriptor field;
+        final String name;
+
+        ValueParser(Descriptors.FieldDescriptor field)
+        {
+            this.field = field;
+            this.name = field.getName();
+        }
+
+        abstract Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+            throws ReaderException, IOException;
+    }
+
+    private static ValueParser valueParser(final Descriptors.FieldDescriptor field)
+    {
+        final String type = field.getType().name();
+        switch (field.getType()) {
+        case MESSAGE:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return JsonCodec.readMessage(
+                        reader, parser, name, builder.newBuilderForField(field)).build();
+                }
+            };
+        case BOOL:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException
+                {
+                    return Boolean.valueOf(JsonCodec.readBool(parser, name));
+                }
+            };
+        case DOUBLE:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return Double.valueOf(JsonCodec.readDouble(parser, name));
+                }
+            };
+        case FLOAT:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return Float.valueOf(JsonCodec.readFloat(parser, name));
+                }
+            };
+        case INT32:
+        case SINT32:
+        case UINT32:
+        case FIXED32:
+        case SFIXED32:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return Integer.valueOf(JsonCodec.readInt(parser, name, type));
+                }
+            };
+        case INT64:
+        case SINT64:
+        case UINT64:
+        case FIXED64:
+        case SFIXED64:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return Long.valueOf(JsonCodec.readLong(parser, name, type));
+                }
+            };
+        case STRING:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return JsonCodec.readString(parser, name);
+                }
+            };
+        case BYTES:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return ByteString.copyFrom(JsonCodec.readBytes(parser, name));
+                }
+            };
+        case ENUM:
+            final Descriptors.EnumDescriptor enumType = field.getEnumType();
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException, IOException
+                {
+                    return JsonCodec.readEnum(parser, name, enumType);
+                }
+            };
+        default:
+            return new ValueParser(field) {
+                Object parse(PbJsonReader reader, Message.Builder builder, JsonParser parser)
+                    throws ReaderException
+                {
+                    throw JsonCodec.mismatch(name, type, parser.getCurrentToken());
+                }
+            };
+        }
+    }
+}
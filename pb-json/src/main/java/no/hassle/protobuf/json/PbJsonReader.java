@@ -16,17 +16,21 @@
 
 package no.hassle.protobuf.json;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.Message;
-import static com.google.protobuf.Descriptors.FieldDescriptor.Type;
 
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.JsonToken;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Deserialize JSON documents to Protobuf messages using {@link
@@ -36,8 +40,9 @@ import java.io.InputStream;
 public class PbJsonReader
 {
     private final JsonFactory factory = new JsonFactory();
-    private boolean allowUnknownFields = false;
+    boolean allowUnknownFields = false;
     private boolean allowComments = false;
+    private boolean useGeneratedCodecs = true;
 
     /**
      * Construct new reader instance.  Readers can be reused and
@@ -97,6 +102,18 @@ public class PbJsonReader
         return this;
     }
 
+    /**
+     * Toggle use of generated {@link JsonCodec codecs}, for message
+     * types that have them.
+     *
+     * @param value when {@code false}, always parse using protobuf
+     * reflection.  Defaults to {@code true}.
+     */
+    public void setUseGeneratedCodecs(boolean value)
+    {
+        useGeneratedCodecs = value;
+    }
+
     /**
      * Parse a JSON document given as a {@link String}.
      *
@@ -159,6 +176,146 @@ public class PbJsonReader
         }
     }
 
+    /**
+     * Parse a JSON document given as a range of a byte array, in any
+     * of the JSON encodings.  The array is parsed in place.  See
+     * {@link #parse parse(T, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param data array containing JSON document.
+     * @param offset index of the first byte of the document.
+     * @param length length of the document in bytes.
+     */
+    public <T extends Message> T parse(T typeInstance, byte[] data, int offset, int length)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(data, offset, length);
+            return parse(typeInstance, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse a JSON document given as the remaining content of a {@link
+     * ByteBuffer}: heap, direct or memory-mapped.  The buffer's
+     * position is not changed.  See {@link #parse parse(T, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param buffer JSON document.
+     */
+    public <T extends Message> T parse(T typeInstance, ByteBuffer buffer)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = createParser(buffer);
+            return parse(typeInstance, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse the fields selected by a {@link FieldMask} from a JSON
+     * document given as a {@link String}.  Unselected fields are
+     * skipped at token level, without building their values or
+     * checking them against the schema; unknown field names are still
+     * rejected unless {@link #setAllowUnknownFields allowed}.  See
+     * {@link #parse parse(T, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param mask fields to parse.
+     * @param json JSON document.
+     * @return partial message with the selected fields.  Required
+     * fields are not checked.
+     */
+    public <T extends Message> T parse(T typeInstance, FieldMask mask, String json)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(json);
+            return parse(typeInstance, mask, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse the fields selected by a {@link FieldMask} from a JSON
+     * document given as an {@link InputStream}.  See {@link #parse
+     * parse(T, FieldMask, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param mask fields to parse.
+     * @param stream JSON document.
+     */
+    public <T extends Message> T parse(T typeInstance, FieldMask mask, InputStream stream)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(stream);
+            return parse(typeInstance, mask, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse the fields selected by a {@link FieldMask} from a JSON
+     * document given as a range of a byte array.  See {@link #parse
+     * parse(T, FieldMask, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param mask fields to parse.
+     * @param data array containing JSON document.
+     * @param offset index of the first byte of the document.
+     * @param length length of the document in bytes.
+     */
+    public <T extends Message> T parse(
+        T typeInstance, FieldMask mask, byte[] data, int offset, int length)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(data, offset, length);
+            return parse(typeInstance, mask, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse the fields selected by a {@link FieldMask} from a JSON
+     * document given as the remaining content of a {@link
+     * ByteBuffer}.  See {@link #parse parse(T, FieldMask, String)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param mask fields to parse.
+     * @param buffer JSON document.
+     */
+    public <T extends Message> T parse(T typeInstance, FieldMask mask, ByteBuffer buffer)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = createParser(buffer);
+            return parse(typeInstance, mask, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
     /**
      * Parse a JSON document given as a {@link String}.
      *
@@ -218,6 +375,208 @@ public class PbJsonReader
         }
     }
 
+    /**
+     * Parse a JSON document given as a range of a byte array.  See
+     * {@link #parse parse(T, byte[], int, int)}.
+     *
+     * @param builder {@link com.google.protobuf.Message.Builder}
+     * instance for object type to marshall to.
+     * @param data array containing JSON document.
+     * @param offset index of the first byte of the document.
+     * @param length length of the document in bytes.
+     */
+    public Message parse(Message.Builder builder, byte[] data, int offset, int length)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(data, offset, length);
+            return parse(builder, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Parse a JSON document given as the remaining content of a {@link
+     * ByteBuffer}.  See {@link #parse parse(T, ByteBuffer)}.
+     *
+     * @param builder {@link com.google.protobuf.Message.Builder}
+     * instance for object type to marshall to.
+     * @param buffer JSON document.
+     */
+    public Message parse(Message.Builder builder, ByteBuffer buffer)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = createParser(buffer);
+            return parse(builder, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Transcode a JSON document given as an {@link InputStream}
+     * directly to protobuf wire format, without building a {@link
+     * Message}.  Input is read with the same rules, and rejected with
+     * the same errors, as by {@link #parse parse(T, InputStream)}.
+     * Fields are written in document order, so the output may differ
+     * byte-wise from serializing the parsed message, but parses to the
+     * same message.  The exception is a message field given more than
+     * once in the document: protobuf merges repeated occurrences,
+     * whereas parsing keeps the last.
+     *
+     * @param type message type of the document.
+     * @param stream JSON document.
+     * @param output protobuf wire format is written to this.  Not
+     * flushed or closed.
+     * @return {@code false} if the document was empty, in which case
+     * nothing is written.
+     * @throws IOException if unable to read the document, or to write
+     * the output.
+     */
+    public boolean transcode(Descriptors.Descriptor type, InputStream stream, OutputStream output)
+        throws ReaderException, IOException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(stream);
+            return transcode(type, parser, CodedOutputStream.newInstance(output));
+        }
+        catch (JsonProcessingException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Transcode a JSON document given as a {@link String} directly to
+     * protobuf wire format.  See {@link #transcode(Descriptors.Descriptor,
+     * InputStream, OutputStream)}.
+     *
+     * @param type message type of the document.
+     * @param json JSON document.
+     * @return serialized message, or {@code null} if the document was
+     * empty.
+     */
+    public byte[] transcode(Descriptors.Descriptor type, String json)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(json);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            return transcode(type, parser, CodedOutputStream.newInstance(output))
+                ? output.toByteArray()
+                : null;
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    private boolean transcode(
+        Descriptors.Descriptor type,
+        JsonParser parser,
+        CodedOutputStream output)
+        throws ReaderException, IOException
+    {
+        parser.configure(JsonParser.Feature.ALLOW_COMMENTS, allowComments);
+        JsonToken token = parser.nextToken();
+        if (token == null) {
+            return false;
+        }
+        if (!token.equals(JsonToken.START_OBJECT)) {
+            throw new ReaderException(
+                "JSON document did not start with opening brace");
+        }
+        JsonToWireTranscoder.transcode(this, type, parser, output);
+        output.flush();
+        return true;
+    }
+
+    /**
+     * Iterate over a sequence of JSON documents given as an {@link
+     * InputStream}: either a JSON array of objects, or top-level
+     * objects separated by whitespace (e.g newline-delimited JSON).
+     * Records are parsed lazily, one at a time; see {@link
+     * MessageIterator}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.  See {@link #parse parse(T, String)}.
+     * @param stream JSON document sequence.  Closed when the returned
+     * iterator is exhausted or closed.
+     */
+    public <T extends Message> MessageIterator<T> iterate(T typeInstance, InputStream stream)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(stream);
+            parser.configure(JsonParser.Feature.ALLOW_COMMENTS, allowComments);
+            return new MessageIterator<T>(this, typeInstance, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Iterate over a sequence of JSON documents given as a {@link
+     * File}.  See {@link #iterate iterate(T, InputStream)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param file JSON document sequence.
+     */
+    public <T extends Message> MessageIterator<T> iterate(T typeInstance, File file)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = factory.createJsonParser(file);
+            parser.configure(JsonParser.Feature.ALLOW_COMMENTS, allowComments);
+            return new MessageIterator<T>(this, typeInstance, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Iterate over a sequence of JSON documents given as the remaining
+     * content of a {@link ByteBuffer}, such as a memory-mapped file.
+     * The buffer's position is not changed.  See {@link #iterate
+     * iterate(T, InputStream)}.
+     *
+     * @param typeInstance {@link Message} instance describing object
+     * type to marshall to.
+     * @param buffer JSON document sequence.
+     */
+    public <T extends Message> MessageIterator<T> iterate(T typeInstance, ByteBuffer buffer)
+        throws ReaderException
+    {
+        try {
+            JsonParser parser = createParser(buffer);
+            parser.configure(JsonParser.Feature.ALLOW_COMMENTS, allowComments);
+            return new MessageIterator<T>(this, typeInstance, parser);
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
+    /**
+     * Heap buffers are parsed in place from their backing array;
+     * direct and read-only buffers are read from a duplicate.
+     */
+    private JsonParser createParser(ByteBuffer buffer)
+        throws IOException
+    {
+        if (buffer.hasArray()) {
+            return factory.createJsonParser(
+                buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return factory.createJsonParser(new ByteBufferInput(buffer.duplicate()));
+    }
+
     @SuppressWarnings("unchecked")
     private <T extends Message> T parse(T typeInstance, JsonParser parser)
         throws ReaderException
@@ -249,6 +608,35 @@ public class PbJsonReader
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private <T extends Message> T parse(T typeInstance, FieldMask mask, JsonParser parser)
+        throws ReaderException
+    {
+        final FieldMask.Projection projection;
+        try {
+            projection = mask.projection(typeInstance.getDescriptorForType());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ReaderException(e.getMessage(), e);
+        }
+        parser.configure(JsonParser.Feature.ALLOW_COMMENTS, allowComments);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            if (!token.equals(JsonToken.START_OBJECT)) {
+                throw new ReaderException(
+                    "JSON document did not start with opening brace");
+            }
+            return (T) parseProjectedObject(typeInstance.newBuilderForType(), projection, parser)
+                .buildPartial();
+        }
+        catch (IOException e) {
+            throw new InputException(e);
+        }
+    }
+
     private Message parse(Message.Builder builder, JsonParser parser)
         throws ReaderException
     {
@@ -269,174 +657,100 @@ public class PbJsonReader
         }
     }
 
-    private <T extends Message.Builder> T parseObject(T builder, JsonParser parser)
+    @SuppressWarnings("unchecked")
+    <T extends Message.Builder> T parseObject(T builder, JsonParser parser)
         throws ReaderException, IOException
     {
-        final Descriptors.Descriptor descriptor = builder.getDescriptorForType();
+        if (useGeneratedCodecs) {
+            final JsonCodec<Message, Message.Builder> codec
+                = JsonCodec.forType(builder.getDefaultInstanceForType().getClass());
+            if (codec != null) {
+                codec.readFields(builder, parser, this);
+                return builder;
+            }
+        }
 
-        while (true) {
-            final JsonToken token = parser.nextToken();
-            if (token == null) {
-                throw new InputException("EOF during parsing");
+        final ParsePlan plan = ParsePlan.forDescriptor(builder.getDescriptorForType());
+        String name;
+        while ((name = JsonCodec.nextField(parser)) != null) {
+            final ParsePlan.Field field = plan.getField(name);
+            if (field == null) {
+                JsonCodec.unknownField(this, parser, name);
+                continue;
             }
-            switch (token) {
-            case END_OBJECT:
-                return builder;
-            case FIELD_NAME:
-                final String name = parser.getText();
-                final JsonToken valueToken = parser.nextToken();
-                if (valueToken == null) {
-                    throw new InputException("EOF during parsing");
-                }
-                final Descriptors.FieldDescriptor field = descriptor.findFieldByName(name);
-                if (field == null) {
-                    if (!allowUnknownFields) {
-                        throw new TypeMismatchException("Unknown field " + name + " encountered in input");
-                    }
-                    parser.skipChildren();
-                    continue;
-                }
-                if (valueToken.equals(JsonToken.VALUE_NULL)) {
-                    continue;
-                }
-                if (valueToken.equals(JsonToken.START_ARRAY) != field.isRepeated()) {
-                    throw new TypeMismatchException(
-                        name,
-                        valueToken.equals(JsonToken.START_ARRAY) ? "ARRAY" : "SINGULAR",
-                        field.isRepeated() ? "REPEATED" : "SINGULAR");
-                }
-                if (valueToken.equals(JsonToken.START_ARRAY)) {
-                    parseRepeatedField(builder, field, parser);
-                }
-                else {
-                    Object value = parseValue(builder, field, parser);
-                    if (value != null) {
-                        // Null values in the JSON document must be
-                        // represented as absent values in the
-                        // protobuf representation.
-                        builder.setField(field, value);
-                    }
+            if (!JsonCodec.present(parser, name, field.repeated)) {
+                continue;
+            }
+            if (field.repeated) {
+                while (JsonCodec.nextElement(parser) != null) {
+                    builder.addRepeatedField(
+                        field.descriptor, field.parser.parse(this, builder, parser));
                 }
-                break;
-            default:
-                throw new InputException(
-                    "Saw token " + token.name()
-                        + " when expecting either END_OBJECT or FIELD_NAME");
+            }
+            else {
+                builder.setField(
+                    field.descriptor, field.parser.parse(this, builder, parser));
             }
         }
+        return builder;
     }
 
-    private Object parseValue(
+    private Message.Builder parseProjectedObject(
         final Message.Builder builder,
-        final Descriptors.FieldDescriptor field,
+        final FieldMask.Projection projection,
         final JsonParser parser)
         throws ReaderException, IOException
     {
-        final JsonToken token = parser.getCurrentToken();
-        final Type type = field.getType();
-        switch (token) {
-        case START_OBJECT:
-            if (!type.equals(Type.MESSAGE)) {
-                throw new TypeMismatchException(field.getName(), "OBJECT", type.name());
-            }
-            return parseObject(builder.newBuilderForField(field), parser).build();
-        case VALUE_FALSE:
-            if (!type.equals(Type.BOOL)) {
-                throw new TypeMismatchException(field.getName(), "BOOLEAN", type.name());
+        final ParsePlan plan = ParsePlan.forDescriptor(builder.getDescriptorForType());
+        String name;
+        while ((name = JsonCodec.nextField(parser)) != null) {
+            final ParsePlan.Field field = plan.getField(name);
+            if (field == null) {
+                JsonCodec.unknownField(this, parser, name);
+                continue;
             }
-            return Boolean.FALSE;
-        case VALUE_TRUE:
-            if (!type.equals(Type.BOOL)) {
-                throw new TypeMismatchException(field.getName(), "BOOLEAN", type.name());
+            final int index = projection.indexOf(field.descriptor);
+            if (index < 0) {
+                parser.skipChildren();
+                continue;
             }
-            return Boolean.TRUE;
-        case VALUE_NUMBER_FLOAT:
-            switch (type) {
-            case DOUBLE:
-                return Double.valueOf(parser.getDoubleValue());
-            case FLOAT:
-                return Float.valueOf(parser.getFloatValue());
-            default:
-                throw new TypeMismatchException(field.getName(), "FRACTIONAL", type.name());
+            if (!JsonCodec.present(parser, name, field.repeated)) {
+                continue;
             }
-        case VALUE_NUMBER_INT:
-            switch (type) {
-            case INT32:
-            case SINT32:
-            case UINT32:
-            case FIXED32:
-            case SFIXED32:
-                return Integer.valueOf(parser.getIntValue());
-            case INT64:
-            case SINT64:
-            case UINT64:
-            case FIXED64:
-            case SFIXED64:
-                return Long.valueOf(parser.getLongValue());
-            case DOUBLE:
-                return Double.valueOf(parser.getLongValue());
-            case FLOAT:
-                return Float.valueOf(parser.getLongValue());
-            case ENUM:
-                Descriptors.EnumDescriptor desc = field.getEnumType();
-                Descriptors.EnumValueDescriptor val
-                    = desc.findValueByNumber(parser.getIntValue());
-                if (val == null) {
-                    throw new TypeMismatchException(
-                        "Schema/input mismatch, enum " + field.getName()
-                            + " has no member numbered " + parser.getIntValue());
+            final FieldMask.Projection child = projection.children[index];
+            if (field.repeated) {
+                while (JsonCodec.nextElement(parser) != null) {
+                    builder.addRepeatedField(
+                        field.descriptor,
+                        child == null
+                            ? field.parser.parse(this, builder, parser)
+                            : parseProjectedMessage(builder, field, child, parser));
                 }
-                return val;
-            default:
-                throw new TypeMismatchException(field.getName(), "NUMBER", type.name());
             }
-        case VALUE_STRING:
-            switch (type) {
-            case STRING:
-                return parser.getText();
-            case BYTES:
-                return parser.getBinaryValue();
-            case ENUM:
-                Descriptors.EnumDescriptor desc = field.getEnumType();
-                Descriptors.EnumValueDescriptor val
-                    = desc.findValueByName(parser.getText());
-                if (val == null) {
-                    throw new TypeMismatchException(
-                        "Schema/input mismatch, enum " + field.getName()
-                            + " has no member " + parser.getText());
-                }
-                return val;
-            default:
-                throw new TypeMismatchException(field.getName(), "STRING", type.name());
+            else {
+                builder.setField(
+                    field.descriptor,
+                    child == null
+                        ? field.parser.parse(this, builder, parser)
+                        : parseProjectedMessage(builder, field, child, parser));
             }
-        default:
-            throw new TypeMismatchException(
-                "Schema/input mismatch, don't know how to parse " + token.name());
         }
+        return builder;
     }
 
-    private void parseRepeatedField(
+    private Message parseProjectedMessage(
         final Message.Builder builder,
-        final Descriptors.FieldDescriptor field,
+        final ParsePlan.Field field,
+        final FieldMask.Projection projection,
         final JsonParser parser)
         throws ReaderException, IOException
     {
-        while (true) {
-            final JsonToken elem = parser.nextToken();
-            if (elem == null) {
-                throw new InputException("EOF during parsing");
-            }
-            if (elem.equals(JsonToken.END_ARRAY)) {
-                break;
-            }
-            Object value = parseValue(builder, field, parser);
-            if (value != null) {
-                // This skips null-value array elements when
-                // representing as protobuf.  Arguably we might want
-                // to throw a parse error here.
-                builder.addRepeatedField(field, value);
-            }
+        final JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.START_OBJECT) {
+            throw JsonCodec.mismatch(field.descriptor.getName(), "MESSAGE", token);
         }
+        return parseProjectedObject(builder.newBuilderForField(field.descriptor), projection, parser)
+            .buildPartial();
     }
 
     public static class ReaderException extends Exception
@@ -16,16 +16,25 @@
 
 package no.hassle.protobuf.json;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Serialize Protobuf messages to JSON using {@link JsonFactory
@@ -35,8 +44,11 @@ import java.nio.charset.StandardCharsets;
 public class PbJsonWriter
 {
     private final JsonFactory factory = new JsonFactory();
-    private boolean suppressEmptyRepeated = false;
+    boolean suppressEmptyRepeated = false;
     private boolean usePrettyPrinter = false;
+    private boolean useGeneratedCodecs = true;
+    private boolean sparseFields = false;
+    boolean rejectUnknownFields = false;
 
     /**
      * Construct new writer instance.  Writers can be reused and
@@ -95,6 +107,72 @@ public class PbJsonWriter
         return this;
     }
 
+    /**
+     * Toggle how fields are visited when serializing messages without
+     * a generated {@link JsonCodec codec}.  Produces the same output
+     * either way, but sparse scanning is faster for messages with many
+     * fields of which only a few are populated.
+     *
+     * @param value when {@code true}, determine the populated fields
+     * up front, from the presence bits of generated message classes
+     * or {@link Message#getAllFields}, and visit only those.  When
+     * {@code false}, check each field of the message type in turn.
+     * Defaults to {@code false}.
+     */
+    public void setSparseFields(boolean value)
+    {
+        sparseFields = value;
+    }
+
+    /**
+     * Fluent interface method that corresponds to calling {@link
+     * #setSparseFields} with an argument of {@code true}.
+     * @return writer instance
+     */
+    public PbJsonWriter withSparseFields()
+    {
+        setSparseFields(true);
+        return this;
+    }
+
+    /**
+     * Toggle use of generated {@link JsonCodec codecs}, for message
+     * types that have them.
+     *
+     * @param value when {@code false}, always serialize using protobuf
+     * reflection.  Defaults to {@code true}.
+     */
+    public void setUseGeneratedCodecs(boolean value)
+    {
+        useGeneratedCodecs = value;
+    }
+
+    /**
+     * Toggle handling of unknown fields when {@link #transcodeTo
+     * transcoding} from protobuf wire format.
+     *
+     * @param value when {@code true}, fail on fields in the input that
+     * are not part of the message type, or whose wire type does not
+     * match it.  When {@code false}, skip them, as they would be
+     * skipped when serializing the parsed message.  Defaults to
+     * {@code false}.
+     */
+    public void setRejectUnknownFields(boolean value)
+    {
+        rejectUnknownFields = value;
+    }
+
+    /**
+     * Fluent interface method that corresponds to calling {@link
+     * #setRejectUnknownFields} with an argument of {@code true}.
+     * @return writer instance
+     */
+    public PbJsonWriter withRejectUnknownFields()
+    {
+        setRejectUnknownFields(true);
+        return this;
+    }
+
     /**
      * Generate JSON document from given {@link Message} object.
      * @param message Protobuf value object to serialize
@@ -126,11 +204,7 @@ public class PbJsonWriter
     public void generateTo(Message message, Writer writer)
             throws IOException, WriterException
     {
-        try (JsonGenerator generator = factory.createJsonGenerator(writer)) {
-            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
-            if (usePrettyPrinter) {
-                generator.useDefaultPrettyPrinter();
-            }
+        try (JsonGenerator generator = createGenerator(writer)) {
             generateObject(message, generator);
         }
         finally {
@@ -138,6 +212,431 @@ public class PbJsonWriter
         }
     }
 
+    /**
+     * Write JSON document from given {@link Message} object to an
+     * {@link OutputStream}, encoded as UTF-8.  Jackson's UTF-8
+     * generator encodes directly into (recycled) byte buffers, so this
+     * is cheaper than wrapping the stream in a {@link Writer}.
+     * @param message Protobuf value object to serialize
+     * @param stream Serialized JSON is written to this.
+     * @throws IOException if unable to write the serialized message to the
+     *         {@link OutputStream}
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public void generateTo(Message message, OutputStream stream)
+            throws IOException, WriterException
+    {
+        try (JsonGenerator generator = createGenerator(stream)) {
+            generateObject(message, generator);
+        }
+        finally {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Generate JSON document with the fields of given {@link Message}
+     * object selected by a {@link FieldMask}.  Fields outside the mask
+     * are not visited.
+     * @param message Protobuf value object to serialize
+     * @param mask Fields to include
+     * @return JSON document representing the selected fields
+     * @throws WriterException if unable to produce a serialized
+     * message, or if the mask does not match the message type.
+     */
+    public String generate(Message message, FieldMask mask)
+        throws WriterException
+    {
+        try {
+            StringWriter writer = new StringWriter();
+            generateTo(message, mask, writer);
+            return writer.toString();
+        }
+        catch (IOException e) {
+            throw new WriterException("Unable to write serialized message", e);
+        }
+    }
+
+    /**
+     * Write JSON document with the fields of given {@link Message}
+     * object selected by a {@link FieldMask} to a {@link Writer}.  See
+     * {@link #generate(Message, FieldMask)}.
+     * @param message Protobuf value object to serialize
+     * @param mask Fields to include
+     * @param writer Serialized JSON is written to this.
+     * @throws IOException if unable to write the serialized message to the
+     *         {@link Writer}
+     * @throws WriterException if unable to produce a serialized
+     *         message, or if the mask does not match the message type.
+     */
+    public void generateTo(Message message, FieldMask mask, Writer writer)
+            throws IOException, WriterException
+    {
+        final FieldMask.Projection projection = project(message, mask);
+        try (JsonGenerator generator = createGenerator(writer)) {
+            generateProjectedObject(message, projection, generator);
+        }
+        finally {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Write JSON document with the fields of given {@link Message}
+     * object selected by a {@link FieldMask} to an {@link
+     * OutputStream}, encoded as UTF-8.  See {@link
+     * #generate(Message, FieldMask)}.
+     * @param message Protobuf value object to serialize
+     * @param mask Fields to include
+     * @param stream Serialized JSON is written to this.
+     * @throws IOException if unable to write the serialized message to the
+     *         {@link OutputStream}
+     * @throws WriterException if unable to produce a serialized
+     *         message, or if the mask does not match the message type.
+     */
+    public void generateTo(Message message, FieldMask mask, OutputStream stream)
+            throws IOException, WriterException
+    {
+        final FieldMask.Projection projection = project(message, mask);
+        try (JsonGenerator generator = createGenerator(stream)) {
+            generateProjectedObject(message, projection, generator);
+        }
+        finally {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Generate JSON document from given {@link Message} object, as
+     * UTF-8 bytes.  Output is collected in a per-thread buffer, sized
+     * from recent output sizes for the message type, so the returned
+     * array is normally the only buffer allocated.
+     * @param message Protobuf value object to serialize
+     * @return Serialized JSON, encoded as UTF-8
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public byte[] generateBytes(Message message)
+        throws WriterException
+    {
+        final Descriptors.Descriptor type = message.getDescriptorForType();
+        final OutputBuffer buffer = OutputBuffer.acquire(type);
+        try {
+            generateTo(message, buffer);
+            return buffer.toByteArray();
+        }
+        catch (IOException e) {
+            throw new WriterException("Unable to write serialized message", e);
+        }
+        finally {
+            buffer.release(type);
+        }
+    }
+
+    /**
+     * Write JSON document from given {@link Message} object into a
+     * caller-supplied array, encoded as UTF-8.  If the document does
+     * not fit, nothing is written to the array, and the required
+     * size is reported through {@link BufferTooSmallException}.
+     * @param message Protobuf value object to serialize
+     * @param target Serialized JSON is written to this.
+     * @param offset Index in {@code target} of the first byte written
+     * @return Number of bytes written
+     * @throws BufferTooSmallException if {@code target} does not have
+     *         room for the serialized message after {@code offset}.
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public int generateInto(Message message, byte[] target, int offset)
+        throws WriterException
+    {
+        if (offset < 0 || offset > target.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " outside array of length "
+                                                + target.length);
+        }
+        final Descriptors.Descriptor type = message.getDescriptorForType();
+        final OutputBuffer buffer = OutputBuffer.acquire(type);
+        try {
+            generateTo(message, buffer);
+            final int size = buffer.size();
+            if (size > target.length - offset) {
+                throw new BufferTooSmallException(size, target.length - offset);
+            }
+            buffer.copyTo(target, offset);
+            return size;
+        }
+        catch (IOException e) {
+            throw new WriterException("Unable to write serialized message", e);
+        }
+        finally {
+            buffer.release(type);
+        }
+    }
+
+    /**
+     * Write JSON document from given {@link Message} object into a
+     * {@link ByteBuffer}, heap or direct, encoded as UTF-8.  The
+     * document is written at the buffer's position, which is advanced
+     * past it.  If the document does not fit in the remaining space,
+     * the buffer is left unchanged, and the required size is reported
+     * through {@link BufferTooSmallException}.
+     * @param message Protobuf value object to serialize
+     * @param target Serialized JSON is written to this.
+     * @return Number of bytes written
+     * @throws BufferTooSmallException if {@code target} does not have
+     *         room for the serialized message.
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public int generateInto(Message message, ByteBuffer target)
+        throws WriterException
+    {
+        final Descriptors.Descriptor type = message.getDescriptorForType();
+        final OutputBuffer buffer = OutputBuffer.acquire(type);
+        try {
+            generateTo(message, buffer);
+            final int size = buffer.size();
+            if (size > target.remaining()) {
+                throw new BufferTooSmallException(size, target.remaining());
+            }
+            buffer.copyTo(target);
+            return size;
+        }
+        catch (IOException e) {
+            throw new WriterException("Unable to write serialized message", e);
+        }
+        finally {
+            buffer.release(type);
+        }
+    }
+
+    /**
+     * Write JSON document from given {@link Message} object to a
+     * {@link WritableByteChannel}, encoded as UTF-8.  The generator's
+     * output buffer is written to the channel as it fills up, without
+     * further copying.  The channel must be in blocking mode, and is
+     * not closed.
+     * @param message Protobuf value object to serialize
+     * @param channel Serialized JSON is written to this.
+     * @throws IOException if unable to write the serialized message to the
+     *         channel
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public void generateTo(Message message, WritableByteChannel channel)
+            throws IOException, WriterException
+    {
+        try (JsonGenerator generator = createGenerator(new ChannelOutput(channel))) {
+            generateObject(message, generator);
+        }
+    }
+
+    /**
+     * Generate JSON document from a message in protobuf wire format,
+     * without parsing it to a {@link Message}.  The document is the
+     * same as generated from the parsed message.  See {@link
+     * #transcodeTo(Descriptors.Descriptor, byte[], int, int,
+     * OutputStream)}.
+     * @param type message type of the input
+     * @param data serialized message
+     * @return JSON document representing the message
+     * @throws WriterException if the input is not a valid message, or
+     *         unable to produce a serialized message.
+     */
+    public String transcode(Descriptors.Descriptor type, byte[] data)
+        throws WriterException
+    {
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = createGenerator(writer)) {
+                transcode(type, data, 0, data.length, generator);
+            }
+            return writer.toString();
+        }
+        catch (IOException e) {
+            throw new WriterException("Unable to write serialized message", e);
+        }
+    }
+
+    /**
+     * Write JSON document from a message in protobuf wire format to an
+     * {@link OutputStream}, encoded as UTF-8, without parsing it to a
+     * {@link Message}.  The document is the same as generated from the
+     * parsed message; unknown fields are skipped unless {@link
+     * #setRejectUnknownFields rejected}.  Fields are streamed from the
+     * input where it is in field order, as serialized by protobuf, so
+     * that repeated fields of any size are transcoded in constant
+     * memory; other messages are parsed before writing.
+     * @param type message type of the input
+     * @param data array containing serialized message
+     * @param offset index of the first byte of the message
+     * @param length length of the message in bytes
+     * @param stream Serialized JSON is written to this.
+     * @throws IOException if unable to write the document to the
+     *         {@link OutputStream}
+     * @throws WriterException if the input is not a valid message, or
+     *         unable to produce a serialized message.
+     */
+    public void transcodeTo(
+        Descriptors.Descriptor type,
+        byte[] data,
+        int offset,
+        int length,
+        OutputStream stream)
+            throws IOException, WriterException
+    {
+        try (JsonGenerator generator = createGenerator(stream)) {
+            transcode(type, data, offset, length, generator);
+        }
+        finally {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Write JSON document from a message in protobuf wire format, read
+     * from an {@link InputStream}, to an {@link OutputStream}, encoded
+     * as UTF-8.  See {@link #transcodeTo(Descriptors.Descriptor,
+     * byte[], int, int, OutputStream)}.  As the input can't be scanned
+     * ahead, messages must be in field order, with the elements of
+     * repeated fields together, as serialized by protobuf; messages
+     * of types with fields declared out of number order are parsed.
+     * @param type message type of the input
+     * @param input serialized message, read to the end
+     * @param stream Serialized JSON is written to this.
+     * @throws IOException if unable to read the input, or write the
+     *         document to the {@link OutputStream}
+     * @throws WriterException if the input is not a valid message, is
+     *         not in field order, or unable to produce a serialized
+     *         message.
+     */
+    public void transcodeTo(Descriptors.Descriptor type, InputStream input, OutputStream stream)
+            throws IOException, WriterException
+    {
+        final CodedInputStream coded = CodedInputStream.newInstance(input);
+        coded.setSizeLimit(Integer.MAX_VALUE);
+        try (JsonGenerator generator = createGenerator(stream)) {
+            WireToJsonTranscoder.transcode(this, type, coded, null, 0, 0, generator);
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new WriterException("Invalid wire format input", e);
+        }
+        finally {
+            stream.flush();
+        }
+    }
+
+    private void transcode(
+        Descriptors.Descriptor type,
+        byte[] data,
+        int offset,
+        int length,
+        JsonGenerator generator)
+        throws IOException, WriterException
+    {
+        final CodedInputStream coded = CodedInputStream.newInstance(data, offset, length);
+        coded.setSizeLimit(Integer.MAX_VALUE);
+        try {
+            WireToJsonTranscoder.transcode(
+                this, type, coded, data, offset, offset + length, generator);
+        }
+        catch (InvalidProtocolBufferException e) {
+            throw new WriterException("Invalid wire format input", e);
+        }
+    }
+
+    /**
+     * Write a sequence of {@link Message} objects to a {@link Writer},
+     * as a JSON array or newline-delimited JSON.  See {@link
+     * MessageSequenceWriter}.
+     * @param messages Protobuf value objects to serialize
+     * @param writer Serialized JSON is written to this.
+     * @param format Sequence format
+     * @throws IOException if unable to write the serialized messages
+     *         to the {@link Writer}
+     * @throws WriterException if unable to produce a serialized message.
+     */
+    public void generateSequenceTo(
+        Iterable<? extends Message> messages,
+        Writer writer,
+        MessageSequenceWriter.Format format)
+            throws IOException, WriterException
+    {
+        try (MessageSequenceWriter sequence = newSequenceWriter(writer, format)) {
+            sequence.writeAll(messages);
+        }
+    }
+
+    /**
+     * Start writing a sequence of messages to a {@link Writer}, as a
+     * JSON array or newline-delimited JSON.  The sequence must be
+     * closed to end it.
+     * @param writer Serialized JSON is written to this.
+     * @param format Sequence format
+     * @return sequence writer
+     * @throws IOException if unable to write to the {@link Writer}
+     */
+    public MessageSequenceWriter newSequenceWriter(
+        Writer writer,
+        MessageSequenceWriter.Format format)
+            throws IOException
+    {
+        return new MessageSequenceWriter(this, createGenerator(writer), format);
+    }
+
+    /**
+     * Start writing a sequence of messages to an {@link OutputStream},
+     * encoded as UTF-8.  See {@link #newSequenceWriter(Writer,
+     * MessageSequenceWriter.Format)}.
+     * @param stream Serialized JSON is written to this.
+     * @param format Sequence format
+     * @return sequence writer
+     * @throws IOException if unable to write to the {@link OutputStream}
+     */
+    public MessageSequenceWriter newSequenceWriter(
+        OutputStream stream,
+        MessageSequenceWriter.Format format)
+            throws IOException
+    {
+        return new MessageSequenceWriter(this, createGenerator(stream), format);
+    }
+
+    /**
+     * Start writing a sequence of messages to a {@link
+     * WritableByteChannel}, encoded as UTF-8.  Output is written to the
+     * channel in chunks of the generator's buffer size, or on each
+     * flush.  The channel must be in blocking mode.  See {@link
+     * #newSequenceWriter(Writer, MessageSequenceWriter.Format)}.
+     * @param channel Serialized JSON is written to this.
+     * @param format Sequence format
+     * @return sequence writer
+     * @throws IOException if unable to write to the channel
+     */
+    public MessageSequenceWriter newSequenceWriter(
+        WritableByteChannel channel,
+        MessageSequenceWriter.Format format)
+            throws IOException
+    {
+        return newSequenceWriter(new ChannelOutput(channel), format);
+    }
+
+    private JsonGenerator createGenerator(Writer writer)
+        throws IOException
+    {
+        return configure(factory.createJsonGenerator(writer));
+    }
+
+    private JsonGenerator createGenerator(OutputStream stream)
+        throws IOException
+    {
+        return configure(factory.createJsonGenerator(stream, JsonEncoding.UTF8));
+    }
+
+    private JsonGenerator configure(JsonGenerator generator)
+    {
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (usePrettyPrinter) {
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
     protected void generateObject(Message message, JsonGenerator generator)
         throws WriterException, IOException
     {
@@ -149,28 +648,166 @@ public class PbJsonWriter
     protected void generateUnwrappedObject(Message message, JsonGenerator generator)
         throws WriterException, IOException
     {
+        if (useGeneratedCodecs) {
+            final JsonCodec<Message, Message.Builder> codec = JsonCodec.forType(message.getClass());
+            if (codec != null) {
+                codec.writeFields(message, generator, this);
+                return;
+            }
+        }
         final Descriptors.Descriptor descriptor = message.getDescriptorForType();
+        if (sparseFields) {
+            final PresencePlan plan = PresencePlan.forType(message.getClass());
+            if (plan != null) {
+                generateSparseObject(message, descriptor, plan, generator);
+                return;
+            }
+            if (suppressEmptyRepeated && isNumberOrdered(descriptor)) {
+                // Present fields only, ordered by field number.
+                for (Map.Entry<Descriptors.FieldDescriptor, Object> entry
+                         : message.getAllFields().entrySet())
+                {
+                    final Descriptors.FieldDescriptor field = entry.getKey();
+                    generator.writeFieldName(field.getName());
+                    if (field.isRepeated()) {
+                        generator.writeStartArray();
+                        for (Object value : (List<?>) entry.getValue()) {
+                            generateValue(field, value, generator);
+                        }
+                        generator.writeEndArray();
+                    }
+                    else {
+                        generateValue(field, entry.getValue(), generator);
+                    }
+                }
+                return;
+            }
+        }
         for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
             if (field.isRepeated()) {
+                generateRepeatedField(message, field, generator);
+            }
+            else {
+                if (!message.hasField(field)) {
+                    continue;
+                }
+                generator.writeFieldName(field.getName());
+                generateValue(field, message.getField(field), generator);
+            }
+        }
+    }
+
+    private static FieldMask.Projection project(Message message, FieldMask mask)
+        throws WriterException
+    {
+        try {
+            return mask.projection(message.getDescriptorForType());
+        }
+        catch (IllegalArgumentException e) {
+            throw new WriterException(e.getMessage(), e);
+        }
+    }
+
+    private void generateProjectedObject(
+        final Message message,
+        final FieldMask.Projection projection,
+        final JsonGenerator generator)
+        throws WriterException, IOException
+    {
+        generator.writeStartObject();
+        for (int i = 0; i < projection.fields.length; i++) {
+            final Descriptors.FieldDescriptor field = projection.fields[i];
+            final FieldMask.Projection child = projection.children[i];
+            if (child == null) {
+                if (field.isRepeated()) {
+                    generateRepeatedField(message, field, generator);
+                }
+                else if (message.hasField(field)) {
+                    generator.writeFieldName(field.getName());
+                    generateValue(field, message.getField(field), generator);
+                }
+            }
+            else if (field.isRepeated()) {
                 final int length = message.getRepeatedFieldCount(field);
                 if (suppressEmptyRepeated && length == 0) {
                     continue;
                 }
                 generator.writeFieldName(field.getName());
                 generator.writeStartArray();
-                for (int i = 0; i < length; i++) {
-                    generateValue(field, message.getRepeatedField(field, i), generator);
+                for (int j = 0; j < length; j++) {
+                    generateProjectedObject((Message) message.getRepeatedField(field, j), child, generator);
                 }
                 generator.writeEndArray();
             }
-            else {
-                if (!message.hasField(field)) {
+            else if (message.hasField(field)) {
+                generator.writeFieldName(field.getName());
+                generateProjectedObject((Message) message.getField(field), child, generator);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private void generateSparseObject(
+        final Message message,
+        final Descriptors.Descriptor descriptor,
+        final PresencePlan plan,
+        final JsonGenerator generator)
+        throws WriterException, IOException
+    {
+        final int[] presence = plan.scan(message);
+        final int[] repeated = plan.repeatedFields();
+        final List<Descriptors.FieldDescriptor> fields = descriptor.getFields();
+        int next = 0;
+        for (int w = 0; w < presence.length; w++) {
+            int bits = presence[w];
+            while (bits != 0) {
+                final int index = plan.fieldIndex(w, Integer.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+                if (index < 0) {
                     continue;
                 }
+                // Repeated fields declared before this one go first
+                while (next < repeated.length && repeated[next] < index) {
+                    generateRepeatedField(message, fields.get(repeated[next++]), generator);
+                }
+                final Descriptors.FieldDescriptor field = fields.get(index);
                 generator.writeFieldName(field.getName());
                 generateValue(field, message.getField(field), generator);
             }
         }
+        while (next < repeated.length) {
+            generateRepeatedField(message, fields.get(repeated[next++]), generator);
+        }
+    }
+
+    private void generateRepeatedField(
+        final Message message,
+        final Descriptors.FieldDescriptor field,
+        final JsonGenerator generator)
+        throws WriterException, IOException
+    {
+        final int length = message.getRepeatedFieldCount(field);
+        if (suppressEmptyRepeated && length == 0) {
+            return;
+        }
+        generator.writeFieldName(field.getName());
+        generator.writeStartArray();
+        for (int i = 0; i < length; i++) {
+            generateValue(field, message.getRepeatedField(field, i), generator);
+        }
+        generator.writeEndArray();
+    }
+
+    static boolean isNumberOrdered(Descriptors.Descriptor descriptor)
+    {
+        int last = 0;
+        for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+            if (field.getNumber() < last) {
+                return false;
+            }
+            last = field.getNumber();
+        }
+        return true;
     }
 
     private void generateValue(
@@ -219,7 +856,7 @@ public class PbJsonWriter
             generator.writeString((String) value);
             break;
         case BYTES:
-            generator.writeBinary(((String) value).getBytes(StandardCharsets.UTF_8));
+            generator.writeBinary(((ByteString) value).toByteArray());
             break;
         case ENUM:
             generator.writeString(((Descriptors.EnumValueDescriptor) value).getName());
@@ -236,4 +873,28 @@ public class PbJsonWriter
         public WriterException(String message, Throwable cause) { super(message, cause); }
         public WriterException(Throwable cause) { super(cause); }
     }
+
+    /**
+     * Serialized message did not fit in the target array given to
+     * {@link #generateInto}.
+     */
+    public static class BufferTooSmallException extends WriterException
+    {
+        private final int required;
+
+        public BufferTooSmallException(int required, int available)
+        {
+            super("Serialized message needs " + required + " bytes, "
+                  + available + " available");
+            this.required = required;
+        }
+
+        /**
+         * @return size of the serialized message, in bytes.
+         */
+        public int getRequired()
+        {
+            return required;
+        }
+    }
 }
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import com.google.common.base.Optional;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.Message;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Presence scan for generated message classes, compiled once per
+ * class and cached.  Generated messages track presence of singular
+ * fields in {@code bitField<n>_} words; reading those words gives the
+ * presence of 32 fields at a time, instead of one reflective {@link
+ * Message#hasField} call per field.
+ * <p>
+ * The word and bit of each field is not part of protobuf's API, so it
+ * is established by setting each field in turn on an empty builder and
+ * observing which bit changes.  Classes where this does not give
+ * exactly one distinct bit per singular field, with bits in field
+ * declaration order, get no plan.
+ *
+ */
+final class PresencePlan
+{
+    private static final Pattern BIT_FIELD = Pattern.compile("bitField(\\d+)_");
+
+    /*
+     * Stored with the message class, as plans refer to its fields;
+     * absent where the scan is not possible.
+     */
+    private static final ClassValue<Optional<PresencePlan>> plans =
+        new ClassValue<Optional<PresencePlan>>() {
+            @Override
+            protected Optional<PresencePlan> computeValue(Class<?> type) {
+                return Optional.fromNullable(compile(type));
+            }
+        };
+
+    private final Field[] words;
+    /* Field index (in descriptor order) of each presence bit, or -1 */
+    private final int[] fieldAt;
+    /* Indices of the repeated fields, which have no presence bits */
+    private final int[] repeated;
+
+    private PresencePlan(Field[] words, int[] fieldAt, int[] repeated)
+    {
+        this.words = words;
+        this.fieldAt = fieldAt;
+        this.repeated = repeated;
+    }
+
+    /**
+     * Fetch the presence plan for the given message class, compiling
+     * it on first use.
+     *
+     * @return plan, or {@code null} if presence can't be scanned.
+     */
+    static PresencePlan forType(Class<?> type)
+    {
+        return plans.get(type).orNull();
+    }
+
+    /**
+     * Read the presence words of {@code message}.
+     */
+    int[] scan(Message message)
+    {
+        return scan(words, message);
+    }
+
+    /**
+     * @return index (in descriptor order) of the singular field
+     * tracked by {@code bit} of presence word {@code word}, or -1 if
+     * the bit tracks no field.  Bits are assigned in descriptor order,
+     * so iterating the set bits of the presence words visits present
+     * fields in that order.
+     */
+    int fieldIndex(int word, int bit)
+    {
+        return fieldAt[word * Integer.SIZE + bit];
+    }
+
+    /**
+     * @return indices (in descriptor order) of the repeated fields,
+     * ascending.  Not to be modified.
+     */
+    int[] repeatedFields()
+    {
+        return repeated;
+    }
+
+    private static int[] scan(Field[] words, Message message)
+    {
+        final int[] result = new int[words.length];
+        try {
+            for (int i = 0; i < words.length; i++) {
+                result[i] = words[i].getInt(message);
+            }
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    private static PresencePlan compile(Class<?> type)
+    {
+        if (!GeneratedMessage.class.isAssignableFrom(type)) {
+            return null;
+        }
+        try {
+            final List<Field> found = new ArrayList<Field>();
+            for (Field field : type.getDeclaredFields()) {
+                final Matcher m = BIT_FIELD.matcher(field.getName());
+                if (m.matches() && field.getType() == int.class
+                    && !Modifier.isStatic(field.getModifiers()))
+                {
+                    final int n = Integer.parseInt(m.group(1));
+                    while (found.size() <= n) {
+                        found.add(null);
+                    }
+                    field.setAccessible(true);
+                    found.set(n, field);
+                }
+            }
+            if (found.contains(null)) {
+                return null;
+            }
+            final Field[] words = found.toArray(new Field[found.size()]);
+
+            final Message prototype
+                = (Message) type.getMethod("getDefaultInstance").invoke(null);
+            if (!isZero(scan(words, prototype))) {
+                return null;
+            }
+            final List<Descriptors.FieldDescriptor> fields
+                = prototype.getDescriptorForType().getFields();
+            final int[] fieldAt = new int[words.length * Integer.SIZE];
+            Arrays.fill(fieldAt, -1);
+            final List<Integer> repeated = new ArrayList<Integer>();
+
+            int last = -1;
+            for (int i = 0; i < fields.size(); i++) {
+                final Descriptors.FieldDescriptor field = fields.get(i);
+                if (field.isRepeated()) {
+                    repeated.add(i);
+                    continue;
+                }
+                final Message.Builder builder = prototype.newBuilderForType();
+                builder.setField(
+                    field,
+                    field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE
+                        ? builder.newBuilderForField(field).buildPartial()
+                        : field.getDefaultValue());
+                final int[] presence = scan(words, builder.buildPartial());
+                int position = -1;
+                for (int w = 0; w < presence.length; w++) {
+                    if (presence[w] == 0) {
+                        continue;
+                    }
+                    if (position != -1 || Integer.bitCount(presence[w]) != 1) {
+                        return null;
+                    }
+                    position = w * Integer.SIZE + Integer.numberOfTrailingZeros(presence[w]);
+                }
+                // Bits must follow descriptor order; this also rules
+                // out fields sharing a bit.
+                if (position <= last) {
+                    return null;
+                }
+                fieldAt[position] = i;
+                last = position;
+            }
+            return new PresencePlan(words, fieldAt, Ints.toArray(repeated));
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Including SecurityException from setAccessible.
+            return null;
+        }
+    }
+
+    private static boolean isZero(int[] presence)
+    {
+        for (int word : presence) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.PbJsonWriter.WriterException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transcoder from protobuf wire format to JSON, driven by the message
+ * {@link Descriptors.Descriptor}, as used by {@link
+ * PbJsonWriter#transcodeTo}.  Values are read from a {@link
+ * CodedInputStream} and written straight to a {@link JsonGenerator},
+ * producing the same document as {@link PbJsonWriter#generate} for the
+ * parsed message.
+ * <p>
+ * The writer emits fields in declaration order, whereas protobuf
+ * serializers emit them in field number order, with the elements of
+ * each repeated field together.  Where the two agree, messages are
+ * streamed field by field, nested messages within a pushed limit, so
+ * memory use does not depend on the number of elements in repeated
+ * fields.  Array input is scanned ahead per message, and messages
+ * that are not in order are parsed to a {@link DynamicMessage} and
+ * written from that.  Stream input can't be scanned ahead, so fields
+ * out of order are reported as an error.  Messages of types whose
+ * declaration order is not number order are always parsed.
+ *
+ */
+final class WireToJsonTranscoder
+{
+    /* Keyed on descriptor identity; flags go away with their schema. */
+    private static final LoadingCache<Descriptors.Descriptor, Boolean> streamable =
+        CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(new CacheLoader<Descriptors.Descriptor, Boolean>() {
+                public Boolean load(Descriptors.Descriptor descriptor) {
+                    return PbJsonWriter.isNumberOrdered(descriptor);
+                }
+            });
+
+    private final PbJsonWriter writer;
+    private final CodedInputStream input;
+    private final JsonGenerator generator;
+    /* Array backing the input, for scanning ahead, or null */
+    private final byte[] data;
+    private final int offset;
+    private final int end;
+
+    private WireToJsonTranscoder(
+        PbJsonWriter writer,
+        CodedInputStream input,
+        byte[] data,
+        int offset,
+        int end,
+        JsonGenerator generator)
+    {
+        this.writer = writer;
+        this.input = input;
+        this.data = data;
+        this.offset = offset;
+        this.end = end;
+        this.generator = generator;
+    }
+
+    /**
+     * Transcode a message read from {@code input} to a JSON object.
+     * If {@code data} is not null, it is the array {@code input} reads,
+     * from {@code offset} to {@code end}.
+     */
+    static void transcode(
+        PbJsonWriter writer,
+        Descriptors.Descriptor type,
+        CodedInputStream input,
+        byte[] data,
+        int offset,
+        int end,
+        JsonGenerator generator)
+        throws WriterException, IOException
+    {
+        new WireToJsonTranscoder(writer, input, data, offset, end, generator).message(type);
+    }
+
+    /**
+     * Transcode the message that extends to the current limit, or the
+     * end of input.
+     */
+    private void message(Descriptors.Descriptor type)
+        throws WriterException, IOException
+    {
+        if (!streamable.getUnchecked(type) || (data != null && !inOrder(type))) {
+            final DynamicMessage message
+                = DynamicMessage.newBuilder(type).mergeFrom(input).buildPartial();
+            if (writer.rejectUnknownFields && hasUnknownFields(message)) {
+                throw new WriterException(
+                    "Unknown fields in wire format input for " + type.getFullName());
+            }
+            writer.generateObject(message, generator);
+            return;
+        }
+        new Fields(type).transcode();
+    }
+
+    /**
+     * Scan ahead from the current position, to check that known
+     * fields are in declaration order, and repeated fields contiguous.
+     */
+    private boolean inOrder(Descriptors.Descriptor type)
+        throws IOException
+    {
+        final int start = offset + input.getTotalBytesRead();
+        final int remaining = input.getBytesUntilLimit();
+        final CodedInputStream scanner = CodedInputStream.newInstance(
+            data, start, remaining < 0 ? end - start : remaining);
+        scanner.setSizeLimit(Integer.MAX_VALUE);
+        int last = -1;
+        int tag;
+        while ((tag = scanner.readTag()) != 0) {
+            final Descriptors.FieldDescriptor field
+                = type.findFieldByNumber(WireFormat.getTagFieldNumber(tag));
+            if (field != null && accepts(field, wireType(tag))) {
+                final int index = field.getIndex();
+                if (index < last || (index == last && !field.isRepeated())) {
+                    return false;
+                }
+                last = index;
+            }
+            scanner.skipField(tag);
+        }
+        return true;
+    }
+
+    /* WireFormat.getTagWireType() is not public in protobuf 2.4 */
+    private static int wireType(int tag)
+    {
+        return tag & 7;
+    }
+
+    private static boolean accepts(Descriptors.FieldDescriptor field, int wireType)
+    {
+        final WireFormat.FieldType type = field.getLiteType();
+        return wireType == type.getWireType()
+            || (field.isRepeated() && type.isPackable()
+                && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    }
+
+    private static boolean hasUnknownFields(Message message)
+    {
+        if (!message.getUnknownFields().asMap().isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<Descriptors.FieldDescriptor, Object> entry
+                 : message.getAllFields().entrySet())
+        {
+            if (entry.getKey().getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                continue;
+            }
+            if (entry.getKey().isRepeated()) {
+                for (Object value : (List<?>) entry.getValue()) {
+                    if (hasUnknownFields((Message) value)) {
+                        return true;
+                    }
+                }
+            }
+            else if (hasUnknownFields((Message) entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Streaming state for the fields of a single message.  Fields are
+     * started (name written, and array opened if repeated) on their
+     * first value, after writing any empty repeated fields declared
+     * before them.
+     */
+    private final class Fields
+    {
+        private final Descriptors.Descriptor type;
+        private final List<Descriptors.FieldDescriptor> fields;
+        /* Index of the first field not yet started */
+        private int next = 0;
+        /* Index of the repeated field with an open array, or -1 */
+        private int open = -1;
+
+        Fields(Descriptors.Descriptor type)
+        {
+            this.type = type;
+            this.fields = type.getFields();
+        }
+
+        void transcode()
+            throws WriterException, IOException
+        {
+            generator.writeStartObject();
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                final Descriptors.FieldDescriptor field
+                    = type.findFieldByNumber(WireFormat.getTagFieldNumber(tag));
+                final int wireType = wireType(tag);
+                if (field == null || !accepts(field, wireType)) {
+                    if (writer.rejectUnknownFields) {
+                        throw new WriterException(
+                            "Unknown field " + WireFormat.getTagFieldNumber(tag)
+                            + " in wire format input for " + type.getFullName());
+                    }
+                    input.skipField(tag);
+                    continue;
+                }
+                if (field.isRepeated()
+                    && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED
+                    && field.getLiteType().isPackable())
+                {
+                    final int limit = input.pushLimit(input.readRawVarint32());
+                    while (input.getBytesUntilLimit() > 0) {
+                        value(field);
+                    }
+                    input.popLimit(limit);
+                }
+                else {
+                    value(field);
+                }
+            }
+            close();
+            emptyFields(fields.size());
+            generator.writeEndObject();
+        }
+
+        private void start(Descriptors.FieldDescriptor field)
+            throws WriterException, IOException
+        {
+            final int index = field.getIndex();
+            if (index == open) {
+                return;
+            }
+            if (index < next) {
+                throw new WriterException(
+                    "Field " + field.getName() + " out of order in wire format input for "
+                    + type.getFullName());
+            }
+            close();
+            emptyFields(index);
+            generator.writeFieldName(field.getName());
+            if (field.isRepeated()) {
+                generator.writeStartArray();
+                open = index;
+            }
+            next = index + 1;
+        }
+
+        private void close()
+            throws IOException
+        {
+            if (open >= 0) {
+                generator.writeEndArray();
+                open = -1;
+            }
+        }
+
+        /**
+         * Write empty repeated fields declared from {@code next} up to
+         * {@code index}, as the writer does for unpopulated repeated
+         * fields.
+         */
+        private void emptyFields(int index)
+            throws IOException
+        {
+            if (writer.suppressEmptyRepeated) {
+                return;
+            }
+            for (int i = next; i < index; i++) {
+                final Descriptors.FieldDescriptor field = fields.get(i);
+                if (field.isRepeated()) {
+                    generator.writeFieldName(field.getName());
+                    generator.writeStartArray();
+                    generator.writeEndArray();
+                }
+            }
+        }
+
+        /**
+         * Transcode a single value of {@code field}.
+         */
+        private void value(Descriptors.FieldDescriptor field)
+            throws WriterException, IOException
+        {
+            switch (field.getType()) {
+            case MESSAGE:
+                start(field);
+                final int limit = input.pushLimit(input.readRawVarint32());
+                message(field.getMessageType());
+                input.popLimit(limit);
+                break;
+            case BOOL:
+                final boolean bool = input.readBool();
+                start(field);
+                generator.writeBoolean(bool);
+                break;
+            case DOUBLE:
+                final double d = input.readDouble();
+                start(field);
+                generator.writeNumber(d);
+                break;
+            case FLOAT:
+                final float f = input.readFloat();
+                start(field);
+                generator.writeNumber(f);
+                break;
+            case INT32:
+                writeNumber(field, input.readInt32());
+                break;
+            case SINT32:
+                writeNumber(field, input.readSInt32());
+                break;
+            case UINT32:
+                writeNumber(field, input.readUInt32());
+                break;
+            case FIXED32:
+                writeNumber(field, input.readFixed32());
+                break;
+            case SFIXED32:
+                writeNumber(field, input.readSFixed32());
+                break;
+            case INT64:
+                writeNumber(field, input.readInt64());
+                break;
+            case SINT64:
+                writeNumber(field, input.readSInt64());
+                break;
+            case UINT64:
+                writeNumber(field, input.readUInt64());
+                break;
+            case FIXED64:
+                writeNumber(field, input.readFixed64());
+                break;
+            case SFIXED64:
+                writeNumber(field, input.readSFixed64());
+                break;
+            case STRING:
+                final String string = input.readString();
+                start(field);
+                generator.writeString(string);
+                break;
+            case BYTES:
+                final byte[] bytes = input.readBytes().toByteArray();
+                start(field);
+                generator.writeBinary(bytes);
+                break;
+            case ENUM:
+                // Unknown values are kept as unknown fields when
+                // parsing, so the field is not populated.
+                final Descriptors.EnumValueDescriptor value
+                    = field.getEnumType().findValueByNumber(input.readEnum());
+                if (value != null) {
+                    start(field);
+                    generator.writeString(value.getName());
+                }
+                break;
+            default:
+                throw new WriterException("Unable to serialize value of type "
+                                          + field.getType().name());
+            }
+        }
+
+        private void writeNumber(Descriptors.FieldDescriptor field, int value)
+            throws WriterException, IOException
+        {
+            start(field);
+            generator.writeNumber(value);
+        }
+
+        private void writeNumber(Descriptors.FieldDescriptor field, long value)
+            throws WriterException, IOException
+        {
+            start(field);
+            generator.writeNumber(value);
+        }
+    }
+}
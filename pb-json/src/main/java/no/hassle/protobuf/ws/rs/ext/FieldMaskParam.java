@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.ws.rs.ext;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables field masks on the JSON responses of a resource method.
+ * When the request carries the named query parameter, {@link
+ * ProtobufMessageProviders.JsonWriter} serializes only the fields
+ * selected by the parameter's {@link no.hassle.protobuf.json.FieldMask};
+ * a mask that does not match the response type is rejected with
+ * status 400.  Responses of methods without this annotation are
+ * always serialized in full.
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface FieldMaskParam
+{
+    /**
+     * Name of the query parameter holding the mask.  Repeated
+     * parameters are joined.
+     */
+    String value() default "fields";
+}
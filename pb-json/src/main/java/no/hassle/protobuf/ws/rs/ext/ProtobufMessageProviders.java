@@ -16,24 +16,23 @@
 
 package no.hassle.protobuf.ws.rs.ext;
 
+import no.hassle.protobuf.json.FieldMask;
 import no.hassle.protobuf.json.PbJsonReader;
 import no.hassle.protobuf.json.PbJsonWriter;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.base.Joiner;
 import com.google.common.cache.LoadingCache;
 import com.google.protobuf.Message;
 import com.google.protobuf.UninitializedMessageException;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -41,10 +40,12 @@ import java.util.concurrent.ExecutionException;
 import javax.inject.Singleton;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
@@ -250,6 +251,11 @@ public class ProtobufMessageProviders
         }
     }
 
+    /**
+     * JSON writer.  Responses of resource methods annotated with
+     * {@link FieldMaskParam} are restricted to the fields selected by
+     * the mask in the request, if any.
+     */
     @Singleton
     @Provider
     @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -258,6 +264,9 @@ public class ProtobufMessageProviders
     {
         private final PbJsonWriter jsonWriter = new PbJsonWriter();
 
+        @Context
+        private UriInfo uriInfo;
+
         public boolean isWriteable(
             final Class<?> type,
             final Type genericType,
@@ -288,16 +297,55 @@ public class ProtobufMessageProviders
             final OutputStream entityStream)
             throws IOException
         {
+            final FieldMask mask = getFieldMask(m, annotations);
             try {
-                BufferedWriter writer = new BufferedWriter(
-                        new OutputStreamWriter(
-                                entityStream,
-                                StandardCharsets.UTF_8));
-                jsonWriter.generateTo(m, writer);
+                if (mask != null) {
+                    jsonWriter.generateTo(m, mask, entityStream);
+                }
+                else {
+                    jsonWriter.generateTo(m, entityStream);
+                }
             } catch (PbJsonWriter.WriterException ex) {
                 throw new IOException("Unable to write protocol buffer as JSON to OutputStream", ex);
             }
         }
+
+        private FieldMask getFieldMask(final Message m, final Annotation[] annotations)
+        {
+            final String parameter = getFieldMaskParameter(annotations);
+            if (parameter == null || uriInfo == null) {
+                return null;
+            }
+            final List<String> values = uriInfo.getQueryParameters().get(parameter);
+            if (values == null || values.isEmpty()) {
+                return null;
+            }
+            try {
+                final FieldMask mask = FieldMask.parse(Joiner.on(',').join(values));
+                mask.validate(m.getDescriptorForType());
+                return mask;
+            }
+            catch (IllegalArgumentException e) {
+                Response failure =
+                    Response.status(Status.BAD_REQUEST)
+                    .entity("Invalid " + parameter + " parameter: " + e.getMessage())
+                    .build();
+                throw new WebApplicationException(e, failure);
+            }
+        }
+
+        private static String getFieldMaskParameter(final Annotation[] annotations)
+        {
+            if (annotations == null) {
+                return null;
+            }
+            for (Annotation annotation : annotations) {
+                if (annotation instanceof FieldMaskParam) {
+                    return ((FieldMaskParam) annotation).value();
+                }
+            }
+            return null;
+        }
     }
 
     public static class PbInstantiationException extends Exception
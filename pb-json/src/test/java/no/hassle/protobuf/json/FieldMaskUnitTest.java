@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import org.apache.commons.io.IOUtils;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+public class FieldMaskUnitTest
+{
+    @Test
+    public void testParse()
+    {
+        assertEquals("Unexpected canonical paths",
+                     Arrays.asList("child", "int32_1", "string_1"),
+                     FieldMask.parse(" string_1, child.grand_child ,int32_1,child").getPaths());
+        assertEquals("Unexpected paths for empty mask",
+                     Arrays.asList(), FieldMask.parse("").getPaths());
+        assertSame("Parsed mask not reused",
+                   FieldMask.parse("string_1,child"), FieldMask.parse("string_1,child"));
+        assertEquals("Equivalent masks differ",
+                     FieldMask.parse("child"), FieldMask.parse("child.grand_child,child"));
+        for (String spec : new String[] { "a,,b", "a.", ".a", "a..b", " , " }) {
+            try {
+                FieldMask.parse(spec);
+                fail("Invalid mask accepted: " + spec);
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testValidate()
+    {
+        FieldMask.parse("child.grand_child.string_1").validate(TestObjects.Nested.getDescriptor());
+        assertInvalid("child.nope",
+                      "Unknown field child.nope in field mask for pbjson.Nested.Child");
+        assertInvalid("child.grand_child.string_1.x",
+                      "Field child.grand_child.string_1 in field mask is not a message");
+    }
+
+    @Test
+    public void testProjection()
+        throws Exception
+    {
+        final String json = IOUtils.toString(getClass().getResourceAsStream("all-fields.json"), "UTF-8");
+        final TestObjects.AllFields full = new PbJsonReader()
+            .parse(TestObjects.AllFields.getDefaultInstance(), json);
+        testProjection(full, "string_2,enum_1,bool_r1,double_r3", new String[] {
+                "string_2", "bool_r1", "double_r3", "enum_1" });
+        testProjection(full, "", new String[0]);
+
+        final TestObjects.Nested nested = new PbJsonReader().parse(
+            TestObjects.Nested.getDefaultInstance(),
+            IOUtils.toString(getClass().getResourceAsStream("nested.json"), "UTF-8"));
+        testProjection(nested, "child", new String[] { "child" });
+        testProjection(nested, "child.grand_child.string_1", new String[] { "child" });
+        testProjection(TestObjects.Nested.getDefaultInstance(), "child.grand_child", new String[] { "child" });
+    }
+
+    @Test
+    public void testProjectedParse()
+        throws Exception
+    {
+        final String json = IOUtils.toString(getClass().getResourceAsStream("all-fields.json"), "UTF-8");
+        final PbJsonReader reader = new PbJsonReader();
+        final TestObjects.AllFields full = reader.parse(TestObjects.AllFields.getDefaultInstance(), json);
+        final TestObjects.AllFields projected = reader.parse(
+            TestObjects.AllFields.getDefaultInstance(), FieldMask.parse("string_2,bool_r1,enum_1"), json);
+        assertEquals("Unexpected projected message",
+                     TestObjects.AllFields.newBuilder()
+                     .setString2(full.getString2())
+                     .addAllBoolR1(full.getBoolR1List())
+                     .setEnum1(full.getEnum1())
+                     .build(),
+                     projected);
+
+        final String nested = "{\"child\":{\"grand_child\":[{\"string_1\":\"a\"},{}]}}";
+        assertEquals("Unexpected projected nested message",
+                     reader.parse(TestObjects.Nested.getDefaultInstance(), nested),
+                     reader.parse(TestObjects.Nested.getDefaultInstance(),
+                                  FieldMask.parse("child.grand_child.string_1"), nested));
+
+        // Unselected values are skipped unchecked, unknown fields are not.
+        final String mismatched = "{\"int32_1\":{\"x\":[1,\"y\"]},\"string_1\":\"a\"}";
+        assertEquals("Unselected mismatched field not skipped",
+                     "a",
+                     reader.parse(TestObjects.AllFields.getDefaultInstance(),
+                                  FieldMask.parse("string_1"), mismatched).getString1());
+        try {
+            reader.parse(TestObjects.AllFields.getDefaultInstance(),
+                         FieldMask.parse("string_1"), "{\"nope\":1}");
+            fail("Unknown field accepted");
+        }
+        catch (PbJsonReader.TypeMismatchException e) {
+            // Expected
+        }
+        try {
+            reader.parse(TestObjects.AllFields.getDefaultInstance(),
+                         FieldMask.parse("string_1.x"), "{}");
+            fail("Mask not matching message type accepted");
+        }
+        catch (PbJsonReader.ReaderException e) {
+            assertEquals("Unexpected error message",
+                         "Field string_1 in field mask is not a message", e.getMessage());
+        }
+    }
+
+    /**
+     * Masked output should match the output of a trimmed copy of the
+     * message, for both generated and dynamic messages.
+     */
+    private void testProjection(Message message, String spec, String[] names)
+        throws Exception
+    {
+        final Message.Builder trimmed = message.newBuilderForType();
+        for (String name : names) {
+            final Descriptors.FieldDescriptor field
+                = message.getDescriptorForType().findFieldByName(name);
+            if (field.isRepeated() || message.hasField(field)) {
+                trimmed.setField(field, message.getField(field));
+            }
+        }
+        final FieldMask mask = FieldMask.parse(spec);
+        final PbJsonWriter writer = new PbJsonWriter().withSuppressEmptyRepeatedFields();
+        final String expected = writer.generate(trimmed.build());
+        assertEquals("Unexpected output for mask " + spec,
+                     expected, writer.generate(message, mask));
+        assertEquals("Unexpected output for mask " + spec + " on dynamic message",
+                     expected, writer.generate(DynamicMessage.newBuilder(message).build(), mask));
+
+        // Without suppression, selected empty repeated fields are
+        // written as empty arrays, and no other fields.
+        final String dense = new PbJsonWriter().generate(message, mask);
+        assertEquals("Unexpected message for mask " + spec,
+                     trimmed.build(), new PbJsonReader().parse(message.newBuilderForType(), dense));
+        for (Descriptors.FieldDescriptor field : message.getDescriptorForType().getFields()) {
+            assertEquals("Unexpected presence of " + field.getName() + " for mask " + spec,
+                         Arrays.asList(names).contains(field.getName())
+                         && (field.isRepeated() || message.hasField(field)),
+                         dense.contains("\"" + field.getName() + "\":"));
+        }
+    }
+
+    private static void assertInvalid(String spec, String message)
+    {
+        try {
+            FieldMask.parse(spec).validate(TestObjects.Nested.getDescriptor());
+            fail("Invalid mask accepted: " + spec);
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("Unexpected error message", message, e.getMessage());
+        }
+    }
+}
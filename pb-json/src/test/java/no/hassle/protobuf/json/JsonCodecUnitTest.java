@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import org.apache.commons.io.IOUtils;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Generated codecs (see {@code generateJsonCodecs} in this module's
+ * pom) against the reflection-based reader and writer.
+ */
+public class JsonCodecUnitTest
+{
+    @Test
+    public void testCodecLookup()
+    {
+        assertNotNull("No codec for AllFields",
+                      JsonCodec.forType(TestObjects.AllFields.class));
+        assertNotNull("No codec for nested GrandChild",
+                      JsonCodec.forType(TestObjects.Nested.Child.GrandChild.class));
+        assertNull("Unexpected codec for non-message class",
+                   JsonCodec.forType(String.class));
+    }
+
+    /**
+     * Loads the test message classes and their codecs afresh, the way
+     * a webapp or plugin class loader would.
+     */
+    private static class IsolatingLoader
+        extends ClassLoader
+    {
+        private static final String PREFIX = TestObjects.class.getName();
+
+        IsolatingLoader()
+        {
+            super(IsolatingLoader.class.getClassLoader());
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException
+        {
+            if (!name.startsWith(PREFIX)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> type = findLoadedClass(name);
+            if (type == null) {
+                final InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                if (is == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                try {
+                    final byte[] bytes = IOUtils.toByteArray(is);
+                    type = defineClass(name, bytes, 0, bytes.length);
+                }
+                catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+                finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+            if (resolve) {
+                resolveClass(type);
+            }
+            return type;
+        }
+    }
+
+    /**
+     * Write a message of a class loaded by a separate loader,
+     * returning a reference to track collection of the loader.
+     */
+    private static WeakReference<ClassLoader> generateIsolated()
+        throws Exception
+    {
+        final ClassLoader loader = new IsolatingLoader();
+        final Class<?> type = Class.forName(TestObjects.AllFields.class.getName(), true, loader);
+        assertTrue("Message class not isolated", type != TestObjects.AllFields.class);
+        assertNotNull("No codec for isolated AllFields", JsonCodec.forType(type));
+        final Message message = (Message) type.getMethod("getDefaultInstance").invoke(null);
+        assertEquals("Unexpected output for isolated message",
+                     new PbJsonWriter().generate(TestObjects.AllFields.getDefaultInstance()),
+                     new PbJsonWriter().generate(message));
+        assertNotNull("No presence plan for isolated AllFields", PresencePlan.forType(type));
+        return new WeakReference<ClassLoader>(loader);
+    }
+
+    @Test
+    public void testCodecLoaderReleased()
+        throws Exception
+    {
+        final WeakReference<ClassLoader> loader = generateIsolated();
+        for (int i = 0; i < 50 && loader.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue("Class loader kept alive by cached codecs or plans", loader.get() == null);
+    }
+
+    @Test
+    public void testAllFields()
+        throws Exception
+    {
+        test("all-fields.json", TestObjects.AllFields.getDefaultInstance());
+        test("all-fields-strict.json", TestObjects.AllFields.getDefaultInstance());
+    }
+
+    @Test
+    public void testNested()
+        throws Exception
+    {
+        test("nested.json", TestObjects.Nested.getDefaultInstance());
+    }
+
+    @Test
+    public void testSuppressEmptyRepeated()
+        throws Exception
+    {
+        final TestObjects.AllFields message = TestObjects.AllFields.newBuilder()
+            .setString1("a")
+            .addBoolR1(true)
+            .build();
+        for (boolean suppress : new boolean[] { false, true }) {
+            final PbJsonWriter generated = new PbJsonWriter();
+            final PbJsonWriter reflection = new PbJsonWriter();
+            generated.setSuppressEmptyRepeatedFields(suppress);
+            reflection.setSuppressEmptyRepeatedFields(suppress);
+            reflection.setUseGeneratedCodecs(false);
+            assertEquals("Generated codec output differs, suppress " + suppress,
+                         reflection.generate(message), generated.generate(message));
+        }
+    }
+
+    private void test(String resource, Message prototype)
+        throws Exception
+    {
+        final String json = IOUtils.toString(getClass().getResourceAsStream(resource), "UTF-8");
+
+        final PbJsonReader generatedReader = new PbJsonReader();
+        final PbJsonReader reflectionReader = new PbJsonReader();
+        reflectionReader.setUseGeneratedCodecs(false);
+        final Message message = generatedReader.parse(prototype, json);
+        assertEquals("Generated codec parsed " + resource + " differently",
+                     reflectionReader.parse(prototype, json), message);
+
+        final PbJsonWriter generatedWriter = new PbJsonWriter();
+        final PbJsonWriter reflectionWriter = new PbJsonWriter();
+        reflectionWriter.setUseGeneratedCodecs(false);
+        assertEquals("Generated codec serialized " + resource + " differently",
+                     reflectionWriter.generate(message), generatedWriter.generate(message));
+    }
+}
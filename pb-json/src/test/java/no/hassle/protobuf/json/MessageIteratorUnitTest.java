@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class MessageIteratorUnitTest
+{
+    private static MessageIterator<TestObjects.Nested.Child.GrandChild> iterate(String json)
+        throws Exception
+    {
+        return new PbJsonReader().iterate(
+            TestObjects.Nested.Child.GrandChild.getDefaultInstance(),
+            new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> strings(MessageIterator<TestObjects.Nested.Child.GrandChild> it)
+    {
+        final List<String> result = new ArrayList<String>();
+        while (it.hasNext()) {
+            result.add(it.next().getString1());
+        }
+        return result;
+    }
+
+    @Test
+    public void testArray()
+        throws Exception
+    {
+        assertEquals("Unexpected records from array",
+                     Arrays.asList("a", "b", ""),
+                     strings(iterate("[{\"string_1\":\"a\"},\n {\"string_1\":\"b\"}, {}]")));
+        assertEquals("Unexpected records from empty array",
+                     new ArrayList<String>(), strings(iterate(" [ ] ")));
+    }
+
+    @Test
+    public void testNewlineDelimited()
+        throws Exception
+    {
+        assertEquals("Unexpected records from NDJSON",
+                     Arrays.asList("a", "b", "c"),
+                     strings(iterate("{\"string_1\":\"a\"}\n{\"string_1\":\"b\"}\n{\"string_1\":\"c\"}\n")));
+        assertEquals("Unexpected records from empty input",
+                     new ArrayList<String>(), strings(iterate("")));
+    }
+
+    @Test
+    public void testRecordError()
+        throws Exception
+    {
+        final MessageIterator<TestObjects.Nested.Child.GrandChild> it = iterate(
+            "{\"string_1\":\"a\"}\n"
+            + "{\"string_1\":\"b\",\"x\":{\"y\":[1,{\"z\":2}]},\"string_1\":\"b\"}\n"
+            + "{\"string_1\":{\"nested\":[]}}\n"
+            + "3\n"
+            + "{\"string_1\":\"d\"}\n");
+        assertEquals("First record", "a", it.next().getString1());
+        for (int i = 1; i < 4; i++) {
+            try {
+                it.next();
+                fail("Record " + i + " accepted");
+            }
+            catch (MessageIterator.RecordException e) {
+                assertEquals("Failed record index", i, e.getRecord());
+                assertEquals("Failed record line", i + 1, e.getLocation().getLineNr());
+                assertTrue("Unexpected cause " + e.getCause(),
+                           e.getCause() instanceof PbJsonReader.TypeMismatchException);
+            }
+        }
+        assertEquals("Record after failed records", "d", it.next().getString1());
+        assertFalse("Records after end", it.hasNext());
+    }
+
+    @Test
+    public void testMalformed()
+        throws Exception
+    {
+        final MessageIterator<TestObjects.Nested.Child.GrandChild> it
+            = iterate("[{\"string_1\":\"a\"}, {\"string_1\" \"b\"}, {\"string_1\":\"c\"}]");
+        assertEquals("First record", "a", it.next().getString1());
+        try {
+            it.next();
+            fail("Malformed record accepted");
+        }
+        catch (MessageIterator.RecordException e) {
+            assertEquals("Failed record index", 1, e.getRecord());
+            assertTrue("Unexpected cause " + e.getCause(),
+                       e.getCause() instanceof PbJsonReader.InputException);
+        }
+        assertFalse("Records after malformed input", it.hasNext());
+    }
+
+    @Test
+    public void testUnterminatedArray()
+        throws Exception
+    {
+        final MessageIterator<TestObjects.Nested.Child.GrandChild> it
+            = iterate("[{\"string_1\":\"a\"}");
+        assertEquals("First record", "a", it.next().getString1());
+        try {
+            it.hasNext();
+            fail("Unterminated array accepted");
+        }
+        catch (MessageIterator.RecordException e) {
+            assertEquals("Failed record index", 1, e.getRecord());
+        }
+        assertFalse("Records after end", it.hasNext());
+    }
+}
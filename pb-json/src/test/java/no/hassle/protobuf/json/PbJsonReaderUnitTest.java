@@ -19,11 +19,25 @@ package no.hassle.protobuf.json;
 import no.hassle.protobuf.json.TestObjects;
 
 import org.apache.commons.io.IOUtils;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Message;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Test;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
 
 public class PbJsonReaderUnitTest
 {
@@ -74,6 +88,161 @@ public class PbJsonReaderUnitTest
         test("nested.json", TestObjects.Nested.getDefaultInstance(), true);
     }
 
+    @Test
+    public void testParsePlanCached()
+        throws Exception
+    {
+        assertSame("Parse plan not cached per descriptor",
+                   ParsePlan.forDescriptor(TestObjects.Nested.getDescriptor()),
+                   ParsePlan.forDescriptor(TestObjects.Nested.getDescriptor()));
+        assertNull("Parse plan has unknown field",
+                   ParsePlan.forDescriptor(TestObjects.Nested.getDescriptor()).getField("nope"));
+    }
+
+    /**
+     * Parse a message of a schema built at run time, returning the
+     * schema.
+     */
+    private static Descriptors.Descriptor parseDynamic()
+        throws Exception
+    {
+        final DescriptorProtos.FileDescriptorProto file = DescriptorProtos.FileDescriptorProto.newBuilder()
+            .setName("dynamic.proto")
+            .addMessageType(DescriptorProtos.DescriptorProto.newBuilder()
+                            .setName("Dynamic")
+                            .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                                      .setName("name")
+                                      .setNumber(1)
+                                      .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL)
+                                      .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING)))
+            .build();
+        final Descriptors.Descriptor type = Descriptors.FileDescriptor
+            .buildFrom(file, new Descriptors.FileDescriptor[0])
+            .findMessageTypeByName("Dynamic");
+        final PbJsonReader reader = new PbJsonReader();
+        final Message message = reader.parse(DynamicMessage.getDefaultInstance(type), "{\"name\":\"x\"}");
+        assertEquals("Unexpected dynamic message", "{\"name\":\"x\"}", new PbJsonWriter().generate(message));
+        reader.parse(DynamicMessage.getDefaultInstance(type), FieldMask.parse("name"), "{\"name\":\"x\"}");
+        new PbJsonWriter().generate(message, FieldMask.parse("name"));
+        return type;
+    }
+
+    @Test
+    public void testParsePlanRetained()
+        throws Exception
+    {
+        final Descriptors.Descriptor type = parseDynamic();
+        final FieldMask mask = FieldMask.parse("name");
+        final WeakReference<ParsePlan> plan
+            = new WeakReference<ParsePlan>(ParsePlan.forDescriptor(type));
+        final WeakReference<FieldMask.Projection> projection
+            = new WeakReference<FieldMask.Projection>(mask.projection(type));
+        // Plans are held softly, so they must survive collections
+        // without memory pressure
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertSame("Parse plan dropped by garbage collection",
+                   ParsePlan.forDescriptor(type), plan.get());
+        assertSame("Projection dropped by garbage collection",
+                   mask.projection(type), projection.get());
+    }
+
+    @Test
+    public void testUnknownField()
+        throws Exception
+    {
+        final String json = "{\"string_1\":\"a\",\"unknown\":{\"x\":[1,2]},\"int32_1\":3}";
+        try {
+            new PbJsonReader().parse(TestObjects.AllFields.getDefaultInstance(), json);
+            fail("Unknown field accepted");
+        }
+        catch (PbJsonReader.TypeMismatchException e) {
+            assertEquals("Unexpected error message",
+                         "Unknown field unknown encountered in input", e.getMessage());
+        }
+        final TestObjects.AllFields lax = new PbJsonReader()
+            .withAllowUnknownFields()
+            .parse(TestObjects.AllFields.getDefaultInstance(), json);
+        assertEquals("string_1 not parsed", "a", lax.getString1());
+        assertEquals("int32_1 not parsed", 3, lax.getInt321());
+    }
+
+    @Test
+    public void testTypeMismatch()
+        throws Exception
+    {
+        assertMismatch("{\"int32_1\":\"3\"}",
+                       "Schema/input mismatch for field int32_1, can't coerce STRING to INT32");
+        assertMismatch("{\"bool_r1\":[true,1]}",
+                       "Schema/input mismatch for field bool_r1, can't coerce NUMBER to BOOL");
+        assertMismatch("{\"string_1\":[\"a\"]}",
+                       "Schema/input mismatch for field string_1, can't coerce ARRAY to SINGULAR");
+        assertMismatch("{\"enum_1\":\"FOURTH\"}",
+                       "Schema/input mismatch, enum enum_1 has no member FOURTH");
+        assertMismatch("{\"double_r1\":[[1.0]]}",
+                       "Schema/input mismatch, don't know how to parse START_ARRAY");
+    }
+
+    @Test
+    public void testByteSources()
+        throws Exception
+    {
+        final String json = IOUtils.toString(getClass().getResourceAsStream("all-fields.json"), "UTF-8");
+        final PbJsonReader reader = new PbJsonReader();
+        final TestObjects.AllFields expected = reader.parse(TestObjects.AllFields.getDefaultInstance(), json);
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+        final byte[] padded = new byte[bytes.length + 8];
+        System.arraycopy(bytes, 0, padded, 5, bytes.length);
+        assertEquals("Unexpected message from byte range",
+                     expected,
+                     reader.parse(TestObjects.AllFields.getDefaultInstance(), padded, 5, bytes.length));
+        assertEquals("Unexpected message from byte range via builder",
+                     expected,
+                     reader.parse(TestObjects.AllFields.newBuilder(), padded, 5, bytes.length));
+
+        final ByteBuffer slice = ByteBuffer.wrap(padded, 5, bytes.length).slice();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3);
+        direct.position(3);
+        direct.put(bytes).position(3);
+        for (ByteBuffer buffer : new ByteBuffer[] { slice, slice.asReadOnlyBuffer(), direct }) {
+            final int position = buffer.position();
+            assertEquals("Unexpected message from " + buffer,
+                         expected, reader.parse(TestObjects.AllFields.getDefaultInstance(), buffer));
+            assertEquals("Buffer position changed", position, buffer.position());
+        }
+
+        final File file = File.createTempFile("pb-json", ".json");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(bytes);
+            }
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                final MappedByteBuffer mapped
+                    = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, bytes.length);
+                assertEquals("Unexpected message from mapped file",
+                             expected, reader.parse(TestObjects.AllFields.getDefaultInstance(), mapped));
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private void assertMismatch(String json, String message)
+        throws Exception
+    {
+        try {
+            new PbJsonReader().parse(TestObjects.AllFields.getDefaultInstance(), json);
+            fail("Mismatched input accepted: " + json);
+        }
+        catch (PbJsonReader.TypeMismatchException e) {
+            assertEquals("Unexpected error message", message, e.getMessage());
+        }
+    }
+
     private <T extends Message> T test(String resource, T prototype, boolean strict)
         throws Exception
     {
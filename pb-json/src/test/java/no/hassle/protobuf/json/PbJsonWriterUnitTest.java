@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import org.apache.commons.io.IOUtils;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class PbJsonWriterUnitTest
+{
+    @Test
+    public void testPresencePlan()
+    {
+        assertNotNull("No presence plan for generated message",
+                      PresencePlan.forType(TestObjects.AllFields.class));
+        assertNotNull("No presence plan for message without singular fields",
+                      PresencePlan.forType(TestObjects.Nested.Child.class));
+        assertNull("Unexpected presence plan for dynamic message",
+                   PresencePlan.forType(DynamicMessage.class));
+    }
+
+    @Test
+    public void testSparseFields()
+        throws Exception
+    {
+        final TestObjects.AllFields sparse = TestObjects.AllFields.newBuilder()
+            .setString2("b")
+            .addBoolR2(true)
+            .setInt322(0)
+            .setEnum2(TestObjects.Enumeration.THIRD)
+            .build();
+        testSparse(sparse);
+        testSparse(DynamicMessage.newBuilder(sparse).build());
+        testSparse(TestObjects.AllFields.getDefaultInstance());
+
+        final String json = IOUtils.toString(
+            getClass().getResourceAsStream("all-fields.json"), "UTF-8");
+        final Message full = new PbJsonReader()
+            .parse(TestObjects.AllFields.getDefaultInstance(), json);
+        testSparse(full);
+        testSparse(DynamicMessage.newBuilder(full).build());
+
+        final Message nested = new PbJsonReader().parse(
+            TestObjects.Nested.getDefaultInstance(),
+            IOUtils.toString(getClass().getResourceAsStream("nested.json"), "UTF-8"));
+        testSparse(nested);
+        testSparse(DynamicMessage.newBuilder(nested).build());
+    }
+
+    @Test
+    public void testGenerateToStream()
+        throws Exception
+    {
+        final TestObjects.AllFields message = TestObjects.AllFields.newBuilder()
+            .setString1("bl\u00e5b\u00e6r \u20ac \"quoted\"\n")
+            .addStringR1("\u0000\u001f")
+            .setDouble1(1.5)
+            .build();
+        for (PbJsonWriter writer : new PbJsonWriter[] {
+                new PbJsonWriter(), new PbJsonWriter().withUsePrettyPrinter() }) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writer.generateTo(message, out);
+            assertEquals("UTF-8 output differs from generate()",
+                         writer.generate(message),
+                         new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        // Jackson's UTF-8 generator escapes characters outside the
+        // BMP, so compare those by value.
+        final TestObjects.AllFields astral = TestObjects.AllFields.newBuilder()
+            .setString1("\ud83d\ude00")
+            .build();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        new PbJsonWriter().generateTo(astral, encoded);
+        assertEquals("Astral characters did not round-trip",
+                     astral,
+                     new PbJsonReader().parse(
+                         TestObjects.AllFields.getDefaultInstance(),
+                         new ByteArrayInputStream(encoded.toByteArray())));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MessageSequenceWriter sequence = new PbJsonWriter()
+            .newSequenceWriter(out, MessageSequenceWriter.Format.NEWLINE_DELIMITED);
+        sequence.write(message);
+        sequence.write(message);
+        sequence.close();
+        final String line = new PbJsonWriter().generate(message) + "\n";
+        assertEquals("Unexpected UTF-8 sequence output",
+                     line + line, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGenerateBytes()
+        throws Exception
+    {
+        final TestObjects.AllFields message = TestObjects.AllFields.newBuilder()
+            .setString1("bl\u00e5b\u00e6r")
+            .setInt321(42)
+            .build();
+        final PbJsonWriter writer = new PbJsonWriter();
+        final byte[] expected = writer.generate(message).getBytes(StandardCharsets.UTF_8);
+        assertTrue("Unexpected bytes", Arrays.equals(expected, writer.generateBytes(message)));
+
+        final byte[] target = new byte[expected.length + 3];
+        assertEquals("Unexpected size written",
+                     expected.length, writer.generateInto(message, target, 3));
+        assertTrue("Unexpected bytes written",
+                   Arrays.equals(expected, Arrays.copyOfRange(target, 3, target.length)));
+        try {
+            writer.generateInto(message, target, 4);
+            fail("Message written past end of array");
+        }
+        catch (PbJsonWriter.BufferTooSmallException e) {
+            assertEquals("Unexpected required size", expected.length, e.getRequired());
+        }
+    }
+
+    @Test
+    public void testByteSinks()
+        throws Exception
+    {
+        final TestObjects.AllFields message = TestObjects.AllFields.newBuilder()
+            .setString1("bl\u00e5b\u00e6r")
+            .addBoolR2(true)
+            .build();
+        final PbJsonWriter writer = new PbJsonWriter();
+        final byte[] expected = writer.generateBytes(message);
+
+        for (ByteBuffer target : new ByteBuffer[] {
+                ByteBuffer.allocate(expected.length + 2),
+                ByteBuffer.allocateDirect(expected.length + 2) }) {
+            target.put((byte) ' ');
+            assertEquals("Unexpected size written", expected.length, writer.generateInto(message, target));
+            assertEquals("Position not advanced", expected.length + 1, target.position());
+            try {
+                writer.generateInto(message, target);
+                fail("Message written past limit");
+            }
+            catch (PbJsonWriter.BufferTooSmallException e) {
+                assertEquals("Unexpected required size", expected.length, e.getRequired());
+                assertEquals("Position changed on failure", expected.length + 1, target.position());
+            }
+            final byte[] written = new byte[expected.length];
+            target.flip().position(1);
+            target.get(written);
+            assertTrue("Unexpected bytes written", Arrays.equals(expected, written));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.generateTo(message, Channels.newChannel(out));
+        assertTrue("Unexpected bytes written to channel", Arrays.equals(expected, out.toByteArray()));
+
+        out.reset();
+        final MessageSequenceWriter sequence = writer.newSequenceWriter(
+            Channels.newChannel(out), MessageSequenceWriter.Format.NEWLINE_DELIMITED);
+        sequence.write(message);
+        sequence.write(message);
+        sequence.close();
+        final String line = writer.generate(message) + "\n";
+        assertEquals("Unexpected sequence written to channel",
+                     line + line, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputSizeEstimate()
+        throws Exception
+    {
+        final PbJsonWriter writer = new PbJsonWriter();
+        final TestObjects.Nested.Child.GrandChild small
+            = TestObjects.Nested.Child.GrandChild.newBuilder().setString1("x").build();
+        final char[] chars = new char[10000];
+        Arrays.fill(chars, 'x');
+        final TestObjects.Nested.Child.GrandChild large
+            = TestObjects.Nested.Child.GrandChild.newBuilder().setString1(new String(chars)).build();
+        final int size = writer.generateBytes(large).length;
+        assertEquals("Estimate does not follow larger output",
+                     size, OutputBuffer.estimate(large.getDescriptorForType()));
+        for (int i = 0; i < 200; i++) {
+            writer.generateBytes(small);
+        }
+        assertEquals("Estimate does not decay to minimum",
+                     OutputBuffer.MIN_SIZE, OutputBuffer.estimate(small.getDescriptorForType()));
+    }
+
+    @Test
+    public void testSequence()
+        throws Exception
+    {
+        final List<TestObjects.Nested.Child.GrandChild> messages
+            = new ArrayList<TestObjects.Nested.Child.GrandChild>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(TestObjects.Nested.Child.GrandChild.newBuilder().setString1("s" + i).build());
+        }
+        final PbJsonWriter writer = new PbJsonWriter();
+
+        final StringWriter array = new StringWriter();
+        writer.generateSequenceTo(messages, array, MessageSequenceWriter.Format.ARRAY);
+        final StringBuilder expected = new StringBuilder("[");
+        for (Message message : messages) {
+            expected.append(expected.length() > 1 ? "," : "").append(writer.generate(message));
+        }
+        assertEquals("Unexpected array output", expected.append("]").toString(), array.toString());
+
+        final StringWriter ndjson = new StringWriter();
+        writer.generateSequenceTo(messages, ndjson, MessageSequenceWriter.Format.NEWLINE_DELIMITED);
+        expected.setLength(0);
+        for (Message message : messages) {
+            expected.append(writer.generate(message)).append('\n');
+        }
+        assertEquals("Unexpected NDJSON output", expected.toString(), ndjson.toString());
+
+        for (String json : new String[] { array.toString(), ndjson.toString() }) {
+            final MessageIterator<TestObjects.Nested.Child.GrandChild> it = new PbJsonReader().iterate(
+                TestObjects.Nested.Child.GrandChild.getDefaultInstance(),
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+            final List<TestObjects.Nested.Child.GrandChild> read
+                = new ArrayList<TestObjects.Nested.Child.GrandChild>();
+            while (it.hasNext()) {
+                read.add(it.next());
+            }
+            assertEquals("Sequence did not round-trip", messages, read);
+        }
+
+        final StringWriter empty = new StringWriter();
+        writer.generateSequenceTo(
+            new ArrayList<Message>(), empty, MessageSequenceWriter.Format.ARRAY);
+        assertEquals("Unexpected empty array output", "[]", empty.toString());
+    }
+
+    @Test
+    public void testSequenceBatches()
+        throws Exception
+    {
+        final int[] flushes = new int[1];
+        final StringWriter out = new StringWriter() {
+                @Override
+                public void flush()
+                {
+                    flushes[0]++;
+                }
+            };
+        final MessageSequenceWriter sequence = new PbJsonWriter()
+            .newSequenceWriter(out, MessageSequenceWriter.Format.NEWLINE_DELIMITED);
+        sequence.setBatchSize(3);
+        final Message message = TestObjects.Nested.Child.GrandChild.newBuilder().setString1("x").build();
+        for (int i = 0; i < 7; i++) {
+            sequence.write(message);
+        }
+        assertEquals("Unexpected flushes before close", 2, flushes[0]);
+        assertEquals("Output not flushed in batches",
+                     6, out.toString().split("\n").length);
+        sequence.close();
+        assertEquals("Unexpected output after close",
+                     7, out.toString().split("\n").length);
+    }
+
+    private void testSparse(Message message)
+        throws Exception
+    {
+        for (boolean suppress : new boolean[] { false, true }) {
+            final PbJsonWriter dense = new PbJsonWriter();
+            final PbJsonWriter sparse = new PbJsonWriter().withSparseFields();
+            dense.setUseGeneratedCodecs(false);
+            sparse.setUseGeneratedCodecs(false);
+            dense.setSuppressEmptyRepeatedFields(suppress);
+            sparse.setSuppressEmptyRepeatedFields(suppress);
+            assertEquals("Sparse output differs for " + message.getClass().getSimpleName()
+                         + ", suppress " + suppress,
+                         dense.generate(message), sparse.generate(message));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import com.google.protobuf.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assume.*;
+
+/**
+ * Rough comparison of transcoding between JSON and protobuf wire format
+ * against going through a parsed message, for a generated document of
+ * nested messages.  Enable by running with
+ * <code>-Dpbjson.benchmark=true</code>.
+ */
+@RunWith(JUnit4.class)
+public class TranscoderBenchmarkTest
+{
+    private static final int CHILDREN = 2000;
+    private static final int ITERATIONS = 200;
+    private static final int ROUNDS = 10;
+
+    private static TestObjects.WireTypes generateMessage()
+    {
+        final TestObjects.WireTypes.Builder root = TestObjects.WireTypes.newBuilder().setId(0);
+        for (int i = 0; i < CHILDREN; i++) {
+            final TestObjects.WireTypes.Builder child = root.addChildrenBuilder()
+                .setId(i)
+                .setSint321(-i)
+                .setUint641(i * 1000000007L)
+                .setFloat1(i / 3.0f)
+                .addPackedEnum(TestObjects.Enumeration.SECOND);
+            for (int j = 0; j < 10; j++) {
+                child.addPackedInt32(i * j).addPackedDouble(i / (j + 1.0));
+            }
+            child.addChildrenBuilder().setId(-i);
+        }
+        return root.build();
+    }
+
+    private static byte[] generateDocument()
+        throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PbJsonWriter().generateTo(generateMessage(), out);
+        return out.toByteArray();
+    }
+
+    private static long parseAndSerialize(PbJsonReader reader, byte[] json)
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+            final Message message = reader.parse(
+                TestObjects.WireTypes.getDefaultInstance(), new ByteArrayInputStream(json));
+            message.writeTo(out);
+            bytes += out.size();
+        }
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing written");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long transcode(PbJsonReader reader, byte[] json)
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+            reader.transcode(TestObjects.WireTypes.getDescriptor(), new ByteArrayInputStream(json), out);
+            bytes += out.size();
+        }
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing written");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long parseAndGenerate(PbJsonWriter writer, byte[] data)
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            writer.generateTo(TestObjects.WireTypes.parseFrom(data), out);
+            bytes += out.size();
+        }
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing written");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long transcode(PbJsonWriter writer, byte[] data)
+        throws Exception
+    {
+        final long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            writer.transcodeTo(TestObjects.WireTypes.getDescriptor(), data, 0, data.length, out);
+            bytes += out.size();
+        }
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing written");
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testCompareWireToJson()
+        throws Exception
+    {
+        assumeTrue(Boolean.getBoolean("pbjson.benchmark"));
+        final byte[] data = generateMessage().toByteArray();
+        final PbJsonWriter writer = new PbJsonWriter();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long parsed = parseAndGenerate(writer, data);
+            final long transcoded = transcode(writer, data);
+            System.err.println(
+                "TranscoderBenchmark round " + round
+                    + ": parse+generate " + parsed / 1000000 + " ms"
+                    + ", transcode " + transcoded / 1000000 + " ms"
+                    + " (" + ITERATIONS + " x " + data.length / 1024 + " KB)");
+        }
+    }
+
+    @Test
+    public void testCompareJsonToWire()
+        throws Exception
+    {
+        assumeTrue(Boolean.getBoolean("pbjson.benchmark"));
+        final byte[] json = generateDocument();
+        final PbJsonReader reader = new PbJsonReader();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long parsed = parseAndSerialize(reader, json);
+            final long transcoded = transcode(reader, json);
+            System.err.println(
+                "TranscoderBenchmark round " + round
+                    + ": parse+serialize " + parsed / 1000000 + " ms"
+                    + ", transcode " + transcoded / 1000000 + " ms"
+                    + " (" + ITERATIONS + " x " + json.length / 1024 + " KB)");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.protobuf.json;
+
+import no.hassle.protobuf.json.TestObjects;
+
+import org.apache.commons.io.IOUtils;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.WireFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class TranscoderUnitTest
+{
+    private static final String WIRE_TYPES_JSON
+        = "{\"id\":1,\"sint32_1\":-2,\"uint32_1\":3,\"fixed32_1\":-4,\"sfixed32_1\":-5,"
+        + "\"sint64_1\":-6000000000,\"uint64_1\":7,\"fixed64_1\":null,\"sfixed64_1\":-9,"
+        + "\"float_1\":1.5,\"packed_int32\":[1,-1,300],\"packed_double\":[0.5,2],"
+        + "\"packed_enum\":[\"THIRD\",\"FIRST\"],"
+        + "\"children\":[{\"id\":2,\"packed_int32\":[]},{\"id\":3,\"children\":[{\"id\":4}]}]}";
+
+    @Test
+    public void testJsonToWire()
+        throws Exception
+    {
+        testJsonToWire(TestObjects.AllFields.getDefaultInstance(),
+                       IOUtils.toString(getClass().getResourceAsStream("all-fields.json"), "UTF-8"));
+        testJsonToWire(TestObjects.Nested.getDefaultInstance(),
+                       IOUtils.toString(getClass().getResourceAsStream("nested.json"), "UTF-8"));
+        testJsonToWire(TestObjects.WireTypes.getDefaultInstance(), WIRE_TYPES_JSON);
+        // Fields in number order, so the encoding itself should match.
+        assertTrue("Transcoded bytes differ from serialized message",
+                   Arrays.equals(
+                       new PbJsonReader().parse(TestObjects.WireTypes.getDefaultInstance(), WIRE_TYPES_JSON)
+                       .toByteArray(),
+                       new PbJsonReader().transcode(TestObjects.WireTypes.getDescriptor(), WIRE_TYPES_JSON)));
+        testJsonToWire(TestObjects.Empty.getDefaultInstance(), "{}");
+
+        assertNull("Unexpected output for empty document",
+                   new PbJsonReader().transcode(TestObjects.Empty.getDescriptor(), ""));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse("Empty document not reported",
+                    new PbJsonReader().transcode(TestObjects.Empty.getDescriptor(),
+                                                 new ByteArrayInputStream(new byte[0]), out));
+        assertEquals("Unexpected output for empty document", 0, out.size());
+    }
+
+    @Test
+    public void testJsonToWireErrors()
+        throws Exception
+    {
+        assertTranscodeError(TestObjects.AllFields.getDescriptor(), "{\"int32_1\":\"3\"}",
+                             "Schema/input mismatch for field int32_1, can't coerce STRING to INT32");
+        assertTranscodeError(TestObjects.AllFields.getDescriptor(), "{\"nope\":1}",
+                             "Unknown field nope encountered in input");
+        assertTranscodeError(TestObjects.WireTypes.getDescriptor(), "{\"sint32_1\":1}",
+                             "Message missing required fields: id");
+        assertTranscodeError(TestObjects.WireTypes.getDescriptor(), "{\"id\":1,\"children\":[{}]}",
+                             "Message missing required fields: id");
+        try {
+            new PbJsonReader().transcode(TestObjects.AllFields.getDescriptor(), "{\"string_1\" \"a\"}");
+            fail("Malformed document accepted");
+        }
+        catch (PbJsonReader.InputException e) {
+            // Expected
+        }
+        assertEquals("Unknown field not skipped",
+                     TestObjects.AllFields.newBuilder().setString1("a").build(),
+                     TestObjects.AllFields.parseFrom(
+                         new PbJsonReader().withAllowUnknownFields().transcode(
+                             TestObjects.AllFields.getDescriptor(),
+                             "{\"nope\":{\"x\":[1]},\"string_1\":\"a\"}")));
+    }
+
+    @Test
+    public void testWireToJson()
+        throws Exception
+    {
+        final PbJsonReader reader = new PbJsonReader();
+        final Message[] messages = new Message[] {
+            reader.parse(TestObjects.AllFields.getDefaultInstance(),
+                         IOUtils.toString(getClass().getResourceAsStream("all-fields.json"), "UTF-8")),
+            reader.parse(TestObjects.Nested.getDefaultInstance(),
+                         IOUtils.toString(getClass().getResourceAsStream("nested.json"), "UTF-8")),
+            reader.parse(TestObjects.WireTypes.getDefaultInstance(), WIRE_TYPES_JSON),
+            TestObjects.Defaults.newBuilder().setInt322(0).build(),
+            TestObjects.AllFields.getDefaultInstance(),
+            TestObjects.Empty.getDefaultInstance()
+        };
+        for (Message message : messages) {
+            testWireToJson(message, message.toByteArray());
+        }
+    }
+
+    @Test
+    public void testWireToJsonOrder()
+        throws Exception
+    {
+        // Concatenated messages merge, so fields are out of order.
+        final TestObjects.WireTypes first = TestObjects.WireTypes.newBuilder()
+            .setId(1)
+            .addPackedInt32(1)
+            .addChildren(TestObjects.WireTypes.newBuilder().setId(2))
+            .build();
+        final TestObjects.WireTypes second = TestObjects.WireTypes.newBuilder()
+            .setId(3)
+            .setSint321(4)
+            .addPackedInt32(5)
+            .build();
+        final byte[] data = concat(first.toByteArray(), second.toByteArray());
+        final TestObjects.WireTypes merged = TestObjects.WireTypes.parseFrom(data);
+        final PbJsonWriter writer = new PbJsonWriter();
+        assertEquals("Unexpected output for merged message",
+                     writer.generate(merged), writer.transcode(TestObjects.WireTypes.getDescriptor(), data));
+        try {
+            writer.transcodeTo(TestObjects.WireTypes.getDescriptor(),
+                               new ByteArrayInputStream(data), new ByteArrayOutputStream());
+            fail("Stream out of order accepted");
+        }
+        catch (PbJsonWriter.WriterException e) {
+            assertEquals("Unexpected error message",
+                         "Field id out of order in wire format input for pbjson.WireTypes",
+                         e.getMessage());
+        }
+
+        // Singular message fields merge across the concatenation
+        final byte[] nested = TestObjects.Nested.newBuilder()
+            .setChild(TestObjects.Nested.Child.newBuilder()
+                      .addGrandChild(TestObjects.Nested.Child.GrandChild.newBuilder().setString1("a")))
+            .build().toByteArray();
+        final byte[] twice = concat(nested, nested);
+        testWireToJson(TestObjects.Nested.parseFrom(twice), twice);
+    }
+
+    @Test
+    public void testBytes()
+        throws Exception
+    {
+        final TestObjects.Binary message = TestObjects.Binary.newBuilder()
+            .setBytes1(com.google.protobuf.ByteString.copyFrom(new byte[] { 0, 1, 2, (byte) 0xff }))
+            .addBytesR1(com.google.protobuf.ByteString.EMPTY)
+            .addBytesR1(com.google.protobuf.ByteString.copyFromUtf8("bl\u00e5"))
+            .build();
+        final PbJsonWriter writer = new PbJsonWriter();
+        final String json = writer.generate(message);
+        assertEquals("Unexpected bytes output",
+                     "{\"bytes_1\":\"AAEC/w==\",\"bytes_r1\":[\"\",\"YmzDpQ==\"]}", json);
+        assertEquals("Bytes did not round-trip",
+                     message, new PbJsonReader().parse(TestObjects.Binary.getDefaultInstance(), json));
+        assertTrue("Unexpected wire format from JSON",
+                   Arrays.equals(message.toByteArray(),
+                                 new PbJsonReader().transcode(TestObjects.Binary.getDescriptor(), json)));
+
+        // Streamed, and through the fallback for out of order input
+        final byte[] data = message.toByteArray();
+        testWireToJson(message, data);
+        final byte[] twice = concat(data, data);
+        testWireToJson(TestObjects.Binary.parseFrom(twice), twice);
+    }
+
+    @Test
+    public void testWireToJsonUnknownFields()
+        throws Exception
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CodedOutputStream coded = CodedOutputStream.newInstance(out);
+        coded.writeInt32(1, 42);
+        coded.writeString(99, "unknown");
+        // Known field number with mismatched wire type
+        coded.writeTag(2, WireFormat.WIRETYPE_FIXED64);
+        coded.writeRawLittleEndian64(7);
+        // Unknown enum value
+        coded.writeTag(13, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        coded.writeRawVarint32(2);
+        coded.writeEnumNoTag(7);
+        coded.writeEnumNoTag(2);
+        coded.writeMessage(14, TestObjects.WireTypes.newBuilder().setId(5).build());
+        coded.flush();
+        final byte[] data = out.toByteArray();
+        testWireToJson(TestObjects.WireTypes.parseFrom(data), data);
+
+        final PbJsonWriter strict = new PbJsonWriter().withRejectUnknownFields();
+        try {
+            strict.transcode(TestObjects.WireTypes.getDescriptor(), data);
+            fail("Unknown field accepted");
+        }
+        catch (PbJsonWriter.WriterException e) {
+            assertEquals("Unexpected error message",
+                         "Unknown field 99 in wire format input for pbjson.WireTypes", e.getMessage());
+        }
+        try {
+            strict.transcode(TestObjects.WireTypes.getDescriptor(), new byte[] { 8, (byte) 0x80 });
+            fail("Truncated input accepted");
+        }
+        catch (PbJsonWriter.WriterException e) {
+            assertTrue("Unexpected cause " + e.getCause(),
+                       e.getCause() instanceof com.google.protobuf.InvalidProtocolBufferException);
+        }
+    }
+
+    /**
+     * Transcoded output should match the output of the writer for the
+     * parsed message, for all variants and writer settings.
+     */
+    private static void testWireToJson(Message message, byte[] data)
+        throws Exception
+    {
+        final Descriptors.Descriptor type = message.getDescriptorForType();
+        for (PbJsonWriter writer : new PbJsonWriter[] {
+                new PbJsonWriter(),
+                new PbJsonWriter().withSuppressEmptyRepeatedFields(),
+                new PbJsonWriter().withUsePrettyPrinter() }) {
+            final String expected = writer.generate(message);
+            assertEquals("Unexpected output for " + type.getName(),
+                         expected, writer.transcode(type, data));
+
+            final byte[] padded = concat(new byte[] { 1, 2 }, data);
+            final ByteArrayOutputStream fromArray = new ByteArrayOutputStream();
+            writer.transcodeTo(type, padded, 2, data.length, fromArray);
+            assertEquals("Unexpected output from array for " + type.getName(),
+                         expected, new String(fromArray.toByteArray(), StandardCharsets.UTF_8));
+
+            if (message.toByteString().equals(com.google.protobuf.ByteString.copyFrom(data))) {
+                final ByteArrayOutputStream fromStream = new ByteArrayOutputStream();
+                writer.transcodeTo(type, new ByteArrayInputStream(data), fromStream);
+                assertEquals("Unexpected output from stream for " + type.getName(),
+                             expected, new String(fromStream.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        final byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static void testJsonToWire(Message prototype, String json)
+        throws Exception
+    {
+        final Message expected = new PbJsonReader().parse(prototype, json);
+        final byte[] transcoded = new PbJsonReader().transcode(prototype.getDescriptorForType(), json);
+        assertEquals("Transcoded " + prototype.getDescriptorForType().getName() + " differs from parsed",
+                     expected, prototype.newBuilderForType().mergeFrom(transcoded).build());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PbJsonReader().transcode(prototype.getDescriptorForType(),
+                                     new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals("Transcoded stream differs from string",
+                     expected, prototype.newBuilderForType().mergeFrom(out.toByteArray()).build());
+    }
+
+    private static void assertTranscodeError(
+        Descriptors.Descriptor type, String json, String message)
+        throws Exception
+    {
+        try {
+            new PbJsonReader().transcode(type, json);
+            fail("Invalid document accepted: " + json);
+        }
+        catch (PbJsonReader.TypeMismatchException e) {
+            assertEquals("Unexpected error message", message, e.getMessage());
+        }
+    }
+}
@@ -20,6 +20,7 @@ import no.hassle.protobuf.json.PbJsonReader;
 import no.hassle.protobuf.json.PbJsonReaderUnitTest;
 import no.hassle.protobuf.json.TestObjects;
 
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
@@ -77,6 +78,15 @@ public class ProtobufMessageProvidersTest
         {
             return testData;
         }
+
+        @GET
+        @Path("get-masked")
+        @Produces({MediaType.APPLICATION_JSON, MEDIA_TYPE_APPLICATION_PB})
+        @FieldMaskParam
+        public TestObjects.AllFields getMaskedResource()
+        {
+            return testData;
+        }
     }
 
     public ProtobufMessageProvidersTest()
@@ -164,4 +174,52 @@ public class ProtobufMessageProvidersTest
             "Pb data returned from GET resource did not match expected contents",
             testData, response);
     }
+
+    @Test
+    public void testGetJsonFieldMask()
+        throws Exception
+    {
+        final WebResource webResource = resource();
+        final InputStream stream = webResource
+            .path("get-masked")
+            .queryParam("fields", "string_1,bool_r1")
+            .queryParam("fields", "enum_2")
+            .accept(MediaType.APPLICATION_JSON)
+            .get(InputStream.class);
+        final TestObjects.AllFields response
+            = reader.parse(TestObjects.AllFields.getDefaultInstance(), stream);
+        final TestObjects.AllFields expected = TestObjects.AllFields.newBuilder()
+            .setString1(testData.getString1())
+            .addAllBoolR1(testData.getBoolR1List())
+            .setEnum2(testData.getEnum2())
+            .build();
+        assertEquals(
+            "JSON returned from GET resource did not match field mask",
+            expected, response);
+
+        final ClientResponse invalid = webResource
+            .path("get-masked")
+            .queryParam("fields", "string_1,nope")
+            .accept(MediaType.APPLICATION_JSON)
+            .get(ClientResponse.class);
+        assertEquals(
+            "Invalid field mask not rejected",
+            400, invalid.getStatus());
+    }
+
+    @Test
+    public void testGetJsonFieldMaskNotEnabled()
+        throws Exception
+    {
+        final InputStream stream = resource()
+            .path("get")
+            .queryParam("fields", "nope")
+            .accept(MediaType.APPLICATION_JSON)
+            .get(InputStream.class);
+        final TestObjects.AllFields response
+            = reader.parse(TestObjects.AllFields.getDefaultInstance(), stream);
+        assertEquals(
+            "Field mask applied to resource without FieldMaskParam",
+            testData, response);
+    }
 }
@@ -0,0 +1,412 @@
+/**
+ * Copyright (C) 2013-2014 Telenor Digital AS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package no.hassle.maven.plugins.protoc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generator for pb-json {@code JsonCodec} classes, one per message
+ * type, from the {@link FileDescriptorSet} protoc writes for a schema
+ * file.  Each codec is written next to the {@code --java_out} output,
+ * in the message's Java package, as {@code Outer_MsgJsonCodec} for
+ * message class {@code Outer$Msg}.
+ * <p>
+ * Codecs are generated for proto2 messages only.  Messages with
+ * {@code bytes}, group or map fields are skipped, and left to
+ * pb-json's reflection-based reader and writer.
+ */
+class JsonCodecGenerator
+{
+    private static final String CODEC_SUFFIX = "JsonCodec";
+    private static final String CODEC_BASE = "no.hassle.protobuf.json.JsonCodec";
+
+    /* FileDescriptorProto.syntax, MessageOptions.map_entry; newer than our descriptor.proto. */
+    private static final int FILE_SYNTAX_FIELD = 12;
+    private static final int MESSAGE_MAP_ENTRY_FIELD = 7;
+
+    /* Maps fully qualified protobuf type names to Java class names. */
+    private final Map<String, JavaType> types = new HashMap<String, JavaType>();
+    private final FileDescriptorProto file;
+
+    private static class JavaType
+    {
+        final String packageName;
+        /* Dotted name relative to the package, e.g Outer.Msg */
+        final String className;
+        final DescriptorProto message;
+
+        JavaType(String packageName, String className, DescriptorProto message)
+        {
+            this.packageName = packageName;
+            this.className = className;
+            this.message = message;
+        }
+
+        String qualifiedName()
+        {
+            return packageName.isEmpty() ? className : packageName + "." + className;
+        }
+
+        String codecName()
+        {
+            return className.replace('.', '_') + CODEC_SUFFIX;
+        }
+    }
+
+    /**
+     * @param set descriptor set written by protoc with {@code
+     * --include_imports}; codecs are generated for the last file in
+     * the set, which is the one compiled.
+     */
+    JsonCodecGenerator(FileDescriptorSet set)
+    {
+        for (FileDescriptorProto f : set.getFileList()) {
+            final String packageName = javaPackage(f);
+            final String prefix = f.getPackage().isEmpty() ? "." : "." + f.getPackage() + ".";
+            final String outer = f.getOptions().getJavaMultipleFiles() ? null : outerClassName(f);
+            for (DescriptorProto message : f.getMessageTypeList()) {
+                addMessage(packageName, prefix, outer, message);
+            }
+            for (EnumDescriptorProto e : f.getEnumTypeList()) {
+                addEnum(packageName, prefix, outer, e);
+            }
+        }
+        file = set.getFile(set.getFileCount() - 1);
+    }
+
+    private void addMessage(String packageName, String prefix, String outer, DescriptorProto message)
+    {
+        final String className = outer == null ? message.getName() : outer + "." + message.getName();
+        types.put(prefix + message.getName(), new JavaType(packageName, className, message));
+        final String nestedPrefix = prefix + message.getName() + ".";
+        for (DescriptorProto nested : message.getNestedTypeList()) {
+            addMessage(packageName, nestedPrefix, className, nested);
+        }
+        for (EnumDescriptorProto e : message.getEnumTypeList()) {
+            addEnum(packageName, nestedPrefix, className, e);
+        }
+    }
+
+    private void addEnum(String packageName, String prefix, String outer, EnumDescriptorProto e)
+    {
+        final String className = outer == null ? e.getName() : outer + "." + e.getName();
+        types.put(prefix + e.getName(), new JavaType(packageName, className, null));
+    }
+
+    /**
+     * Write codecs for all eligible messages in the compiled file.
+     *
+     * @return number of codecs written
+     */
+    int generate(File outputDir)
+        throws IOException
+    {
+        if (file.getUnknownFields().hasField(FILE_SYNTAX_FIELD)) {
+            final List<ByteString> syntax
+                = file.getUnknownFields().getField(FILE_SYNTAX_FIELD).getLengthDelimitedList();
+            if (!syntax.isEmpty() && !"proto2".equals(syntax.get(0).toStringUtf8())) {
+                return 0;
+            }
+        }
+        final String prefix = file.getPackage().isEmpty() ? "." : "." + file.getPackage() + ".";
+        final List<JavaType> messages = new ArrayList<JavaType>();
+        for (DescriptorProto message : file.getMessageTypeList()) {
+            collect(prefix + message.getName(), messages);
+        }
+
+        int count = 0;
+        for (JavaType type : messages) {
+            if (!isEligible(type.message)) {
+                continue;
+            }
+            final File dir = type.packageName.isEmpty()
+                ? outputDir
+                : new File(outputDir, type.packageName.replace('.', File.separatorChar));
+            FileUtils.writeStringToFile(
+                new File(dir, type.codecName() + ".java"), generateCodec(type), "UTF-8");
+            count++;
+        }
+        return count;
+    }
+
+    private void collect(String name, List<JavaType> result)
+    {
+        final JavaType type = types.get(name);
+        result.add(type);
+        for (DescriptorProto nested : type.message.getNestedTypeList()) {
+            collect(name + "." + nested.getName(), result);
+        }
+    }
+
+    private boolean isEligible(DescriptorProto message)
+    {
+        if (message.getOptions().getUnknownFields().hasField(MESSAGE_MAP_ENTRY_FIELD)) {
+            return false;
+        }
+        for (FieldDescriptorProto field : message.getFieldList()) {
+            switch (field.getType()) {
+            case TYPE_BYTES:
+            case TYPE_GROUP:
+                return false;
+            case TYPE_MESSAGE:
+            case TYPE_ENUM:
+                final JavaType type = types.get(field.getTypeName());
+                if (type == null) {
+                    return false;
+                }
+                if (type.message != null
+                    && type.message.getOptions().getUnknownFields().hasField(MESSAGE_MAP_ENTRY_FIELD))
+                {
+                    return false;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    private String generateCodec(JavaType type)
+    {
+        final String message = type.qualifiedName();
+        final String builder = message + ".Builder";
+        final StringBuilder out = new StringBuilder();
+        out.append("// Generated by protoc-bundled-plugin from ").append(file.getName())
+            .append(".  Do not edit.\n");
+        if (!type.packageName.isEmpty()) {
+            out.append("package ").append(type.packageName).append(";\n");
+        }
+        out.append("\n")
+            .append("public final class ").append(type.codecName()).append("\n")
+            .append("    extends ").append(CODEC_BASE).append("<").append(message)
+            .append(", ").append(builder).append(">\n")
+            .append("{\n");
+
+        out.append("    @Override\n")
+            .append("    public void writeFields(\n")
+            .append("        final ").append(message).append(" message,\n")
+            .append("        final org.codehaus.jackson.JsonGenerator generator,\n")
+            .append("        final no.hassle.protobuf.json.PbJsonWriter writer)\n")
+            .append("        throws no.hassle.protobuf.json.PbJsonWriter.WriterException, java.io.IOException\n")
+            .append("    {\n");
+        for (FieldDescriptorProto field : type.message.getFieldList()) {
+            generateWrite(out, field);
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n")
+            .append("    public void readFields(\n")
+            .append("        final ").append(builder).append(" builder,\n")
+            .append("        final org.codehaus.jackson.JsonParser parser,\n")
+            .append("        final no.hassle.protobuf.json.PbJsonReader reader)\n")
+            .append("        throws no.hassle.protobuf.json.PbJsonReader.ReaderException, java.io.IOException\n")
+            .append("    {\n")
+            .append("        String name;\n")
+            .append("        while ((name = nextField(parser)) != null) {\n")
+            .append("            switch (name) {\n");
+        for (FieldDescriptorProto field : type.message.getFieldList()) {
+            generateRead(out, field);
+        }
+        out.append("            default:\n")
+            .append("                unknownField(reader, parser, name);\n")
+            .append("            }\n")
+            .append("        }\n")
+            .append("    }\n")
+            .append("}\n");
+        return out.toString();
+    }
+
+    private void generateWrite(StringBuilder out, FieldDescriptorProto field)
+    {
+        final String name = quote(field.getName());
+        final String accessor = underscoresToCamelCase(field.getName(), true);
+        if (field.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED) {
+            out.append("        if (writeRepeated(writer, message.get").append(accessor).append("Count())) {\n")
+                .append("            generator.writeFieldName(").append(name).append(");\n")
+                .append("            generator.writeStartArray();\n")
+                .append("            for (int i = 0, n = message.get").append(accessor)
+                .append("Count(); i < n; i++) {\n")
+                .append("                ").append(writeValue(field, "message.get" + accessor + "(i)"))
+                .append(";\n")
+                .append("            }\n")
+                .append("            generator.writeEndArray();\n")
+                .append("        }\n");
+        }
+        else {
+            out.append("        if (message.has").append(accessor).append("()) {\n")
+                .append("            generator.writeFieldName(").append(name).append(");\n")
+                .append("            ").append(writeValue(field, "message.get" + accessor + "()"))
+                .append(";\n")
+                .append("        }\n");
+        }
+    }
+
+    private String writeValue(FieldDescriptorProto field, String value)
+    {
+        switch (field.getType()) {
+        case TYPE_MESSAGE:
+            return "writeMessage(writer, " + value + ", generator)";
+        case TYPE_BOOL:
+            return "generator.writeBoolean(" + value + ")";
+        case TYPE_STRING:
+            return "generator.writeString(" + value + ")";
+        case TYPE_ENUM:
+            return "generator.writeString(" + value + ".getValueDescriptor().getName())";
+        default:
+            return "generator.writeNumber(" + value + ")";
+        }
+    }
+
+    private void generateRead(StringBuilder out, FieldDescriptorProto field)
+    {
+        final String name = quote(field.getName());
+        final String accessor = underscoresToCamelCase(field.getName(), true);
+        final boolean repeated = field.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED;
+        out.append("            case ").append(name).append(":\n")
+            .append("                if (present(parser, ").append(name).append(", ")
+            .append(repeated).append(")) {\n");
+        if (repeated) {
+            out.append("                    while (nextElement(parser) != null) {\n")
+                .append("                        builder.add").append(accessor).append("(")
+                .append(readValue(field, name)).append(");\n")
+                .append("                    }\n");
+        }
+        else {
+            out.append("                    builder.set").append(accessor).append("(")
+                .append(readValue(field, name)).append(");\n");
+        }
+        out.append("                }\n")
+            .append("                break;\n");
+    }
+
+    private String readValue(FieldDescriptorProto field, String name)
+    {
+        final String type = quote(field.getType().name().substring("TYPE_".length()));
+        switch (field.getType()) {
+        case TYPE_MESSAGE:
+            final String message = types.get(field.getTypeName()).qualifiedName();
+            return "readMessage(reader, parser, " + name + ", " + message + ".newBuilder()).build()";
+        case TYPE_ENUM:
+            final String e = types.get(field.getTypeName()).qualifiedName();
+            return e + ".valueOf(readEnum(parser, " + name + ", " + e + ".getDescriptor()))";
+        case TYPE_BOOL:
+            return "readBool(parser, " + name + ")";
+        case TYPE_DOUBLE:
+            return "readDouble(parser, " + name + ")";
+        case TYPE_FLOAT:
+            return "readFloat(parser, " + name + ")";
+        case TYPE_STRING:
+            return "readString(parser, " + name + ")";
+        case TYPE_INT64:
+        case TYPE_SINT64:
+        case TYPE_UINT64:
+        case TYPE_FIXED64:
+        case TYPE_SFIXED64:
+            return "readLong(parser, " + name + ", " + type + ")";
+        default:
+            return "readInt(parser, " + name + ", " + type + ")";
+        }
+    }
+
+    private static String quote(String s)
+    {
+        return "\"" + s + "\"";
+    }
+
+    private static String javaPackage(FileDescriptorProto f)
+    {
+        if (f.getOptions().hasJavaPackage()) {
+            return f.getOptions().getJavaPackage();
+        }
+        return f.getPackage();
+    }
+
+    /**
+     * Name of the outer class protoc generates for a file, following
+     * protoc's own rules (including the {@code OuterClass} suffix that
+     * protoc 3 adds on conflicts).
+     */
+    private static String outerClassName(FileDescriptorProto f)
+    {
+        if (f.getOptions().hasJavaOuterClassname()) {
+            return f.getOptions().getJavaOuterClassname();
+        }
+        String base = f.getName();
+        base = base.substring(base.lastIndexOf('/') + 1);
+        if (base.endsWith(".protodevel")) {
+            base = base.substring(0, base.length() - ".protodevel".length());
+        }
+        else if (base.endsWith(".proto")) {
+            base = base.substring(0, base.length() - ".proto".length());
+        }
+        final String name = underscoresToCamelCase(base, true);
+        for (DescriptorProto message : f.getMessageTypeList()) {
+            if (message.getName().equals(name)) {
+                return name + "OuterClass";
+            }
+        }
+        for (EnumDescriptorProto e : f.getEnumTypeList()) {
+            if (e.getName().equals(name)) {
+                return name + "OuterClass";
+            }
+        }
+        return name;
+    }
+
+    /**
+     * protoc's conversion of field and file names to Java names.
+     */
+    static String underscoresToCamelCase(String input, boolean capitalize)
+    {
+        final StringBuilder result = new StringBuilder();
+        boolean capNext = capitalize;
+        for (int i = 0; i < input.length(); i++) {
+            final char c = input.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                result.append(capNext ? Character.toUpperCase(c) : c);
+                capNext = false;
+            }
+            else if (c >= 'A' && c <= 'Z') {
+                result.append(i == 0 && !capNext ? Character.toLowerCase(c) : c);
+                capNext = false;
+            }
+            else if (c >= '0' && c <= '9') {
+                result.append(c);
+                capNext = true;
+            }
+            else {
+                capNext = true;
+            }
+        }
+        return result.toString();
+    }
+}
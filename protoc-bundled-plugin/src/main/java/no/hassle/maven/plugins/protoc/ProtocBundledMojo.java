@@ -26,6 +26,8 @@ import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.repository.RepositorySystem;
 
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
@@ -197,6 +199,18 @@ public class ProtocBundledMojo extends AbstractMojo
      */
     private File protocExec;
 
+    /**
+     * Also generate a pb-json JSON codec class for each message,
+     * next to the generated Java classes.  pb-json readers and writers
+     * pick these up automatically, and use them instead of protobuf
+     * reflection.
+     *
+     * @parameter
+     *     property="generateJsonCodecs"
+     *     default-value="false"
+     */
+    private boolean generateJsonCodecs;
+
     /*
      * A global static lock to disallow concurrent download and more
      * importantly concurrent write of the protoc compiler when the plugin
@@ -369,6 +383,7 @@ public class ProtocBundledMojo extends AbstractMojo
      *
      * @param dir   base dir for input file, used to resolve includes
      * @param input   input file to compile
+     * @param outputDir   output dir for generated Java classes and codecs
      */
     private void compileFile(File inputDir, File input, File outputDir, File[] importDirs)
         throws MojoExecutionException
@@ -381,6 +396,12 @@ public class ProtocBundledMojo extends AbstractMojo
                 command.add("--proto_path=" + importDir.getAbsolutePath());
             }
             command.add("--java_out=" + outputDir);
+            File descriptorSet = null;
+            if (generateJsonCodecs) {
+                descriptorSet = File.createTempFile("protoc", ".desc");
+                command.add("--include_imports");
+                command.add("--descriptor_set_out=" + descriptorSet.getAbsolutePath());
+            }
             command.add(input.getAbsolutePath());
             final Process proc
                 = new ProcessBuilder(command.toArray(new String[command.size()]))
@@ -401,6 +422,17 @@ public class ProtocBundledMojo extends AbstractMojo
                 throw new MojoExecutionException(
                     "Compilation failure signalled by protoc exit status: " + status);
             }
+            if (descriptorSet != null) {
+                try {
+                    final FileDescriptorSet set
+                        = FileDescriptorSet.parseFrom(FileUtils.readFileToByteArray(descriptorSet));
+                    final int count = new JsonCodecGenerator(set).generate(outputDir);
+                    getLog().info("Generated " + count + " JSON codecs for " + input.getName());
+                }
+                finally {
+                    descriptorSet.delete();
+                }
+            }
         }
         catch (Exception e) {
             throw new MojoExecutionException("Unable to compile " + input.toString(), e);